@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of each shape of allocation that the agent instruments. This class only has the
+ * benchmarks; {@link InstrumentedAllocationBenchmark} runs them with the agent, and {@link
+ * UninstrumentedAllocationBenchmark} without it, as a baseline. The difference between the two is
+ * what the agent adds to each allocation.
+ *
+ * <p>Each benchmark is run with 0, 1 and 8 samplers, which do nothing, so that what is measured is
+ * the recorder rather than the samplers. The {@code Contended} benchmarks run on as many threads as
+ * there are processors, all of them allocating and calling the same samplers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public abstract class AllocationBenchmark {
+  private static final int LENGTH = 16;
+
+  /** What is allocated by the benchmarks that allocate instances. */
+  public static class Point {
+    int x;
+    int y;
+
+    public Point() {}
+  }
+
+  private static final Sampler noopSampler =
+      new Sampler() {
+        @Override
+        public void sampleAllocation(int count, String desc, Object newObj, long size) {}
+      };
+
+  @Param({"0", "1", "8"})
+  public int samplers;
+
+  // Not constants, so that the JIT can't specialize for them.
+  private int length = LENGTH;
+  private Class<?> pointClass = Point.class;
+  private Constructor<?> pointConstructor;
+  private final int[] ints = new int[LENGTH];
+
+  @Setup
+  public void setUp() throws ReflectiveOperationException {
+    pointConstructor = pointClass.getConstructor();
+    // The same sampler is called once for each time it is added.  With the
+    // agent, the recorder is loaded by the bootstrap class loader, so only
+    // its public API is accessible from here, even in the same package.
+    for (int i = 0; i < samplers; i++) {
+      AllocationRecorder.addSampler(noopSampler);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    AllocationRecorder.removeSampler(noopSampler);
+  }
+
+  /** {@code NEW}, followed by a call to the constructor. */
+  @Benchmark
+  public Object newInstance() {
+    return new Point();
+  }
+
+  /** {@code NEWARRAY}. */
+  @Benchmark
+  public Object newPrimitiveArray() {
+    return new int[length];
+  }
+
+  /** {@code ANEWARRAY}. */
+  @Benchmark
+  public Object newObjectArray() {
+    return new Object[length];
+  }
+
+  /** {@code MULTIANEWARRAY}. */
+  @Benchmark
+  public Object newMultiArray() {
+    return new int[4][length / 4];
+  }
+
+  @Benchmark
+  public Object arrayNewInstance() {
+    return Array.newInstance(int.class, length);
+  }
+
+  @Benchmark
+  @SuppressWarnings("deprecation") // Class.newInstance is still instrumented.
+  public Object classNewInstance() throws ReflectiveOperationException {
+    return pointClass.newInstance();
+  }
+
+  @Benchmark
+  public Object constructorNewInstance() throws ReflectiveOperationException {
+    return pointConstructor.newInstance();
+  }
+
+  @Benchmark
+  public Object arrayClone() {
+    return ints.clone();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object newInstanceContended() {
+    return newInstance();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object newPrimitiveArrayContended() {
+    return newPrimitiveArray();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object newObjectArrayContended() {
+    return newObjectArray();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object newMultiArrayContended() {
+    return newMultiArray();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object arrayNewInstanceContended() {
+    return arrayNewInstance();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object classNewInstanceContended() throws ReflectiveOperationException {
+    return classNewInstance();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object constructorNewInstanceContended() throws ReflectiveOperationException {
+    return constructorNewInstance();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object arrayCloneContended() {
+    return arrayClone();
+  }
+}
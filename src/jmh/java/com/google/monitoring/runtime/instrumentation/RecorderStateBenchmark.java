@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the fixed per-allocation cost of looking up the recorder's per-thread state in {@link
+ * RecorderState} with the {@code ThreadLocal<Boolean>} reentrancy guard plus separate sampling
+ * countdown that {@link AllocationRecorder} used before.
+ *
+ * <p>Both variants do the same work: check and set the reentrancy flag, charge the allocation to the
+ * sampling countdown, and clear the flag again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecorderStateBenchmark {
+  private static final long SIZE = 16;
+
+  private static final ThreadLocal<Boolean> recordingAllocation = new ThreadLocal<Boolean>();
+
+  private static final ThreadLocal<long[]> bytesUntilSample =
+      new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+          return new long[] {Long.MAX_VALUE};
+        }
+      };
+
+  @Benchmark
+  public long threadLocalBooleanGuard() {
+    if (Objects.equals(recordingAllocation.get(), Boolean.TRUE)) {
+      return 0;
+    }
+    recordingAllocation.set(Boolean.TRUE);
+    long[] countdown = bytesUntilSample.get();
+    long result = countdown[0] -= SIZE;
+    recordingAllocation.set(Boolean.FALSE);
+    return result;
+  }
+
+  @Benchmark
+  public long recorderState() {
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return 0;
+    }
+    try {
+      return state.bytesUntilSample -= SIZE;
+    } finally {
+      state.exit();
+    }
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public long threadLocalBooleanGuardContended() {
+    return threadLocalBooleanGuard();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public long recorderStateContended() {
+    return recorderState();
+  }
+}
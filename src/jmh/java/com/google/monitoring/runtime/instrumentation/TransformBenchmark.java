@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Measures how fast the agent rewrites classes, which is what dominates startup with the agent:
+ * every class the JVM loads, and every class already loaded when the agent starts, goes through
+ * {@link AllocationInstrumenter#instrument(byte[], ClassLoader)}. Feeds every class of the running
+ * JDK (from the {@code jrt:/} file system), and of any jars given on the command line, through it,
+ * and through {@link ConstructorInstrumenter#instrument(byte[], Class)}, and reports the number of
+ * classes and bytes rewritten per second, the median, 99th percentile and worst time to rewrite a
+ * class, and how much larger the rewritten classes are.
+ *
+ * <p>This is not a JMH benchmark, since JMH can't report percentiles together with throughput and
+ * sizes. Run with:
+ *
+ * <pre>
+ *   bazel run //src/jmh/java/com/google/monitoring/runtime/instrumentation:transform_benchmark -- \
+ *       [--warmup=&lt;passes&gt;] [--passes=&lt;passes&gt;] [--nojdk] [&lt;jar&gt;...]
+ * </pre>
+ *
+ * <p>It runs without the agent, so it doesn't measure {@code Instrumentation.retransformClasses}
+ * itself, only the rewriting that it calls for.
+ */
+public final class TransformBenchmark {
+  // Classes that can't be rewritten (e.g., because their supertypes are
+  // missing) are counted, rather than logged one by one.  Held here, since
+  // the log manager only keeps weak references to loggers.
+  private static final Logger packageLogger =
+      Logger.getLogger(AllocationInstrumenter.class.getPackage().getName());
+
+  // The classes to rewrite, and the loaders to resolve their supertypes with
+  // when computing frames.
+  private final List<String> names = new ArrayList<String>();
+  private final List<byte[]> classes = new ArrayList<byte[]>();
+  private final List<ClassLoader> loaders = new ArrayList<ClassLoader>();
+
+  /** Rewrites a class, as one of the agent's transformers would. */
+  private interface Transformer {
+    byte[] transform(byte[] bytes, ClassLoader loader);
+  }
+
+  private static final Transformer ALLOCATIONS =
+      new Transformer() {
+        @Override
+        public byte[] transform(byte[] bytes, ClassLoader loader) {
+          return AllocationInstrumenter.instrument(bytes, loader);
+        }
+      };
+
+  private static final Transformer CONSTRUCTORS =
+      new Transformer() {
+        @Override
+        public byte[] transform(byte[] bytes, ClassLoader loader) {
+          // The rewriting doesn't depend on the class object, which only
+          // exists once the class is loaded.
+          return ConstructorInstrumenter.instrument(bytes, null);
+        }
+      };
+
+  private TransformBenchmark() {}
+
+  public static void main(String[] args) throws IOException {
+    int warmup = 1;
+    int passes = 3;
+    boolean jdk = true;
+    List<String> jars = new ArrayList<String>();
+    for (String arg : args) {
+      if (arg.startsWith("--warmup=")) {
+        warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+      } else if (arg.startsWith("--passes=")) {
+        passes = Integer.parseInt(arg.substring("--passes=".length()));
+      } else if (arg.equals("--nojdk")) {
+        jdk = false;
+      } else if (arg.startsWith("--")) {
+        throw new IllegalArgumentException("Unknown option " + arg);
+      } else {
+        jars.add(arg);
+      }
+    }
+
+    packageLogger.setLevel(Level.OFF);
+
+    TransformBenchmark benchmark = new TransformBenchmark();
+    if (jdk) {
+      benchmark.addJdkClasses();
+    }
+    benchmark.addJars(jars);
+    System.out.printf(
+        "%d classes, %.1f MB%n", benchmark.classes.size(), benchmark.totalBytes() / 1e6);
+    benchmark.run("allocations", ALLOCATIONS, warmup, passes);
+    benchmark.run("constructors", CONSTRUCTORS, warmup, passes);
+  }
+
+  private void addJdkClasses() throws IOException {
+    FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+    ClassLoader loader = ClassLoader.getSystemClassLoader();
+    try (Stream<Path> paths = Files.walk(jrt.getPath("/modules"))) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        String name = path.toString();
+        if (name.endsWith(".class") && !name.endsWith("module-info.class")) {
+          add(name, Files.readAllBytes(path), loader);
+        }
+      }
+    }
+  }
+
+  private void addJars(List<String> jars) throws IOException {
+    if (jars.isEmpty()) {
+      return;
+    }
+    URL[] urls = new URL[jars.size()];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = new File(jars.get(i)).toURI().toURL();
+    }
+    // The jars can refer to each other's classes.
+    ClassLoader loader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader());
+    for (String jar : jars) {
+      try (JarFile file = new JarFile(jar)) {
+        Enumeration<JarEntry> entries = file.entries();
+        while (entries.hasMoreElements()) {
+          JarEntry entry = entries.nextElement();
+          String name = entry.getName();
+          if (name.endsWith(".class") && !name.endsWith("module-info.class")) {
+            try (InputStream in = file.getInputStream(entry)) {
+              add(jar + "!" + name, in.readAllBytes(), loader);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void add(String name, byte[] bytes, ClassLoader loader) {
+    names.add(name);
+    classes.add(bytes);
+    loaders.add(loader);
+  }
+
+  private long totalBytes() {
+    long total = 0;
+    for (byte[] bytes : classes) {
+      total += bytes.length;
+    }
+    return total;
+  }
+
+  private void run(String label, Transformer transformer, int warmup, int passes) {
+    for (int i = 0; i < warmup; i++) {
+      pass(transformer, null);
+    }
+    for (int i = 0; i < passes; i++) {
+      long[] nanos = new long[classes.size()];
+      long start = System.nanoTime();
+      Result result = pass(transformer, nanos);
+      long elapsed = System.nanoTime() - start;
+
+      Arrays.sort(nanos, 0, result.transformed);
+      double seconds = elapsed / 1e9;
+      System.out.printf(
+          "%s pass %d: %d classes (%d failed, e.g., %s) in %.2f s: %.0f classes/s, %.1f MB/s;"
+              + " per class p50 %.1f us, p99 %.1f us, max %.1f ms; growth %.3f%n",
+          label,
+          i + 1,
+          result.transformed,
+          result.failed,
+          result.firstFailure,
+          seconds,
+          result.transformed / seconds,
+          result.inputBytes / seconds / 1e6,
+          percentile(nanos, result.transformed, 0.50) / 1e3,
+          percentile(nanos, result.transformed, 0.99) / 1e3,
+          (result.transformed == 0) ? 0 : nanos[result.transformed - 1] / 1e6,
+          (result.inputBytes == 0) ? 0 : (double) result.outputBytes / result.inputBytes);
+    }
+  }
+
+  private static final class Result {
+    int transformed;
+    int failed;
+    String firstFailure = "none";
+    long inputBytes;
+    long outputBytes;
+  }
+
+  // Rewrites every class, and records the time each took in nanos, if it
+  // isn't null.  Only the classes that were rewritten count towards the
+  // throughput and growth, and their times are stored first.
+  private Result pass(Transformer transformer, long[] nanos) {
+    Result result = new Result();
+    for (int i = 0; i < classes.size(); i++) {
+      byte[] bytes = classes.get(i);
+      long start = System.nanoTime();
+      byte[] transformed;
+      try {
+        transformed = transformer.transform(bytes, loaders.get(i));
+      } catch (RuntimeException | LinkageError e) {
+        if (result.failed++ == 0) {
+          result.firstFailure = names.get(i);
+        }
+        continue;
+      }
+      long elapsed = System.nanoTime() - start;
+      if (nanos != null) {
+        nanos[result.transformed] = elapsed;
+      }
+      result.transformed++;
+      result.inputBytes += bytes.length;
+      result.outputBytes += transformed.length;
+    }
+    return result;
+  }
+
+  private static long percentile(long[] sorted, int length, double fraction) {
+    if (length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(fraction * length) - 1;
+    return sorted[Math.max(0, Math.min(index, length - 1))];
+  }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import org.openjdk.jmh.annotations.Fork;
+
+/**
+ * Runs the {@link AllocationBenchmark}s without the agent, as a baseline. The JVM arguments
+ * replace the launcher's, which load the agent, rather than adding to them.
+ */
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class UninstrumentedAllocationBenchmark extends AllocationBenchmark {}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what the recorder's per-thread state costs a million short-lived virtual threads, each of
+ * which records one allocation, when they share their carriers' states (the default) and when each
+ * has its own (with {@link AllocationRecorder#setVirtualThreadAttribution(boolean)}). {@code
+ * noRecording} runs the same threads without touching the recorder, as a baseline.
+ *
+ * <p>Run with {@code -prof gc}: with shared states, the allocation per thread ({@code
+ * gc.alloc.rate.norm}) should be that of the baseline, and independent of the number of threads;
+ * with a state per thread, each thread also pays for a state and a thread-local map.
+ *
+ * <p>Needs JDK 21 or later. The JVM flags give {@link RecorderState} the access to carrier
+ * thread-locals that the agent would otherwise give it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {
+      "--add-exports=java.base/jdk.internal.misc=ALL-UNNAMED",
+      "--add-opens=java.base/java.lang=ALL-UNNAMED"
+    })
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+  private static final int THREADS = 1_000_000;
+  private static final long SIZE = 16;
+
+  @Param({"false", "true"})
+  public boolean perVirtualThread;
+
+  @Setup
+  public void setUp() {
+    AllocationRecorder.setVirtualThreadAttribution(perVirtualThread);
+  }
+
+  @TearDown
+  public void tearDown() {
+    AllocationRecorder.setVirtualThreadAttribution(false);
+  }
+
+  private static final Runnable recordOne =
+      new Runnable() {
+        @Override
+        public void run() {
+          RecorderState state = RecorderState.enter();
+          if (state == null) {
+            return;
+          }
+          try {
+            state.bytesUntilSample -= SIZE;
+          } finally {
+            state.exit();
+          }
+        }
+      };
+
+  private static final Runnable doNothing =
+      new Runnable() {
+        @Override
+        public void run() {}
+      };
+
+  // Executors.newVirtualThreadPerTaskExecutor() is only there on JDK 21.
+  private static void runVirtualThreads(Runnable task) throws Exception {
+    ExecutorService executor =
+        (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    for (int i = 0; i < THREADS; i++) {
+      executor.execute(task);
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.HOURS);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(THREADS)
+  public void recordInEachThread() throws Exception {
+    runVirtualThreads(recordOne);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(THREADS)
+  public void noRecording() throws Exception {
+    runVirtualThreads(doNothing);
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * Links the {@code invokedynamic} allocation sites that {@link AllocationInstrumenter} emits when
+ * given the {@code invokedynamic} agent argument.
+ *
+ * <p>Each site is guarded by a {@link SwitchPoint}. While it is valid, the site calls the recorder
+ * if recording is enabled, and does nothing at all if it is disabled, so that the JIT compiles a
+ * disabled site away (and the allocation can be scalar replaced). Turning recording on or off
+ * invalidates the switch point, so that each site relinks itself the next time it runs.
+ *
+ * <p>Sites whose type is known when the class is instrumented (i.e., those registered with {@link
+ * AllocationSiteRegistry}) are linked by {@link #bootstrapSite} instead, to a recorder specialized
+ * for the site: it has the site, the samplers that want its type, and, for sites that allocate
+ * instances, the size of the instance, rather than looking them up on each allocation. Adding or
+ * removing a sampler relinks them too.
+ *
+ * <p>While allocations are sampled, those sites are linked to a fast path in front of the recorder,
+ * which just charges the allocation to the thread's sampling countdown, and only calls the recorder
+ * when the countdown runs out. Since the JIT inlines the target of the site into its caller, an
+ * allocation that isn't sampled costs a thread-local lookup, a subtraction and a branch.
+ *
+ * <p>This class is public only because instrumented classes in other packages must be able to call
+ * its bootstrap methods; it is not meant to be used directly.
+ */
+public final class AllocationCallSites {
+  private static final MethodHandle RELINK;
+  private static final MethodHandle SKIPS_SAMPLE;
+
+  // The type of the recorder methods that sites linked by bootstrapSite call.
+  private static final MethodType LINKED_RECORDER_TYPE =
+      MethodType.methodType(void.class, int.class, Object.class, LinkedSite.class);
+
+  static {
+    try {
+      RELINK =
+          MethodHandles.lookup()
+              .findStatic(
+                  AllocationCallSites.class,
+                  "relink",
+                  MethodType.methodType(void.class, Site.class, Object[].class));
+      SKIPS_SAMPLE =
+          MethodHandles.lookup()
+              .findStatic(
+                  AllocationRecorder.class,
+                  "skipsSample",
+                  MethodType.methodType(boolean.class, int.class, LinkedSite.class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static final Object lock = new Object();
+
+  // Whether the recorder is called.  Written under lock; switchPoint is
+  // replaced and the old one invalidated whenever it, or anything else the
+  // sites are specialized for, changes.
+  private static volatile boolean enabled = true;
+  private static volatile SwitchPoint switchPoint = new SwitchPoint();
+
+  // Set once any site has been linked.  Until then there is nothing to
+  // invalidate, which spares agents that don't use invokedynamic a new
+  // switch point (and the deoptimization that invalidating one causes) for
+  // every change to the samplers.  Written before a site reads the state it
+  // links to, and read after that state is changed, so that either the site
+  // sees the change or the change invalidates the site.
+  private static volatile boolean sitesLinked = false;
+
+  private AllocationCallSites() {}
+
+  /**
+   * What a site linked by {@link #bootstrapSite} knows about its allocations, passed to the
+   * recorder along with each of them.
+   */
+  static final class LinkedSite {
+    /** The kind of a site that allocates instances. */
+    static final int INSTANCE = -1;
+
+    /**
+     * The kind of a site that allocates arrays whose size can't be worked out from the count, i.e.,
+     * multidimensional ones. Sites that allocate other arrays have the {@link ObjectLayout} kind of
+     * the array.
+     */
+    static final int OTHER_ARRAY = -2;
+
+    final AllocationSite site;
+    final int typeId;
+    final int kind;
+    final boolean isArray;
+
+    // The samplers that want the site's type, as of the last time the site
+    // was linked.
+    volatile SamplerDispatch.Subscription[] samplers;
+
+    // The size of the instances the site allocates, or -1 if it allocates
+    // arrays or hasn't allocated yet.  Racing threads may both compute it,
+    // but they will get the same answer.
+    volatile long size = -1;
+
+    LinkedSite(AllocationSite site, int kind) {
+      this.site = site;
+      this.typeId = site.getTypeId();
+      this.kind = kind;
+      this.isArray = kind != INSTANCE;
+    }
+  }
+
+  /** An allocation site, with both of the targets it can link to. */
+  private static final class Site extends MutableCallSite {
+    final MethodHandle recorder;
+    final MethodHandle noop;
+    final MethodHandle relink;
+    // Null for sites linked by bootstrap.
+    final LinkedSite linked;
+    // The recorder behind the sampling fast path; null for sites linked by
+    // bootstrap.
+    final MethodHandle sampler;
+
+    Site(MethodHandle recorder, LinkedSite linked) {
+      super(recorder.type());
+      this.recorder = recorder;
+      this.noop = MethodHandles.empty(recorder.type());
+      this.relink =
+          MethodHandles.insertArguments(RELINK, 0, this)
+              .asCollector(Object[].class, recorder.type().parameterCount())
+              .asType(recorder.type());
+      this.linked = linked;
+      this.sampler =
+          (linked == null)
+              ? null
+              : MethodHandles.guardWithTest(
+                  MethodHandles.insertArguments(SKIPS_SAMPLE, 1, linked), noop, recorder);
+    }
+
+    // Links the site to the target for the current state, and returns that
+    // target.  Reads the switch point before the state, so that a concurrent
+    // change either is seen here or invalidates the guard we install.
+    MethodHandle link() {
+      sitesLinked = true;
+      SwitchPoint guard = switchPoint;
+      MethodHandle target = enabled ? recorder : noop;
+      if (linked != null) {
+        linked.samplers = AllocationRecorder.samplersFor(linked.typeId, linked.isArray);
+        if (enabled && AllocationRecorder.getSamplingInterval() > 0) {
+          target = sampler;
+        }
+      }
+      setTarget(guard.guardWithTest(target, relink));
+      return target;
+    }
+  }
+
+  // The fallback of an invalidated site.  Only runs once per site each time
+  // the sites are invalidated.
+  private static void relink(Site site, Object[] args) throws Throwable {
+    site.link().invokeWithArguments(args);
+  }
+
+  /**
+   * The bootstrap method of the {@code invokedynamic} allocation sites.
+   *
+   * @param lookup the lookup of the instrumented class; unused.
+   * @param name the name of the {@link AllocationRecorder} method to call.
+   * @param type the type of the {@link AllocationRecorder} method to call.
+   * @return a call site that calls that method when recording is enabled.
+   */
+  public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type)
+      throws ReflectiveOperationException {
+    MethodHandle recorder =
+        MethodHandles.lookup().findStatic(AllocationRecorder.class, name, type);
+    Site site = new Site(recorder, null);
+    site.link();
+    return site;
+  }
+
+  /**
+   * The bootstrap method of the {@code invokedynamic} sites that allocate a type known when the
+   * class was instrumented. The site passes the allocation count and the new object.
+   *
+   * @param lookup the lookup of the instrumented class; unused.
+   * @param name the name of the {@link AllocationRecorder} method to call.
+   * @param type the type of the site, which is that of the method without its last argument.
+   * @param siteId the {@link AllocationSiteRegistry} ID of the site.
+   * @param kind what the site allocates: {@link LinkedSite#INSTANCE}, {@link
+   *     LinkedSite#OTHER_ARRAY}, or the {@link ObjectLayout} kind of a one-dimensional array.
+   * @return a call site that calls that method when recording is enabled.
+   */
+  public static CallSite bootstrapSite(
+      MethodHandles.Lookup lookup, String name, MethodType type, int siteId, int kind)
+      throws ReflectiveOperationException {
+    LinkedSite linked = new LinkedSite(AllocationSiteRegistry.site(siteId), kind);
+    MethodHandle recorder =
+        MethodHandles.insertArguments(
+            MethodHandles.lookup().findStatic(AllocationRecorder.class, name, LINKED_RECORDER_TYPE),
+            2,
+            linked);
+    Site site = new Site(recorder.asType(type), linked);
+    site.link();
+    return site;
+  }
+
+  /**
+   * Turns the recorder on or off. See {@link AllocationRecorder#setRecordingEnabled(boolean)}.
+   */
+  static void setEnabled(boolean enable) {
+    synchronized (lock) {
+      if (enabled == enable) {
+        return;
+      }
+      enabled = enable;
+      invalidate();
+    }
+  }
+
+  /**
+   * Makes every site relink itself the next time it runs, e.g., because the samplers or the
+   * sampling interval have changed.
+   */
+  static void invalidate() {
+    if (!sitesLinked) {
+      return;
+    }
+    synchronized (lock) {
+      SwitchPoint old = switchPoint;
+      switchPoint = new SwitchPoint();
+      SwitchPoint.invalidateAll(new SwitchPoint[] {old});
+    }
+  }
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+}
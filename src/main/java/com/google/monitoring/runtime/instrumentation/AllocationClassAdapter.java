@@ -16,9 +16,13 @@
 
 package com.google.monitoring.runtime.instrumentation;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.commons.AnalyzerAdapter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 
@@ -30,11 +34,82 @@ import org.objectweb.asm.commons.LocalVariablesSorter;
 class AllocationClassAdapter extends ClassVisitor {
   private final String recorderClass;
   private final String recorderMethod;
+  private final boolean useTypeIds;
+  private final boolean useInvokeDynamic;
+  private final boolean countOnly;
+  private final ClassLoader loader;
+  private final Set<String> unchangedMethods;
+  private final boolean keepFrames;
+  private String className;
+  private boolean canInvokeDynamic;
+  private boolean canLoadClassConstants;
 
   public AllocationClassAdapter(ClassVisitor cv, String recorderClass, String recorderMethod) {
+    this(
+        cv,
+        recorderClass,
+        recorderMethod,
+        false,
+        false,
+        false,
+        null,
+        Collections.<String>emptySet(),
+        false);
+  }
+
+  /**
+   * @param useTypeIds whether the recorder has the ID-based signatures (see {@link
+   *     AllocationMethodAdapter#SITE_RECORDER_SIG}) rather than the String-based ones.
+   * @param useInvokeDynamic whether to call the recorder through invokedynamic sites linked by
+   *     {@link AllocationCallSites}, in class files new enough to have them.
+   * @param countOnly whether to count allocations without passing the new objects to the recorder
+   *     where possible (see {@link AllocationRecorder#countAllocation(Class, int)}), in class files
+   *     new enough to have class constants.
+   * @param loader the class loader of the class, which the superclasses of the classes it allocates
+   *     are looked up with, to find out whether their sizes can be worked out without the new
+   *     objects. Only used with {@code countOnly}.
+   * @param unchangedMethods the {@link AllocationScanner#methodKey(String, String) keys} of the
+   *     methods to pass on as they are, without rewriting them, as found by {@link
+   *     AllocationScanner}.
+   * @param keepFrames whether the class is read with {@link
+   *     org.objectweb.asm.ClassReader#EXPAND_FRAMES}, and its frames are kept and added to where
+   *     the rewritten methods need them, rather than computed again by the class writer. The class
+   *     must not have JSR or RET instructions.
+   */
+  AllocationClassAdapter(
+      ClassVisitor cv,
+      String recorderClass,
+      String recorderMethod,
+      boolean useTypeIds,
+      boolean useInvokeDynamic,
+      boolean countOnly,
+      ClassLoader loader,
+      Set<String> unchangedMethods,
+      boolean keepFrames) {
     super(Opcodes.ASM9, cv);
     this.recorderClass = recorderClass;
     this.recorderMethod = recorderMethod;
+    this.useTypeIds = useTypeIds;
+    this.useInvokeDynamic = useInvokeDynamic;
+    this.countOnly = countOnly;
+    this.loader = loader;
+    this.unchangedMethods = unchangedMethods;
+    this.keepFrames = keepFrames;
+  }
+
+  @Override
+  public void visit(
+      int version,
+      int access,
+      String name,
+      String signature,
+      String superName,
+      String[] interfaces) {
+    className = name;
+    // The minor version is in the high 16 bits.
+    canInvokeDynamic = (version & 0xFFFF) >= Opcodes.V1_7;
+    canLoadClassConstants = (version & 0xFFFF) >= Opcodes.V1_5;
+    super.visit(version, access, name, signature, superName, interfaces);
   }
 
   /**
@@ -47,19 +122,53 @@ class AllocationClassAdapter extends ClassVisitor {
       int access, String base, String desc, String signature, String[] exceptions) {
     MethodVisitor mv = cv.visitMethod(access, base, desc, signature, exceptions);
 
-    if (mv != null) {
-      // We need to compute stackmaps (see
-      // AllocationInstrumenter#instrument).  This can't really be
-      // done for old bytecode that contains JSR and RET instructions.
-      // So, we remove JSRs and RETs.
-      JSRInlinerAdapter jsria =
-          new JSRInlinerAdapter(mv, access, base, desc, signature, exceptions);
-      AllocationMethodAdapter aimv =
-          new AllocationMethodAdapter(jsria, recorderClass, recorderMethod);
-      LocalVariablesSorter lvs = new LocalVariablesSorter(access, desc, aimv);
-      aimv.lvs = lvs;
-      mv = lvs;
+    // Methods that don't allocate are left to the writer, which copies them
+    // verbatim when it gets them straight from the reader.
+    if (mv != null && !unchangedMethods.contains(AllocationScanner.methodKey(base, desc))) {
+      if (keepFrames) {
+        // The analyzer follows the types through the rewritten code, for
+        // the frames the adapter inserts.  The new locals are only used
+        // within the code the adapter inserts, so they are unused in the
+        // original frames.
+        AnalyzerAdapter analyzer = new AnalyzerAdapter(className, access, base, desc, mv);
+        AllocationMethodAdapter aimv = newMethodAdapter(analyzer, base, desc);
+        aimv.analyzer = analyzer;
+        LocalVariablesSorter lvs =
+            new LocalVariablesSorter(Opcodes.ASM9, access, desc, aimv) {
+              @Override
+              protected void updateNewLocals(Object[] newLocals) {
+                Arrays.fill(newLocals, Opcodes.TOP);
+              }
+            };
+        aimv.lvs = lvs;
+        mv = lvs;
+      } else {
+        // We need to compute stackmaps (see
+        // AllocationInstrumenter#instrument).  This can't really be
+        // done for old bytecode that contains JSR and RET instructions.
+        // So, we remove JSRs and RETs.
+        JSRInlinerAdapter jsria =
+            new JSRInlinerAdapter(mv, access, base, desc, signature, exceptions);
+        AllocationMethodAdapter aimv = newMethodAdapter(jsria, base, desc);
+        LocalVariablesSorter lvs = new LocalVariablesSorter(access, desc, aimv);
+        aimv.lvs = lvs;
+        mv = lvs;
+      }
     }
     return mv;
   }
+
+  private AllocationMethodAdapter newMethodAdapter(MethodVisitor mv, String base, String desc) {
+    return new AllocationMethodAdapter(
+        mv,
+        recorderClass,
+        recorderMethod,
+        useTypeIds,
+        useInvokeDynamic && canInvokeDynamic,
+        countOnly && canLoadClassConstants,
+        loader,
+        className,
+        base,
+        desc);
+  }
 }
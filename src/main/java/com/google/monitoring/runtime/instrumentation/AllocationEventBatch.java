@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * A batch of allocations recorded on a single thread, as passed to an {@link
+ * AllocationEventConsumer} or a {@link BatchSampler}. The events are stored by column, and are in
+ * the order in which they were recorded; event {@code i} is described by {@code getTypeId(i)},
+ * {@code getSiteId(i)}, {@code getStackId(i)}, {@code getCount(i)}, {@code getSize(i)}, {@code
+ * getTimestamp(i)} and {@code getObject(i)}.
+ *
+ * <p>Batches are reused, so a consumer must copy out anything it wants to keep.
+ */
+public final class AllocationEventBatch {
+  private int[] typeIds;
+  private int[] siteIds;
+  private int[] stackIds;
+  private int[] counts;
+  private long[] sizes;
+  private long[] timestamps;
+  // Null unless the allocated objects are being kept.
+  private WeakReference<?>[] objects;
+  private int size;
+  private long threadId;
+
+  AllocationEventBatch(int capacity) {
+    typeIds = new int[capacity];
+    siteIds = new int[capacity];
+    stackIds = new int[capacity];
+    counts = new int[capacity];
+    sizes = new long[capacity];
+    timestamps = new long[capacity];
+  }
+
+  /**
+   * Returns the number of events in this batch.
+   *
+   * @return the number of events.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the {@link Thread#getId() ID} of the thread that made the allocations in this batch.
+   *
+   * @return the allocating thread's ID.
+   */
+  public long getThreadId() {
+    return threadId;
+  }
+
+  /**
+   * Returns the {@link TypeIdRegistry} ID of the type allocated by the given event.
+   *
+   * @param i the index of the event.
+   * @return the type ID.
+   */
+  public int getTypeId(int i) {
+    checkIndex(i);
+    return typeIds[i];
+  }
+
+  /**
+   * Returns the {@link AllocationSiteRegistry} ID of the site of the given event, or -1 if the site
+   * isn't known (e.g., for reflective allocations).
+   *
+   * @param i the index of the event.
+   * @return the site ID, or -1.
+   */
+  public int getSiteId(int i) {
+    checkIndex(i);
+    return siteIds[i];
+  }
+
+  /**
+   * Returns the {@link AllocationStackTable} ID of the stack of the given event, or {@link
+   * AllocationStackTable#NO_STACK} if stacks are not being captured.
+   *
+   * @param i the index of the event.
+   * @return the stack ID.
+   */
+  public int getStackId(int i) {
+    checkIndex(i);
+    return stackIds[i];
+  }
+
+  /**
+   * Returns the count of the given event: -1 for a simple new, and the array length otherwise, as
+   * for {@link Sampler#sampleAllocation(int, String, Object, long)}.
+   *
+   * @param i the index of the event.
+   * @return the count.
+   */
+  public int getCount(int i) {
+    checkIndex(i);
+    return counts[i];
+  }
+
+  /**
+   * Returns the size in bytes of the object allocated by the given event.
+   *
+   * @param i the index of the event.
+   * @return the size.
+   */
+  public long getSize(int i) {
+    checkIndex(i);
+    return sizes[i];
+  }
+
+  /**
+   * Returns the time of the given event, as given by {@link System#nanoTime()} on the allocating
+   * thread.
+   *
+   * @param i the index of the event.
+   * @return the timestamp.
+   */
+  public long getTimestamp(int i) {
+    checkIndex(i);
+    return timestamps[i];
+  }
+
+  /**
+   * Returns the object allocated by the given event. Only {@link BatchSampler}s that ask for them
+   * are passed the objects, and only weakly, so this returns null if the objects were not kept, or
+   * if the object has since been collected.
+   *
+   * @param i the index of the event.
+   * @return the allocated object, or null.
+   */
+  public Object getObject(int i) {
+    checkIndex(i);
+    if (objects == null) {
+      return null;
+    }
+    WeakReference<?> ref = objects[i];
+    return (ref == null) ? null : ref.get();
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+    }
+  }
+
+  /** Empties the batch, and makes it hold events from the given thread. */
+  void reset(long threadId) {
+    this.threadId = threadId;
+    if (objects != null) {
+      // Don't keep the references (or the referents' memory, if the
+      // references haven't been cleared yet) alive any longer than needed.
+      Arrays.fill(objects, 0, size, null);
+    }
+    size = 0;
+  }
+
+  /** Starts or stops keeping the allocated objects. Only called while the batch is empty. */
+  void setKeepObjects(boolean keep) {
+    if (!keep) {
+      objects = null;
+    } else if (objects == null) {
+      objects = new WeakReference<?>[typeIds.length];
+    }
+  }
+
+  boolean isKeepingObjects() {
+    return objects != null;
+  }
+
+  /** Returns true iff there is no room for more events. */
+  boolean isFull() {
+    return size == typeIds.length;
+  }
+
+  /** Appends an event, keeping the object if objects are being kept. */
+  void add(
+      int typeId, int siteId, int stackId, int count, long size, long timestamp, Object obj) {
+    if (objects != null) {
+      objects[this.size] = new WeakReference<Object>(obj);
+    }
+    add(typeId, siteId, stackId, count, size, timestamp);
+  }
+
+  /** Appends an event. The caller must make sure that there is room. */
+  void add(int typeId, int siteId, int stackId, int count, long size, long timestamp) {
+    int i = this.size++;
+    typeIds[i] = typeId;
+    siteIds[i] = siteId;
+    stackIds[i] = stackId;
+    counts[i] = count;
+    sizes[i] = size;
+    timestamps[i] = timestamp;
+  }
+
+  /** Returns the number of events this batch can hold. */
+  int capacity() {
+    return typeIds.length;
+  }
+
+  /** Makes this batch able to hold at least the given number of events. Discards any events. */
+  void ensureCapacity(int capacity) {
+    reset(threadId);
+    if (typeIds.length < capacity) {
+      typeIds = new int[capacity];
+      siteIds = new int[capacity];
+      stackIds = new int[capacity];
+      counts = new int[capacity];
+      sizes = new long[capacity];
+      timestamps = new long[capacity];
+      if (objects != null) {
+        objects = new WeakReference<?>[capacity];
+      }
+    }
+  }
+}
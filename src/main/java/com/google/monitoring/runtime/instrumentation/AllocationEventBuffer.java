@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size ring of allocation events, written by a single thread and read by the {@link
+ * AllocationEventPipeline}. Writing an event doesn't allocate, lock, or wait.
+ *
+ * <p>Only the owning thread calls {@link #offer}. Readers must hold the pipeline's delivery lock,
+ * so there is only ever one of them at a time.
+ */
+final class AllocationEventBuffer {
+  private final int[] typeIds;
+  private final int[] siteIds;
+  private final int[] stackIds;
+  private final int[] counts;
+  private final long[] sizes;
+  private final long[] timestamps;
+  private final int mask;
+
+  // The index of the next event to be read, and of the next event to be
+  // written.  They only ever grow; the slot is the index masked by the
+  // capacity.  Each is written by one side and read by the other, and
+  // published with lazySet(), which is all the ordering we need.
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  // The number of events dropped because the buffer was full.  Only written
+  // by the owning thread.
+  private volatile long dropped;
+
+  private final WeakReference<Thread> owner;
+  private final long threadId;
+
+  /**
+   * @param capacity the number of events the buffer can hold. Rounded up to a power of two.
+   * @param owner the thread that writes to the buffer.
+   */
+  AllocationEventBuffer(int capacity, Thread owner) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    typeIds = new int[size];
+    siteIds = new int[size];
+    stackIds = new int[size];
+    counts = new int[size];
+    sizes = new long[size];
+    timestamps = new long[size];
+    mask = size - 1;
+    this.owner = new WeakReference<Thread>(owner);
+    this.threadId = threadId(owner);
+  }
+
+  /**
+   * Returns the ID of the given thread. {@code Thread.getId()} is deprecated from JDK 19 on, in
+   * favor of {@code Thread.threadId()}, which returns the same ID, but which earlier JDKs don't
+   * have.
+   */
+  @SuppressWarnings("deprecation")
+  static long threadId(Thread thread) {
+    return thread.getId();
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  /** Appends an event, and returns false if the buffer is full. Only called by the owner. */
+  boolean offer(int typeId, int siteId, int stackId, int count, long size, long timestamp) {
+    long t = tail.get();
+    if (t - head.get() > mask) {
+      return false;
+    }
+    int i = (int) t & mask;
+    typeIds[i] = typeId;
+    siteIds[i] = siteId;
+    stackIds[i] = stackId;
+    counts[i] = count;
+    sizes[i] = size;
+    timestamps[i] = timestamp;
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /** Counts an event that didn't fit. Only called by the owner. */
+  void drop() {
+    dropped = dropped + 1;
+  }
+
+  long getDroppedCount() {
+    return dropped;
+  }
+
+  boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  /**
+   * Moves the buffered events into the given batch, which must be able to hold {@link #capacity()}
+   * events.
+   *
+   * @return the number of events moved.
+   */
+  int drainTo(AllocationEventBatch batch) {
+    batch.reset(threadId);
+    long h = head.get();
+    long t = tail.get();
+    for (long e = h; e < t; e++) {
+      int i = (int) e & mask;
+      batch.add(typeIds[i], siteIds[i], stackIds[i], counts[i], sizes[i], timestamps[i]);
+    }
+    head.lazySet(t);
+    return (int) (t - h);
+  }
+
+  /** Returns true once the owning thread has died, after which nothing more will be written. */
+  boolean isOwnerDead() {
+    Thread thread = owner.get();
+    return thread == null || !thread.isAlive();
+  }
+}
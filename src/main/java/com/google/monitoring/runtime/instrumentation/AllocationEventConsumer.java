@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * Receives recorded allocations asynchronously, in batches. Unlike a {@link Sampler}, a consumer
+ * does not run on the allocating thread: the recorder copies each allocation into a preallocated
+ * buffer owned by the allocating thread, and a background thread drains those buffers and passes
+ * them to the consumers. This keeps slow analysis code off the allocating threads, at the cost of
+ * not seeing the allocated objects themselves.
+ *
+ * <p>Consumers are never called concurrently with each other or with themselves, so they don't
+ * need to be thread-safe. Allocations made by a consumer are not recorded.
+ *
+ * @see AllocationRecorder#addEventConsumer(AllocationEventConsumer)
+ */
+public interface AllocationEventConsumer {
+  /** What an allocating thread does when its buffer is full. */
+  public enum OverflowPolicy {
+    /**
+     * Discard the event, and count it in {@link AllocationRecorder#getDroppedEventCount()}. The
+     * allocating thread is never delayed. This is the default.
+     */
+    DROP,
+
+    /**
+     * Deliver the full buffer to the consumers on the allocating thread, then record the event.
+     * Nothing is lost, but the allocating thread waits for the consumers.
+     */
+    SYNCHRONOUS
+  }
+
+  /**
+   * Processes a batch of allocations. The batch is only valid until this method returns; it is
+   * reused for the next batch.
+   *
+   * @param batch the allocations recorded on one thread since the previous batch from that thread.
+   */
+  public void consume(AllocationEventBatch batch);
+}
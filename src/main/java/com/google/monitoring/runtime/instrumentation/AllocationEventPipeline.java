@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import com.google.monitoring.runtime.instrumentation.AllocationEventConsumer.OverflowPolicy;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves allocation events from the allocating threads to the {@link AllocationEventConsumer}s.
+ * Each thread gets its own {@link AllocationEventBuffer} the first time it records an event, and a
+ * single daemon thread drains all of the buffers and delivers their contents. The drain thread
+ * only runs while there are consumers.
+ */
+final class AllocationEventPipeline {
+  private static final Logger logger = Logger.getLogger(AllocationEventPipeline.class.getName());
+
+  static final int DEFAULT_BUFFER_CAPACITY = 4096;
+
+  // How long the drain thread waits between passes over the buffers.
+  private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // Null when there are no consumers, so that the recorder only has to
+  // check one field to find out whether to record events.
+  private static volatile AllocationEventConsumer[] consumers;
+
+  // Protects mutations of consumers, and drainThread.
+  private static final Object consumerLock = new Object();
+
+  // Guarded by consumerLock.
+  private static Thread drainThread;
+
+  // Held while reading from any buffer and delivering to the consumers, so
+  // the consumers are never called concurrently, and each buffer has a
+  // single reader.  Also guards batch.
+  private static final Object deliveryLock = new Object();
+
+  private static final AllocationEventBatch batch =
+      new AllocationEventBatch(DEFAULT_BUFFER_CAPACITY);
+
+  private static final CopyOnWriteArrayList<AllocationEventBuffer> buffers =
+      new CopyOnWriteArrayList<AllocationEventBuffer>();
+
+  // Events dropped by threads whose buffers have been discarded.
+  private static final AtomicLong deadThreadDrops = new AtomicLong();
+
+  private static volatile int bufferCapacity = DEFAULT_BUFFER_CAPACITY;
+
+  private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+  private AllocationEventPipeline() {}
+
+  /** Returns true iff there are consumers, and so events should be recorded. */
+  static boolean isActive() {
+    return consumers != null;
+  }
+
+  static void addConsumer(AllocationEventConsumer consumer) {
+    synchronized (consumerLock) {
+      AllocationEventConsumer[] old = consumers;
+      int length = (old == null) ? 0 : old.length;
+      AllocationEventConsumer[] newConsumers = new AllocationEventConsumer[length + 1];
+      if (old != null) {
+        System.arraycopy(old, 0, newConsumers, 0, length);
+      }
+      newConsumers[length] = consumer;
+      consumers = newConsumers;
+      if (drainThread == null) {
+        drainThread =
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    drainLoop();
+                  }
+                },
+                "AllocationEventPipeline");
+        drainThread.setDaemon(true);
+        drainThread.start();
+      }
+    }
+  }
+
+  static void removeConsumer(AllocationEventConsumer consumer) {
+    synchronized (consumerLock) {
+      AllocationEventConsumer[] old = consumers;
+      if (old == null) {
+        return;
+      }
+      int count = 0;
+      for (AllocationEventConsumer c : old) {
+        if (!c.equals(consumer)) {
+          count++;
+        }
+      }
+      if (count == 0) {
+        consumers = null;
+        return;
+      }
+      AllocationEventConsumer[] newConsumers = new AllocationEventConsumer[count];
+      int i = 0;
+      for (AllocationEventConsumer c : old) {
+        if (!c.equals(consumer)) {
+          newConsumers[i++] = c;
+        }
+      }
+      consumers = newConsumers;
+    }
+  }
+
+  static void setBufferCapacity(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Non-positive buffer capacity: " + capacity);
+    }
+    bufferCapacity = capacity;
+  }
+
+  static void setOverflowPolicy(OverflowPolicy policy) {
+    if (policy == null) {
+      throw new NullPointerException("policy");
+    }
+    overflowPolicy = policy;
+  }
+
+  static long getDroppedCount() {
+    long dropped = deadThreadDrops.get();
+    for (AllocationEventBuffer buffer : buffers) {
+      dropped += buffer.getDroppedCount();
+    }
+    return dropped;
+  }
+
+  /**
+   * Records an event in the current thread's buffer. Called by the recorder, so the thread's
+   * allocations are not being recorded.
+   */
+  static void record(
+      RecorderState state, int typeId, int siteId, int stackId, int count, long size) {
+    AllocationEventBuffer buffer = state.eventBuffer;
+    if (buffer == null) {
+      buffer = new AllocationEventBuffer(bufferCapacity, state.thread);
+      buffers.add(buffer);
+      state.eventBuffer = buffer;
+    }
+    long timestamp = System.nanoTime();
+    if (buffer.offer(typeId, siteId, stackId, count, size, timestamp)) {
+      return;
+    }
+    if (overflowPolicy == OverflowPolicy.SYNCHRONOUS) {
+      deliver(buffer);
+      if (buffer.offer(typeId, siteId, stackId, count, size, timestamp)) {
+        return;
+      }
+    }
+    buffer.drop();
+  }
+
+  /** Delivers everything buffered so far, on the calling thread. */
+  static void flush() {
+    // Null if the thread is already in the recorder, e.g., when a sampler
+    // flushes; either way, the consumers' allocations aren't recorded.
+    RecorderState state = RecorderState.enter();
+    try {
+      for (AllocationEventBuffer buffer : buffers) {
+        deliver(buffer);
+      }
+    } finally {
+      if (state != null) {
+        state.exit();
+      }
+    }
+  }
+
+  /** Passes the contents of the given buffer to the consumers, and returns how many there were. */
+  private static int deliver(AllocationEventBuffer buffer) {
+    synchronized (deliveryLock) {
+      batch.ensureCapacity(buffer.capacity());
+      int n = buffer.drainTo(batch);
+      AllocationEventConsumer[] cs = consumers;
+      if (n == 0 || cs == null) {
+        return n;
+      }
+      for (AllocationEventConsumer consumer : cs) {
+        try {
+          consumer.consume(batch);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Allocation event consumer failed.", e);
+        }
+      }
+      return n;
+    }
+  }
+
+  private static void drainLoop() {
+    // Nothing allocated by this thread (i.e., by the consumers) is recorded.
+    RecorderState.enter();
+    while (true) {
+      synchronized (consumerLock) {
+        if (consumers == null) {
+          drainThread = null;
+          return;
+        }
+      }
+      for (AllocationEventBuffer buffer : buffers) {
+        // Check before draining, so that anything the thread wrote before
+        // it died gets delivered.
+        boolean dead = buffer.isOwnerDead();
+        deliver(buffer);
+        if (dead) {
+          deadThreadDrops.addAndGet(buffer.getDroppedCount());
+          buffers.remove(buffer);
+        }
+      }
+      LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+    }
+  }
+}
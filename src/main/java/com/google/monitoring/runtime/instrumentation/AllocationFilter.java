@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects the allocations a {@link Sampler} is interested in, so that the recorder doesn't call it
+ * for any others. A filter matches an allocation if its type matches (any of) the classes, packages
+ * and array element types added to it, or any type if none were added, and it is at least the
+ * minimum size.
+ *
+ * <p>Types are matched by name, as with {@link TypeIdRegistry}, so the recorder only has to decide
+ * once per type whether a filter matches it. Only the size is checked per allocation.
+ *
+ * <pre>
+ * AllocationRecorder.addSampler(
+ *     sampler,
+ *     AllocationFilter.newBuilder()
+ *         .addPackage("com.example.cache")
+ *         .addArraysOf(byte.class)
+ *         .setMinimumSize(1024)
+ *         .build());
+ * </pre>
+ */
+public final class AllocationFilter {
+  /** Matches every allocation. */
+  static final AllocationFilter ALL = newBuilder().build();
+
+  // Descriptors ('/'-separated names) of the classes whose instances match.
+  private final String[] classes;
+  // '/'-terminated prefixes of the descriptors of matching classes and
+  // array element types.
+  private final String[] packages;
+  // Descriptors of the element types of matching arrays.
+  private final String[] arrayElements;
+  private final long minimumSize;
+
+  private AllocationFilter(Builder builder) {
+    classes = builder.classes.toArray(new String[0]);
+    packages = builder.packages.toArray(new String[0]);
+    arrayElements = builder.arrayElements.toArray(new String[0]);
+    minimumSize = builder.minimumSize;
+  }
+
+  /**
+   * Returns a builder for a filter, which matches everything until it is told otherwise.
+   *
+   * @return a new builder.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns the size below which allocations don't match, whatever their type.
+   *
+   * @return the minimum size, in bytes.
+   */
+  public long getMinimumSize() {
+    return minimumSize;
+  }
+
+  /** Returns true if the filter matches allocations of every type. */
+  boolean matchesAllTypes() {
+    return classes.length == 0 && packages.length == 0 && arrayElements.length == 0;
+  }
+
+  /**
+   * Returns true if the filter matches the given type, ignoring size.
+   *
+   * @param descriptor the descriptor passed to the samplers.
+   * @param isArray whether the allocation is of an array whose elements have the given type.
+   */
+  boolean matchesType(String descriptor, boolean isArray) {
+    if (matchesAllTypes()) {
+      return true;
+    }
+    String name = isArray ? elementName(descriptor) : descriptor;
+    if (isArray) {
+      for (String element : arrayElements) {
+        if (element.equals(name)) {
+          return true;
+        }
+      }
+    } else {
+      for (String cls : classes) {
+        if (cls.equals(name)) {
+          return true;
+        }
+      }
+    }
+    for (String prefix : packages) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Reduces an array descriptor (e.g., "[[Ljava/lang/String;" or "[I") to the
+  // name of its innermost element type (e.g., "java/lang/String" or "int").
+  private static String elementName(String descriptor) {
+    int dims = 0;
+    while (dims < descriptor.length() && descriptor.charAt(dims) == '[') {
+      dims++;
+    }
+    if (dims == 0) {
+      return descriptor;
+    }
+    String element = descriptor.substring(dims);
+    if (element.startsWith("L") && element.endsWith(";")) {
+      return element.substring(1, element.length() - 1);
+    }
+    if (element.length() == 1) {
+      switch (element.charAt(0)) {
+        case 'Z':
+          return "boolean";
+        case 'B':
+          return "byte";
+        case 'C':
+          return "char";
+        case 'S':
+          return "short";
+        case 'I':
+          return "int";
+        case 'J':
+          return "long";
+        case 'F':
+          return "float";
+        case 'D':
+          return "double";
+        default:
+          break;
+      }
+    }
+    return element;
+  }
+
+  /** Builds an {@link AllocationFilter}. */
+  public static final class Builder {
+    private final List<String> classes = new ArrayList<String>();
+    private final List<String> packages = new ArrayList<String>();
+    private final List<String> arrayElements = new ArrayList<String>();
+    private long minimumSize = 0;
+
+    private Builder() {}
+
+    /**
+     * Matches allocations of instances of exactly the given class (not its subclasses, or arrays).
+     *
+     * @param cls the class.
+     * @return this builder.
+     */
+    public Builder addClass(Class<?> cls) {
+      classes.add(cls.getName().replace('.', '/'));
+      return this;
+    }
+
+    /**
+     * Matches allocations of instances of classes, and arrays of elements of classes, in the given
+     * package or its subpackages.
+     *
+     * @param packageName the '.'-separated name of the package, e.g., "com.example".
+     * @return this builder.
+     */
+    public Builder addPackage(String packageName) {
+      if (packageName.isEmpty()) {
+        throw new IllegalArgumentException("Empty package name");
+      }
+      packages.add(packageName.replace('.', '/') + "/");
+      return this;
+    }
+
+    /**
+     * Matches allocations of arrays (of any dimension) whose innermost elements have the given
+     * type, e.g., {@code byte.class} for {@code byte[]} and {@code byte[][]}.
+     *
+     * @param elementType the element type.
+     * @return this builder.
+     */
+    public Builder addArraysOf(Class<?> elementType) {
+      while (elementType.isArray()) {
+        elementType = elementType.getComponentType();
+      }
+      arrayElements.add(elementType.getName().replace('.', '/'));
+      return this;
+    }
+
+    /**
+     * Matches only allocations of at least the given size.
+     *
+     * @param bytes the minimum size, in bytes.
+     * @return this builder.
+     */
+    public Builder setMinimumSize(long bytes) {
+      if (bytes < 0) {
+        throw new IllegalArgumentException("Negative minimum size: " + bytes);
+      }
+      minimumSize = bytes;
+      return this;
+    }
+
+    /**
+     * Returns the filter.
+     *
+     * @return a new filter.
+     */
+    public AllocationFilter build() {
+      return new AllocationFilter(this);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the number and total size of allocations, by {@link TypeIdRegistry}
+ * ID, as returned by {@link AllocationRecorder#getThreadAccountingSnapshot()}.
+ */
+public final class AllocationHistogram {
+  // The count for type i is at 2 * i, and the bytes at 2 * i + 1.
+  private final long[] totals;
+
+  AllocationHistogram(long[] totals) {
+    this.totals = totals;
+  }
+
+  /**
+   * Returns the number of allocations of the given type.
+   *
+   * @param typeId a {@link TypeIdRegistry} ID.
+   * @return the number of allocations.
+   */
+  public long getCount(int typeId) {
+    int i = 2 * typeId;
+    return (typeId >= 0 && i < totals.length) ? totals[i] : 0;
+  }
+
+  /**
+   * Returns the total size of the allocations of the given type.
+   *
+   * @param typeId a {@link TypeIdRegistry} ID.
+   * @return the number of bytes allocated.
+   */
+  public long getBytes(int typeId) {
+    int i = 2 * typeId + 1;
+    return (typeId >= 0 && i < totals.length) ? totals[i] : 0;
+  }
+
+  /**
+   * Returns the IDs of the types with at least one allocation, in increasing order.
+   *
+   * @return the allocated type IDs.
+   */
+  public int[] getTypeIds() {
+    int[] ids = new int[totals.length / 2];
+    int n = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (totals[2 * i] != 0) {
+        ids[n++] = i;
+      }
+    }
+    return Arrays.copyOf(ids, n);
+  }
+
+  /**
+   * Returns the number of allocations of all types.
+   *
+   * @return the total number of allocations.
+   */
+  public long getTotalCount() {
+    long sum = 0;
+    for (int i = 0; i < totals.length; i += 2) {
+      sum += totals[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the total size of the allocations of all types.
+   *
+   * @return the total number of bytes allocated.
+   */
+  public long getTotalBytes() {
+    long sum = 0;
+    for (int i = 1; i < totals.length; i += 2) {
+      sum += totals[i];
+    }
+    return sum;
+  }
+}
@@ -16,18 +16,22 @@
 
 package com.google.monitoring.runtime.instrumentation;
 
+import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
 
 /**
  * Instruments bytecodes that allocate heap memory to call a recording hook. This will add a static
@@ -45,6 +49,20 @@ public class AllocationInstrumenter implements ClassFileTransformer {
   // guarantee programmatically.
   private static volatile boolean canRewriteBootstrap;
 
+  private static final String AGENT_PACKAGE = "com/google/monitoring/runtime/instrumentation/";
+
+  // The include and exclude rules given as agent arguments.
+  private static volatile ClassFilter classFilter = ClassFilter.ALL;
+
+  // Whether allocation sites call the recorder through invokedynamic, so
+  // that they can be switched off entirely; see AllocationCallSites.
+  private static volatile boolean invokeDynamic = false;
+
+  // Whether allocation sites count allocations without passing the new
+  // objects to the recorder where they can; see
+  // AllocationRecorder.countAllocation.
+  private static volatile boolean countOnly = false;
+
   static boolean canRewriteClass(String className, ClassLoader loader) {
     // There are two conditions under which we don't rewrite:
     //  1. If className was loaded by the bootstrap class loader and
@@ -60,6 +78,12 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     if (className.startsWith("ognl/")) {
       return false;
     }
+    // The agent's own classes run inside the recorder, so recording their
+    // allocations is at best noise, and at worst (e.g., when creating the
+    // recorder's per-thread state) infinite recursion.
+    if ((loader == null) && className.startsWith(AGENT_PACKAGE)) {
+      return false;
+    }
 
     return true;
   }
@@ -68,6 +92,10 @@ public class AllocationInstrumenter implements ClassFileTransformer {
   AllocationInstrumenter() {}
 
   public static void premain(String agentArgs, Instrumentation inst) {
+    exposeCarrierThreads(inst);
+    // Initializes the recorder's per-thread state, which links method handles
+    // and so spins classes, before there are transformers to rewrite them.
+    RecorderState.current();
     AllocationRecorder.setInstrumentation(inst);
 
     // Force eager class loading here.  The instrumenter relies on these classes.  If we load them
@@ -105,11 +133,117 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     ConstructorInstrumenter.subclassesAlso = args.contains("subclassesAlso");
     inst.addTransformer(new ConstructorInstrumenter(), inst.isRetransformClassesSupported());
 
+    // "samplingInterval" turns on sampling with the default interval, and
+    // "samplingInterval=<bytes>" with the given one.  "stackDepth=<frames>"
+    // captures the stacks of sampled allocations, and "lifetimeTracking"
+    // (or "lifetimeTracking=<objects>") tracks how long they live.
+    for (String arg : args) {
+      if (arg.equals("samplingInterval")) {
+        AllocationRecorder.setSamplingInterval(AllocationRecorder.DEFAULT_SAMPLING_INTERVAL);
+      } else if (arg.startsWith("samplingInterval=")) {
+        String bytes = arg.substring("samplingInterval=".length());
+        try {
+          AllocationRecorder.setSamplingInterval(Long.parseLong(bytes));
+        } catch (IllegalArgumentException e) {
+          System.err.println(
+              "Bad sampling interval " + bytes + ", using the default instead: " + e);
+          AllocationRecorder.setSamplingInterval(AllocationRecorder.DEFAULT_SAMPLING_INTERVAL);
+        }
+      } else if (arg.startsWith("stackDepth=")) {
+        String frames = arg.substring("stackDepth=".length());
+        try {
+          AllocationRecorder.setStackDepth(Integer.parseInt(frames));
+        } catch (IllegalArgumentException e) {
+          System.err.println("Bad stack depth " + frames + ", not capturing stacks: " + e);
+        }
+      } else if (arg.equals("lifetimeTracking")) {
+        AllocationRecorder.setLifetimeTracking(AllocationRecorder.DEFAULT_LIFETIME_TRACKING);
+      } else if (arg.startsWith("lifetimeTracking=")) {
+        String objects = arg.substring("lifetimeTracking=".length());
+        try {
+          AllocationRecorder.setLifetimeTracking(Integer.parseInt(objects));
+        } catch (IllegalArgumentException e) {
+          System.err.println(
+              "Bad lifetime tracking capacity " + objects + ", using the default instead: " + e);
+          AllocationRecorder.setLifetimeTracking(AllocationRecorder.DEFAULT_LIFETIME_TRACKING);
+        }
+      }
+    }
+
+    // "histogramFile=<path>" keeps a histogram of allocations by type in the
+    // given memory-mapped file.
+    for (String arg : args) {
+      if (arg.startsWith("histogramFile=")) {
+        String path = arg.substring("histogramFile=".length());
+        try {
+          AllocationRecorder.setHistogramFile(path);
+        } catch (IOException e) {
+          System.err.println("Unable to create allocation histogram " + path + ": " + e);
+        }
+      }
+    }
+
+    // Gives each virtual thread its own recorder state, rather than sharing
+    // its carrier thread's.
+    AllocationRecorder.setVirtualThreadAttribution(args.contains("virtualThreadAttribution"));
+
+    // Counts each thread's allocations by type.
+    AllocationRecorder.setThreadAccounting(args.contains("threadAccounting"));
+
+    // Counts the allocations made at each allocation site.
+    AllocationSiteRegistry.setCountingEnabled(args.contains("countSites"));
+
+    // Checks the array sizes we compute against Instrumentation.getObjectSize().
+    AllocationRecorder.setVerifyArraySizes(args.contains("verifyArraySizes"));
+
+    // Links allocation sites through AllocationCallSites, and starts with
+    // recording turned off, respectively.
+    invokeDynamic = args.contains("invokedynamic");
+    AllocationRecorder.setRecordingEnabled(!args.contains("recordingDisabled"));
+
+    // Keeps the new objects from escaping into the recorder, at the cost of
+    // not passing them to samplers.
+    countOnly = args.contains("countOnly");
+
+    // "include=<rule>", "exclude=<rule>" and "filterFile=<path>" limit which
+    // classes are rewritten; see ClassFilter.
+    try {
+      classFilter = ClassFilter.fromAgentArgs(args);
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println("Unable to read class filter, rewriting all classes: " + e);
+    }
+
     if (!args.contains("manualOnly")) {
       bootstrap(inst);
     }
   }
 
+  /**
+   * On JDKs with virtual threads, gives the agent access to {@code
+   * jdk.internal.misc.CarrierThreadLocal} and {@code Thread.currentCarrierThread()}, so that {@link
+   * RecorderState} can keep its state per carrier thread rather than per virtual thread. Must run
+   * before {@link RecorderState} is initialized.
+   */
+  private static void exposeCarrierThreads(Instrumentation inst) {
+    Module base = Object.class.getModule();
+    try {
+      Class.forName("jdk.internal.misc.CarrierThreadLocal");
+    } catch (ClassNotFoundException e) {
+      return;
+    }
+    if (!inst.isModifiableModule(base)) {
+      return;
+    }
+    Set<Module> agent = Collections.singleton(AllocationInstrumenter.class.getModule());
+    inst.redefineModule(
+        base,
+        Collections.<Module>emptySet(),
+        Collections.singletonMap("jdk.internal.misc", agent),
+        Collections.singletonMap("java.lang", agent),
+        Collections.<Class<?>>emptySet(),
+        Collections.<Class<?>, List<Class<?>>>emptyMap());
+  }
+
   private static void bootstrap(Instrumentation inst) {
     inst.addTransformer(new AllocationInstrumenter(), inst.isRetransformClassesSupported());
 
@@ -142,11 +276,15 @@ public class AllocationInstrumenter implements ClassFileTransformer {
       System.err.println("AllocationInstrumenter was unable to retransform java.lang.Object.");
     }
 
-    // Get the set of already loaded classes that can be rewritten.
+    // Get the set of already loaded classes that can be rewritten.  Those
+    // that the filter leaves alone aren't worth retransforming.
     Class<?>[] classes = inst.getAllLoadedClasses();
     ArrayList<Class<?>> classList = new ArrayList<Class<?>>();
+    ClassFilter filter = classFilter;
     for (int i = 0; i < classes.length; i++) {
-      if (inst.isModifiableClass(classes[i]) && classes[i] != Object.class) {
+      if (inst.isModifiableClass(classes[i])
+          && classes[i] != Object.class
+          && filter.matches(classes[i])) {
         classList.add(classes[i]);
       }
     }
@@ -160,6 +298,20 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     }
   }
 
+  @Override
+  public byte[] transform(
+      Module module,
+      ClassLoader loader,
+      String className,
+      Class<?> classBeingRedefined,
+      ProtectionDomain protectionDomain,
+      byte[] origBytes) {
+    if (!classFilter.matches(className, module, loader)) {
+      return null;
+    }
+    return transform(loader, className, classBeingRedefined, protectionDomain, origBytes);
+  }
+
   @Override
   public byte[] transform(
       ClassLoader loader,
@@ -171,13 +323,18 @@ public class AllocationInstrumenter implements ClassFileTransformer {
       return null;
     }
 
-    return instrument(origBytes, loader);
+    byte[] instrumented = instrument(origBytes, loader);
+    // The class has nothing to instrument, so the JVM can keep the bytes it
+    // has.
+    return (instrumented == origBytes) ? null : instrumented;
   }
 
   /**
    * Given the bytes representing a class, go through all the bytecode in it and instrument any
    * occurrences of new/newarray/anewarray/multianewarray with pre- and post-allocation hooks. Even
    * more fun, intercept calls to the reflection API's Array.newInstance() and instrument those too.
+   * Methods that have none of these are left as they are, and if no method has any, the original
+   * bytes are returned.
    *
    * @param originalBytes the original <code>byte[]</code> code.
    * @param recorderClass the <code>String</code> internal name of the class containing the recorder
@@ -188,18 +345,65 @@ public class AllocationInstrumenter implements ClassFileTransformer {
    */
   public static byte[] instrument(
       byte[] originalBytes, String recorderClass, String recorderMethod, ClassLoader loader) {
+    return instrument(originalBytes, recorderClass, recorderMethod, false, false, false, loader);
+  }
+
+  static byte[] instrument(
+      byte[] originalBytes,
+      String recorderClass,
+      String recorderMethod,
+      boolean useTypeIds,
+      boolean useInvokeDynamic,
+      boolean countOnly,
+      ClassLoader loader) {
     try {
       ClassReader cr = new ClassReader(originalBytes);
-      // The verifier in JDK7+ requires accurate stackmaps, so we use
-      // COMPUTE_FRAMES.
-      ClassWriter cw = new StaticClassWriter(cr, ClassWriter.COMPUTE_FRAMES, loader);
-
-      VerifyingClassAdapter vcw = new VerifyingClassAdapter(cw, originalBytes, cr.getClassName());
-      ClassVisitor adapter = new AllocationClassAdapter(vcw, recorderClass, recorderMethod);
-
-      cr.accept(adapter, ClassReader.SKIP_FRAMES);
-
-      return vcw.toByteArray();
+      // The class may be the superclass of one whose frames are computed
+      // later, which can then find it without reading its class file again.
+      ClassHierarchy.record(loader, cr);
+      // Most methods don't allocate, and many classes have no methods that
+      // do.  Those are left as they are, which is much cheaper than
+      // rewriting them.
+      AllocationScanner scanner = AllocationScanner.scan(cr);
+      if (!scanner.allocates()) {
+        return originalBytes;
+      }
+      // Class files from Java 7 on have stack map frames for all of their
+      // methods, so the rewritten methods can keep them, and only the code
+      // inserted into them needs new ones.  That is much cheaper than
+      // computing them all again, which also means looking up (and maybe
+      // loading) the classes that they mention.
+      if (cr.readUnsignedShort(6) >= Opcodes.V1_7) {
+        try {
+          return rewrite(
+              cr,
+              originalBytes,
+              recorderClass,
+              recorderMethod,
+              useTypeIds,
+              useInvokeDynamic,
+              countOnly,
+              scanner,
+              true,
+              loader);
+        } catch (RuntimeException e) {
+          logger.log(
+              Level.FINE,
+              "Failed to keep the frames of " + cr.getClassName() + "; computing them.",
+              e);
+        }
+      }
+      return rewrite(
+          cr,
+          originalBytes,
+          recorderClass,
+          recorderMethod,
+          useTypeIds,
+          useInvokeDynamic,
+          countOnly,
+          scanner,
+          false,
+          loader);
     } catch (RuntimeException e) {
       logger.log(Level.WARNING, "Failed to instrument class.", e);
       throw e;
@@ -209,9 +413,55 @@ public class AllocationInstrumenter implements ClassFileTransformer {
     }
   }
 
+  private static byte[] rewrite(
+      ClassReader cr,
+      byte[] originalBytes,
+      String recorderClass,
+      String recorderMethod,
+      boolean useTypeIds,
+      boolean useInvokeDynamic,
+      boolean countOnly,
+      AllocationScanner scanner,
+      boolean keepFrames,
+      ClassLoader loader) {
+    // The writer is made from the reader, so that it copies the methods that
+    // aren't rewritten, frames and all.  When the frames of the rewritten
+    // methods aren't kept, they are computed from scratch: the verifier in
+    // JDK7+ requires accurate stackmaps.
+    ClassWriter cw =
+        keepFrames
+            ? new ClassWriter(cr, ClassWriter.COMPUTE_MAXS)
+            : new StaticClassWriter(cr, ClassWriter.COMPUTE_FRAMES, loader);
+
+    VerifyingClassAdapter vcw =
+        new VerifyingClassAdapter(cw, originalBytes, cr.getClassName(), scanner.unchanged());
+    ClassVisitor adapter =
+        new AllocationClassAdapter(
+            vcw,
+            recorderClass,
+            recorderMethod,
+            useTypeIds,
+            useInvokeDynamic,
+            countOnly,
+            loader,
+            scanner.unchanged(),
+            keepFrames);
+
+    cr.accept(adapter, keepFrames ? ClassReader.EXPAND_FRAMES : ClassReader.SKIP_FRAMES);
+
+    return vcw.toByteArray();
+  }
+
   /**
    * @see #instrument(byte[], String, String, ClassLoader) documentation for the 4-arg version. This
-   *     is a convenience version that uses the recorder in this class.
+   *     is a convenience version that uses the recorder in {@link AllocationRecorder}. Allocation
+   *     sites are tagged with {@link TypeIdRegistry} IDs assigned in this JVM, so the result is
+   *     only good for loading into this JVM. If the agent was given the {@code invokedynamic}
+   *     argument, the sites of classes not loaded by the bootstrap class loader are linked through
+   *     {@link AllocationCallSites}; those of bootstrap classes are not, since linking them would
+   *     allocate in the very classes that {@code invokedynamic} itself depends on. If it was given
+   *     the {@code countOnly} argument, the sites don't pass the new objects to the recorder where
+   *     they can avoid it.
    * @param originalBytes The original version of the class.
    * @param loader The ClassLoader of this class.
    * @return the instrumented version of this class.
@@ -221,6 +471,9 @@ public class AllocationInstrumenter implements ClassFileTransformer {
         originalBytes,
         "com/google/monitoring/runtime/instrumentation/AllocationRecorder",
         "recordAllocation",
+        true,
+        invokeDynamic && loader != null,
+        countOnly,
         loader);
   }
 }
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How long sampled allocations live (see {@link AllocationRecorder#setLifetimeTracking(int)}).
+ * Each sampled object is watched with a {@link WeakReference}, and a daemon thread records its
+ * lifetime when it is collected, in histograms by type, by allocation site, and over all
+ * allocations. The objects that are still alive make up the {@link LiveHeapSnapshot live heap
+ * profile}.
+ *
+ * <p>Lifetimes are measured both in wall time and in garbage collections: the number of
+ * collections, by any of the JVM's collectors, that ended while the object was alive, including
+ * the one that found it unreachable. Both are bucketed by powers of two; see {@link
+ * #getTimeBucketLowerBound(int)} and {@link #getCollectionBucketLowerBound(int)}. The counts are
+ * numbers of samples, not estimated numbers of allocations.
+ *
+ * <p>The tracker's bookkeeping is kept in primitive arrays allocated when tracking is turned on,
+ * and the histograms in arrays that grow with the number of types and sites seen, up to {@link
+ * #MAX_TYPES} and {@link #MAX_SITES}; lifetimes of types and sites with larger IDs are only counted
+ * over all allocations. Only the references themselves are allocated per sample, and only as many
+ * objects as the tracker has room for are tracked at once; later samples are dropped (see {@link
+ * #getDroppedCount()}) until some of them are collected.
+ */
+public final class AllocationLifetimes {
+  /** The number of buckets in a wall time histogram. */
+  public static final int TIME_BUCKET_COUNT = 32;
+
+  /** The number of buckets in a garbage collection histogram. */
+  public static final int COLLECTION_BUCKET_COUNT = 16;
+
+  /** The largest number of types whose lifetimes are kept separately. */
+  public static final int MAX_TYPES = 8192;
+
+  /** The largest number of allocation sites whose lifetimes are kept separately. */
+  public static final int MAX_SITES = 16384;
+
+  // Each row of a histogram table holds the time buckets, then the
+  // collection buckets.
+  private static final int ROW = TIME_BUCKET_COUNT + COLLECTION_BUCKET_COUNT;
+
+  // How long the tracker thread waits for a collected object before checking
+  // whether it should stop.
+  private static final long POLL_MILLIS = 100;
+
+  // Protects the histograms.  They are only written by tracker threads, so
+  // this is only contended by readers.
+  private static final Object histogramLock = new Object();
+
+  private static final long[] totals = new long[ROW];
+  private static long[] types = new long[64 * ROW];
+  private static long[] sites = new long[64 * ROW];
+
+  private static final AtomicLong dropped = new AtomicLong();
+
+  // Null when lifetimes aren't being tracked.
+  private static volatile Tracker tracker;
+
+  // Protects mutations of tracker.
+  private static final Object trackerLock = new Object();
+
+  private AllocationLifetimes() {}
+
+  /**
+   * Returns the lower bound of the given bucket of a wall time histogram, in milliseconds. Bucket 0
+   * holds lifetimes under a millisecond, and bucket {@code i > 0} those of at least {@code 2^(i -
+   * 1)} milliseconds and under {@code 2^i}, except for the last one, which has no upper bound.
+   *
+   * @param bucket a bucket index.
+   * @return the shortest lifetime counted in the bucket, in milliseconds.
+   */
+  public static long getTimeBucketLowerBound(int bucket) {
+    return lowerBound(bucket, TIME_BUCKET_COUNT);
+  }
+
+  /**
+   * Returns the lower bound of the given bucket of a garbage collection histogram. Bucket 0 holds
+   * objects collected before any collection was seen to end, and bucket {@code i > 0} those that
+   * lived through at least {@code 2^(i - 1)} collections and fewer than {@code 2^i}, except for the
+   * last one, which has no upper bound.
+   *
+   * @param bucket a bucket index.
+   * @return the fewest collections counted in the bucket.
+   */
+  public static long getCollectionBucketLowerBound(int bucket) {
+    return lowerBound(bucket, COLLECTION_BUCKET_COUNT);
+  }
+
+  private static long lowerBound(int bucket, int buckets) {
+    if (bucket < 0 || bucket >= buckets) {
+      throw new IllegalArgumentException("Unknown bucket " + bucket);
+    }
+    return (bucket == 0) ? 0 : 1L << (bucket - 1);
+  }
+
+  /**
+   * Returns the number of collected samples in each bucket of the wall time histogram of all
+   * allocations.
+   *
+   * @return the histogram, indexed by bucket.
+   */
+  public static long[] getTimeHistogram() {
+    synchronized (histogramLock) {
+      return Arrays.copyOfRange(totals, 0, TIME_BUCKET_COUNT);
+    }
+  }
+
+  /**
+   * Returns the number of collected samples in each bucket of the garbage collection histogram of
+   * all allocations.
+   *
+   * @return the histogram, indexed by bucket.
+   */
+  public static long[] getCollectionHistogram() {
+    synchronized (histogramLock) {
+      return Arrays.copyOfRange(totals, TIME_BUCKET_COUNT, ROW);
+    }
+  }
+
+  /**
+   * Returns the wall time histogram of the samples of the given type.
+   *
+   * @param typeId the {@link TypeIdRegistry} ID of the type.
+   * @return the histogram, indexed by bucket.
+   */
+  public static long[] getTimeHistogramForType(int typeId) {
+    synchronized (histogramLock) {
+      return row(types, typeId, 0, TIME_BUCKET_COUNT);
+    }
+  }
+
+  /**
+   * Returns the garbage collection histogram of the samples of the given type.
+   *
+   * @param typeId the {@link TypeIdRegistry} ID of the type.
+   * @return the histogram, indexed by bucket.
+   */
+  public static long[] getCollectionHistogramForType(int typeId) {
+    synchronized (histogramLock) {
+      return row(types, typeId, TIME_BUCKET_COUNT, COLLECTION_BUCKET_COUNT);
+    }
+  }
+
+  /**
+   * Returns the wall time histogram of the samples allocated at the given site.
+   *
+   * @param siteId the {@link AllocationSiteRegistry} ID of the site.
+   * @return the histogram, indexed by bucket.
+   */
+  public static long[] getTimeHistogramForSite(int siteId) {
+    synchronized (histogramLock) {
+      return row(sites, siteId, 0, TIME_BUCKET_COUNT);
+    }
+  }
+
+  /**
+   * Returns the garbage collection histogram of the samples allocated at the given site.
+   *
+   * @param siteId the {@link AllocationSiteRegistry} ID of the site.
+   * @return the histogram, indexed by bucket.
+   */
+  public static long[] getCollectionHistogramForSite(int siteId) {
+    synchronized (histogramLock) {
+      return row(sites, siteId, TIME_BUCKET_COUNT, COLLECTION_BUCKET_COUNT);
+    }
+  }
+
+  // Called with histogramLock held.
+  private static long[] row(long[] table, int id, int offset, int length) {
+    if (id < 0) {
+      throw new IllegalArgumentException("Negative ID " + id);
+    }
+    long[] result = new long[length];
+    int start = id * ROW + offset;
+    if (start < table.length) {
+      System.arraycopy(table, start, result, 0, length);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of sampled objects that are being tracked and haven't been collected yet.
+   *
+   * @return the number of live tracked objects.
+   */
+  public static int getTrackedCount() {
+    Tracker t = tracker;
+    if (t == null) {
+      return 0;
+    }
+    synchronized (t) {
+      return t.slots.length - t.freeCount;
+    }
+  }
+
+  /**
+   * Returns the number of samples that weren't tracked because the tracker had no room for them.
+   *
+   * @return the number of dropped samples.
+   */
+  public static long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Starts tracking sampled objects, with room for the given number at once, or stops if it is 0.
+   * Objects tracked before a change are forgotten, but their lifetimes so far stay in the
+   * histograms.
+   */
+  static void setCapacity(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Negative capacity: " + capacity);
+    }
+    synchronized (trackerLock) {
+      Tracker old = tracker;
+      if (old != null) {
+        if (old.slots.length == capacity) {
+          return;
+        }
+        old.active = false;
+      }
+      if (capacity == 0) {
+        tracker = null;
+        return;
+      }
+      Tracker t = new Tracker(capacity);
+      Thread thread =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  t.drainLoop();
+                }
+              },
+              "AllocationLifetimes");
+      thread.setDaemon(true);
+      thread.start();
+      tracker = t;
+    }
+  }
+
+  static int getCapacity() {
+    Tracker t = tracker;
+    return (t == null) ? 0 : t.slots.length;
+  }
+
+  /**
+   * Returns an estimate of the live heap, from the tracked objects that haven't been collected.
+   * Returns an empty snapshot if lifetimes aren't being tracked.
+   */
+  static LiveHeapSnapshot snapshot() {
+    Tracker t = tracker;
+    if (t == null) {
+      return new LiveHeapSnapshot(new int[0], new int[0], new int[0], new long[0], new double[0]);
+    }
+    return t.snapshot();
+  }
+
+  /** Returns true iff sampled objects should be passed to {@link #track}. */
+  static boolean isActive() {
+    return tracker != null;
+  }
+
+  /**
+   * Starts tracking the given sampled object. Called by the recorder, so the thread's allocations
+   * are not being recorded.
+   *
+   * @param siteId the {@link AllocationSiteRegistry} ID of the site, or -1 if it isn't known.
+   * @param stackId the {@link AllocationStackTable} ID of the stack, or {@link
+   *     AllocationStackTable#NO_STACK}.
+   * @param size the size of the object.
+   * @param weight the {@link AllocationRecorder#getSamplingWeight(long) sampling weight} of the
+   *     sample.
+   */
+  static void track(Object obj, int typeId, int siteId, int stackId, long size, double weight) {
+    Tracker t = tracker;
+    if (t != null) {
+      t.track(obj, typeId, siteId, stackId, size, weight);
+    }
+  }
+
+  // The number of collections that have ended so far, by all collectors.
+  // Doesn't allocate, so it is cheap enough to call for each sample.
+  private static long collectionCount(GarbageCollectorMXBean[] collectors) {
+    long count = 0;
+    for (GarbageCollectorMXBean collector : collectors) {
+      count += Math.max(0, collector.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static void recordLifetime(int typeId, int siteId, long nanos, long collections) {
+    int timeBucket = bucket(TimeUnit.NANOSECONDS.toMillis(nanos), TIME_BUCKET_COUNT);
+    int collectionBucket = TIME_BUCKET_COUNT + bucket(collections, COLLECTION_BUCKET_COUNT);
+    synchronized (histogramLock) {
+      totals[timeBucket]++;
+      totals[collectionBucket]++;
+      if (typeId >= 0 && typeId < MAX_TYPES) {
+        types = ensureRow(types, typeId);
+        types[typeId * ROW + timeBucket]++;
+        types[typeId * ROW + collectionBucket]++;
+      }
+      if (siteId >= 0 && siteId < MAX_SITES) {
+        sites = ensureRow(sites, siteId);
+        sites[siteId * ROW + timeBucket]++;
+        sites[siteId * ROW + collectionBucket]++;
+      }
+    }
+  }
+
+  // Bucket 0 is for 0, and bucket i for [2^(i - 1), 2^i).
+  private static int bucket(long value, int buckets) {
+    int bucket = (value <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    return Math.min(bucket, buckets - 1);
+  }
+
+  // Called with histogramLock held.
+  private static long[] ensureRow(long[] table, int id) {
+    int needed = (id + 1) * ROW;
+    if (needed <= table.length) {
+      return table;
+    }
+    int length = table.length;
+    while (length < needed) {
+      length *= 2;
+    }
+    return Arrays.copyOf(table, length);
+  }
+
+  // Watches a tracked object.  The index is that of its slot in the
+  // tracker's arrays.
+  private static final class Slot extends WeakReference<Object> {
+    final int index;
+
+    Slot(Object referent, ReferenceQueue<Object> queue, int index) {
+      super(referent, queue);
+      this.index = index;
+    }
+  }
+
+  // The tracked objects, in parallel arrays indexed by slot.  Fields other
+  // than active are guarded by the tracker itself.
+  private static final class Tracker {
+    final GarbageCollectorMXBean[] collectors;
+    final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    // The references must stay reachable to be enqueued.
+    final Slot[] slots;
+    final long[] birthNanos;
+    final long[] birthCollections;
+    final int[] typeIds;
+    final int[] siteIds;
+    final int[] stackIds;
+    final long[] sizes;
+    final double[] weights;
+
+    // A stack of the indices of the empty slots.
+    final int[] free;
+    int freeCount;
+
+    volatile boolean active = true;
+
+    Tracker(int capacity) {
+      List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+      collectors = beans.toArray(new GarbageCollectorMXBean[0]);
+      slots = new Slot[capacity];
+      birthNanos = new long[capacity];
+      birthCollections = new long[capacity];
+      typeIds = new int[capacity];
+      siteIds = new int[capacity];
+      stackIds = new int[capacity];
+      sizes = new long[capacity];
+      weights = new double[capacity];
+      free = new int[capacity];
+      for (int i = 0; i < capacity; i++) {
+        free[i] = capacity - 1 - i;
+      }
+      freeCount = capacity;
+    }
+
+    void track(Object obj, int typeId, int siteId, int stackId, long size, double weight) {
+      long collections = collectionCount(collectors);
+      long now = System.nanoTime();
+      synchronized (this) {
+        if (!active || freeCount == 0) {
+          dropped.incrementAndGet();
+          return;
+        }
+        int index = free[--freeCount];
+        birthNanos[index] = now;
+        birthCollections[index] = collections;
+        typeIds[index] = typeId;
+        siteIds[index] = siteId;
+        stackIds[index] = stackId;
+        sizes[index] = size;
+        weights[index] = weight;
+        slots[index] = new Slot(obj, queue, index);
+      }
+    }
+
+    LiveHeapSnapshot snapshot() {
+      // Nothing allocated while taking the snapshot is recorded, so this
+      // thread doesn't add to the slots while we read them.  Null if the
+      // thread is already in the recorder, which works out the same.
+      RecorderState state = RecorderState.enter();
+      try {
+        int[] liveTypeIds;
+        int[] liveSiteIds;
+        int[] liveStackIds;
+        long[] liveSizes;
+        double[] liveWeights;
+        int n = 0;
+        synchronized (this) {
+          int count = slots.length - freeCount;
+          liveTypeIds = new int[count];
+          liveSiteIds = new int[count];
+          liveStackIds = new int[count];
+          liveSizes = new long[count];
+          liveWeights = new double[count];
+          for (int i = 0; i < slots.length && n < count; i++) {
+            Slot slot = slots[i];
+            // Slots whose objects have been collected, but which the tracker
+            // thread hasn't got to yet, are left out.
+            if (slot != null && slot.get() != null) {
+              liveTypeIds[n] = typeIds[i];
+              liveSiteIds[n] = siteIds[i];
+              liveStackIds[n] = stackIds[i];
+              liveSizes[n] = sizes[i];
+              liveWeights[n] = weights[i];
+              n++;
+            }
+          }
+        }
+        return new LiveHeapSnapshot(
+            Arrays.copyOf(liveTypeIds, n),
+            Arrays.copyOf(liveSiteIds, n),
+            Arrays.copyOf(liveStackIds, n),
+            Arrays.copyOf(liveSizes, n),
+            Arrays.copyOf(liveWeights, n));
+      } finally {
+        if (state != null) {
+          state.exit();
+        }
+      }
+    }
+
+    void drainLoop() {
+      // Nothing allocated by this thread is recorded.
+      RecorderState.enter();
+      while (active) {
+        Slot slot;
+        try {
+          slot = (Slot) queue.remove(POLL_MILLIS);
+        } catch (InterruptedException e) {
+          continue;
+        }
+        if (slot == null) {
+          continue;
+        }
+        long now = System.nanoTime();
+        long collections = collectionCount(collectors);
+        int index = slot.index;
+        int typeId;
+        int siteId;
+        long nanos;
+        long lived;
+        synchronized (this) {
+          typeId = typeIds[index];
+          siteId = siteIds[index];
+          nanos = now - birthNanos[index];
+          lived = collections - birthCollections[index];
+          slots[index] = null;
+          free[freeCount++] = index;
+        }
+        recordLifetime(typeId, siteId, nanos, lived);
+      }
+    }
+  }
+}
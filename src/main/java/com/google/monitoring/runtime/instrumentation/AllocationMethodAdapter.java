@@ -18,14 +18,19 @@ package com.google.monitoring.runtime.instrumentation;
 
 import org.objectweb.asm.Opcodes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 
 /**
@@ -57,6 +62,36 @@ class AllocationMethodAdapter extends MethodVisitor {
    */
   public static final String CLASS_RECORDER_SIG = "(Ljava/lang/Class;Ljava/lang/Object;)V";
 
+  /**
+   * Like RECORDER_SIGNATURE, but with the allocation site identified by an int {@link
+   * AllocationSiteRegistry} ID, which also determines the type. The site ID comes last, so that no
+   * stack shuffling is needed to push it.
+   */
+  public static final String SITE_RECORDER_SIG = "(ILjava/lang/Object;I)V";
+
+  /**
+   * Like RECORDER_SIGNATURE, but with the component type of the array passed as a Class, for the
+   * reflective array allocations whose type is only known at runtime. Used along with
+   * SITE_RECORDER_SIG.
+   */
+  public static final String ARRAY_CLASS_RECORDER_SIG =
+      "(ILjava/lang/Class;Ljava/lang/Object;)V";
+
+  /**
+   * The method that counts allocations without being passed the new object, in the counter-only
+   * mode; see {@link AllocationRecorder#countAllocation(Class, int)}.
+   */
+  static final String COUNTER_METHOD = "countAllocation";
+
+  /** The signature of the counter for instances: the class, and the site ID. */
+  static final String INSTANCE_COUNTER_SIG = "(Ljava/lang/Class;I)V";
+
+  /**
+   * The signature of the counter for one-dimensional arrays: the length, the {@link ObjectLayout}
+   * kind of the array, and the site ID.
+   */
+  static final String ARRAY_COUNTER_SIG = "(III)V";
+
   // A helper struct for describing the scope of temporary local variables we
   // create as part of the instrumentation.
   private static class VariableScope {
@@ -81,6 +116,14 @@ class AllocationMethodAdapter extends MethodVisitor {
         "byte", "short", "int", "long"
       };
 
+  // Dictionary of primitive type opcode to ObjectLayout kind.
+  private static final int[] primitiveArrayKinds =
+      new int[] {
+        -1, -1, -1, -1,
+        ObjectLayout.BOOLEAN, ObjectLayout.CHAR, ObjectLayout.FLOAT, ObjectLayout.DOUBLE,
+        ObjectLayout.BYTE, ObjectLayout.SHORT, ObjectLayout.INT, ObjectLayout.LONG
+      };
+
   // To track the difference between <init>'s called as the result of a NEW
   // and <init>'s called because of superclass initialization, we track the
   // number of NEWs that still need to have their <init>'s called.
@@ -101,6 +144,33 @@ class AllocationMethodAdapter extends MethodVisitor {
   private final String recorderClass;
   private final String recorderMethod;
 
+  // Whether the recorder is called through invokedynamic sites linked by
+  // AllocationCallSites rather than directly.  Only used with useTypeIds.
+  private final boolean useInvokeDynamic;
+
+  // Whether sites whose size can be worked out without the new object call
+  // AllocationRecorder.countAllocation, which isn't passed it.  Only used
+  // with useTypeIds.
+  private final boolean countOnly;
+
+  // The class loader of the class, for working out whether the sizes of
+  // the instances it allocates can be.  Only used with countOnly.
+  private final ClassLoader loader;
+
+  // Whether the recorder takes AllocationSiteRegistry and TypeIdRegistry IDs
+  // (SITE_RECORDER_SIG and ARRAY_CLASS_RECORDER_SIG) instead of descriptors.
+  // Since the IDs are assigned here, this only makes sense when the
+  // instrumented code runs in the same JVM, i.e., when we are an agent.
+  private final boolean useTypeIds;
+
+  // Where we are, for registering allocation sites.  Only used with
+  // useTypeIds.
+  private final String className;
+  private final String methodName;
+  private final String methodDesc;
+  private int currentLine = -1;
+  private int siteIndex = 0;
+
   /**
    * The LocalVariablesSorter used in this adapter. Lame that it's public but the ASM architecture
    * requires setting it from the outside after this AllocationMethodAdapter is fully constructed
@@ -109,11 +179,133 @@ class AllocationMethodAdapter extends MethodVisitor {
    */
   public LocalVariablesSorter lvs = null;
 
+  /**
+   * Set by AllocationClassAdapter.visitMethod() when the original stack map frames are kept,
+   * rather than computed again by the class writer. It sits between this adapter and the writer,
+   * and knows the types of the locals and the stack at each point, which is what the frames at the
+   * branch targets that this adapter inserts are made of.
+   */
+  AnalyzerAdapter analyzer = null;
+
+  // The frames of the inserted branch targets that haven't been visited yet,
+  // from the branches to them seen so far.
+  private Map<Label, Object[][]> branchFrames = null;
+
   /** A new AllocationMethodAdapter is created for each method that gets visited. */
   public AllocationMethodAdapter(MethodVisitor mv, String recorderClass, String recorderMethod) {
+    this(mv, recorderClass, recorderMethod, false, false, false, null, null, null, null);
+  }
+
+  AllocationMethodAdapter(
+      MethodVisitor mv,
+      String recorderClass,
+      String recorderMethod,
+      boolean useTypeIds,
+      boolean useInvokeDynamic,
+      boolean countOnly,
+      ClassLoader loader,
+      String className,
+      String methodName,
+      String methodDesc) {
     super(Opcodes.ASM9, mv);
     this.recorderClass = recorderClass;
     this.recorderMethod = recorderMethod;
+    this.useTypeIds = useTypeIds;
+    this.useInvokeDynamic = useInvokeDynamic;
+    this.countOnly = countOnly;
+    this.loader = loader;
+    this.className = className;
+    this.methodName = methodName;
+    this.methodDesc = methodDesc;
+  }
+
+  // Branches to one of the labels this adapter inserts.  When the original
+  // frames are kept, notes what the frame at the label has to be.
+  private void visitBranch(int opcode, Label label) {
+    if (analyzer == null) {
+      super.visitJumpInsn(opcode, label);
+    } else if (opcode == Opcodes.GOTO) {
+      // The analyzer forgets the state after a GOTO, until the next frame.
+      mergeBranchFrame(label);
+      super.visitJumpInsn(opcode, label);
+    } else {
+      super.visitJumpInsn(opcode, label);
+      mergeBranchFrame(label);
+    }
+  }
+
+  // Visits one of the labels this adapter inserts, which is the target of
+  // branches visited with visitBranch.  When the original frames are kept,
+  // visits the frame for it.  Backward branches must agree with the frame
+  // at the label, which is what the code falls through with.
+  private void visitBranchTarget(Label label) {
+    if (analyzer == null) {
+      super.visitLabel(label);
+      return;
+    }
+    mergeBranchFrame(label);
+    super.visitLabel(label);
+    Object[][] frame = branchFrames.remove(label);
+    Object[] locals = frameTypes(frame[0], true);
+    Object[] stack = frameTypes(frame[1], false);
+    super.visitFrame(Opcodes.F_NEW, locals.length, locals, stack.length, stack);
+  }
+
+  // Merges the state the analyzer is in into the frame for the label, if
+  // this point is reachable.  The inserted code only ever gets to a label
+  // with the same kinds of values, but the references can be of different
+  // types, e.g., arrays with fewer dimensions.
+  private void mergeBranchFrame(Label label) {
+    if (analyzer.locals == null) {
+      return;
+    }
+    Object[][] state = {analyzer.locals.toArray(), analyzer.stack.toArray()};
+    if (branchFrames == null) {
+      branchFrames = new HashMap<>();
+    }
+    Object[][] frame = branchFrames.get(label);
+    if (frame == null) {
+      branchFrames.put(label, state);
+      return;
+    }
+    for (int i = 0; i < 2; i++) {
+      // Locals past the end of either are unused.
+      Object[] types = Arrays.copyOf(frame[i], Math.min(frame[i].length, state[i].length));
+      for (int j = 0; j < types.length; j++) {
+        if (!state[i][j].equals(types[j])) {
+          types[j] =
+              (state[i][j] instanceof String && types[j] instanceof String)
+                  ? "java/lang/Object"
+                  : Opcodes.TOP;
+        }
+      }
+      frame[i] = types;
+    }
+  }
+
+  // Turns the analyzer's types, where longs and doubles take two entries,
+  // into those of a frame, where they take one.  Trailing unused locals are
+  // left out.
+  private static Object[] frameTypes(Object[] types, boolean locals) {
+    List<Object> result = new ArrayList<>(types.length);
+    for (int i = 0; i < types.length; i++) {
+      result.add(types[i]);
+      if (types[i] == Opcodes.LONG || types[i] == Opcodes.DOUBLE) {
+        i++;
+      }
+    }
+    if (locals) {
+      while (!result.isEmpty() && result.get(result.size() - 1) == Opcodes.TOP) {
+        result.remove(result.size() - 1);
+      }
+    }
+    return result.toArray();
+  }
+
+  @Override
+  public void visitLineNumber(int line, Label start) {
+    currentLine = line;
+    super.visitLineNumber(line, start);
   }
 
   /**
@@ -128,7 +320,7 @@ class AllocationMethodAdapter extends MethodVisitor {
       if (operand >= 4 && operand <= 11) {
         super.visitInsn(Opcodes.DUP); // -> stack: ... count count
         super.visitIntInsn(opcode, operand); // -> stack: ... count aref
-        invokeRecordAllocation(primitiveTypeNames[operand]);
+        invokeRecordAllocation(primitiveTypeNames[operand], primitiveArrayKinds[operand]);
         // -> stack: ... aref
       } else {
         logger.severe(
@@ -143,14 +335,27 @@ class AllocationMethodAdapter extends MethodVisitor {
   }
 
   // Helper method to compute class name as a String and push it on the stack.
+  // When using type IDs, the recorder gets the class itself instead.
   // pre: stack: ... class
   // post: stack: ... class className
   private void pushClassNameOnStack() {
     super.visitInsn(Opcodes.DUP);
     // -> stack: ... class class
-    super.visitMethodInsn(
-        Opcodes.INVOKEVIRTUAL, "java/lang/Class", "getName", "()Ljava/lang/String;", false);
-    // -> stack: ... class classNameDotted
+    if (!useTypeIds) {
+      super.visitMethodInsn(
+          Opcodes.INVOKEVIRTUAL, "java/lang/Class", "getName", "()Ljava/lang/String;", false);
+      // -> stack: ... class classNameDotted
+    }
+  }
+
+  // The local variable type and recorder signature to go with
+  // pushClassNameOnStack.
+  private String classNameDescriptor() {
+    return useTypeIds ? "Ljava/lang/Class;" : "Ljava/lang/String;";
+  }
+
+  private String classNameRecorderSignature() {
+    return useTypeIds ? ARRAY_CLASS_RECORDER_SIG : RECORDER_SIGNATURE;
   }
 
   // Helper method to compute the product of an integer array and push it on
@@ -180,31 +385,31 @@ class AllocationMethodAdapter extends MethodVisitor {
     super.visitInsn(Opcodes.ICONST_1);
     super.visitVarInsn(Opcodes.ISTORE, productIndex);
     // loop:
-    super.visitLabel(loopLabel);
+    visitBranchTarget(loopLabel);
     // if index >= arraylength goto end:
     super.visitVarInsn(Opcodes.ILOAD, counterIndex);
     super.visitVarInsn(Opcodes.ALOAD, dimsArrayIndex);
     super.visitInsn(Opcodes.ARRAYLENGTH);
-    super.visitJumpInsn(Opcodes.IF_ICMPGE, endLabel);
+    visitBranch(Opcodes.IF_ICMPGE, endLabel);
     // product = product * max(array[counter],1)
     super.visitVarInsn(Opcodes.ALOAD, dimsArrayIndex);
     super.visitVarInsn(Opcodes.ILOAD, counterIndex);
     super.visitInsn(Opcodes.IALOAD);
     super.visitInsn(Opcodes.DUP);
     Label nonZeroDimension = new Label();
-    super.visitJumpInsn(Opcodes.IFNE, nonZeroDimension);
+    visitBranch(Opcodes.IFNE, nonZeroDimension);
     super.visitInsn(Opcodes.POP);
     super.visitInsn(Opcodes.ICONST_1);
-    super.visitLabel(nonZeroDimension);
+    visitBranchTarget(nonZeroDimension);
     super.visitVarInsn(Opcodes.ILOAD, productIndex);
     super.visitInsn(Opcodes.IMUL); // if overflow happens it happens.
     super.visitVarInsn(Opcodes.ISTORE, productIndex);
     // iinc counter 1
     super.visitIincInsn(counterIndex, 1);
     // goto loop
-    super.visitJumpInsn(Opcodes.GOTO, loopLabel);
+    visitBranch(Opcodes.GOTO, loopLabel);
     // end:
-    super.visitLabel(endLabel);
+    visitBranchTarget(endLabel);
     // re-push dimensions array
     super.visitVarInsn(Opcodes.ALOAD, dimsArrayIndex);
     // push product
@@ -241,7 +446,7 @@ class AllocationMethodAdapter extends MethodVisitor {
         // -> stack: ... class
         pushClassNameOnStack();
         // -> stack: ... class className
-        int typeNameIndex = newLocal("Ljava/lang/String;", beginScopeLabel, endScopeLabel);
+        int typeNameIndex = newLocal(classNameDescriptor(), beginScopeLabel, endScopeLabel);
         super.visitVarInsn(Opcodes.ASTORE, typeNameIndex);
         // -> stack: ... class
         super.visitVarInsn(Opcodes.ILOAD, countIndex);
@@ -259,8 +464,7 @@ class AllocationMethodAdapter extends MethodVisitor {
         // -> stack: ... newobj count newobj className
         super.visitInsn(Opcodes.SWAP);
         // -> stack: ... newobj count className newobj
-        super.visitMethodInsn(
-            Opcodes.INVOKESTATIC, recorderClass, recorderMethod, RECORDER_SIGNATURE, false);
+        invokeRecorder(classNameRecorderSignature());
         // -> stack: ... newobj
         return;
       } else if (signature.equals("(Ljava/lang/Class;[I)Ljava/lang/Object;")) {
@@ -280,7 +484,7 @@ class AllocationMethodAdapter extends MethodVisitor {
         // -> stack: ... class
         pushClassNameOnStack();
         // -> stack: ... class className
-        int typeNameIndex = newLocal("Ljava/lang/String;", beginScopeLabel, endScopeLabel);
+        int typeNameIndex = newLocal(classNameDescriptor(), beginScopeLabel, endScopeLabel);
         super.visitVarInsn(Opcodes.ASTORE, typeNameIndex);
         // -> stack: ... class
         super.visitVarInsn(Opcodes.ALOAD, dimsArrayIndex);
@@ -299,8 +503,7 @@ class AllocationMethodAdapter extends MethodVisitor {
         // -> stack: ... newobj product newobj className
         super.visitInsn(Opcodes.SWAP);
         // -> stack: ... newobj product className newobj
-        super.visitMethodInsn(
-            Opcodes.INVOKESTATIC, recorderClass, recorderMethod, RECORDER_SIGNATURE, false);
+        invokeRecorder(classNameRecorderSignature());
         // -> stack: ... newobj
         return;
       }
@@ -332,7 +535,7 @@ class AllocationMethodAdapter extends MethodVisitor {
           // -> stack: ... newobj length
           super.visitInsn(Opcodes.SWAP);
           // -> stack: ... length newobj
-          invokeRecordAllocation(owner.substring(i));
+          invokeRecordAllocation(owner.substring(i), arrayKind(owner.charAt(i)));
         }
         return;
       } else if ("newInstance".equals(name)) {
@@ -343,8 +546,7 @@ class AllocationMethodAdapter extends MethodVisitor {
           // -> stack: ... Class newobj
           super.visitInsn(Opcodes.DUP_X1);
           // -> stack: ... newobj Class newobj
-          super.visitMethodInsn(
-              Opcodes.INVOKESTATIC, recorderClass, recorderMethod, CLASS_RECORDER_SIG, false);
+          invokeRecorder(CLASS_RECORDER_SIG);
           // -> stack: ... newobj
           return;
         } else if ("java/lang/reflect/Constructor".equals(owner)
@@ -374,7 +576,7 @@ class AllocationMethodAdapter extends MethodVisitor {
         super.visitMethodInsn(opcode, owner, name, signature, itf);
         super.visitLdcInsn(-1);
         super.visitInsn(Opcodes.SWAP);
-        invokeRecordAllocation(owner);
+        invokeRecordAllocation(owner, AllocationCallSites.LinkedSite.INSTANCE);
         super.visitInsn(Opcodes.POP);
         return;
       }
@@ -401,8 +603,7 @@ class AllocationMethodAdapter extends MethodVisitor {
     // -> stack: ... newobj newobj Class
     super.visitInsn(Opcodes.SWAP);
     // -> stack: ... newobj Class newobj
-    super.visitMethodInsn(
-        Opcodes.INVOKESTATIC, recorderClass, recorderMethod, CLASS_RECORDER_SIG, false);
+    invokeRecorder(CLASS_RECORDER_SIG);
     // -> stack: ... newobj
   }
 
@@ -454,7 +655,7 @@ class AllocationMethodAdapter extends MethodVisitor {
     } else if (opcode == Opcodes.ANEWARRAY) {
       super.visitInsn(Opcodes.DUP);
       super.visitTypeInsn(opcode, typeName);
-      invokeRecordAllocation(typeName);
+      invokeRecordAllocation(typeName, ObjectLayout.OBJECT);
     } else {
       super.visitTypeInsn(opcode, typeName);
     }
@@ -493,13 +694,85 @@ class AllocationMethodAdapter extends MethodVisitor {
     return newLocal(type, type.getDescriptor(), begin, end);
   }
 
+  private static final Handle CALL_SITE_BOOTSTRAP =
+      new Handle(
+          Opcodes.H_INVOKESTATIC,
+          "com/google/monitoring/runtime/instrumentation/AllocationCallSites",
+          "bootstrap",
+          "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)"
+              + "Ljava/lang/invoke/CallSite;",
+          false);
+
+  private static final Handle LINKED_SITE_BOOTSTRAP =
+      new Handle(
+          Opcodes.H_INVOKESTATIC,
+          "com/google/monitoring/runtime/instrumentation/AllocationCallSites",
+          "bootstrapSite",
+          "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+              + "II)Ljava/lang/invoke/CallSite;",
+          false);
+
+  // The type of the invokedynamic sites linked by LINKED_SITE_BOOTSTRAP: the
+  // count and the new object.
+  private static final String LINKED_SITE_SIG = "(ILjava/lang/Object;)V";
+
+  // Helper method to call the recorder method with the given signature,
+  // either directly or through an invokedynamic site.
+  private void invokeRecorder(String signature) {
+    if (useInvokeDynamic) {
+      super.visitInvokeDynamicInsn(recorderMethod, signature, CALL_SITE_BOOTSTRAP);
+    } else {
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, recorderClass, recorderMethod, signature, false);
+    }
+  }
+
   private static final Pattern namePattern = Pattern.compile("^\\[*L([^;]+);$");
 
+  // Returns the ObjectLayout kind of arrays whose elements have the type with
+  // the given descriptor (or the first character of it).
+  private static int arrayKind(char elementDescriptor) {
+    switch (elementDescriptor) {
+      case 'Z':
+        return ObjectLayout.BOOLEAN;
+      case 'B':
+        return ObjectLayout.BYTE;
+      case 'C':
+        return ObjectLayout.CHAR;
+      case 'S':
+        return ObjectLayout.SHORT;
+      case 'I':
+        return ObjectLayout.INT;
+      case 'F':
+        return ObjectLayout.FLOAT;
+      case 'J':
+        return ObjectLayout.LONG;
+      case 'D':
+        return ObjectLayout.DOUBLE;
+      default:
+        return ObjectLayout.OBJECT;
+    }
+  }
+
+  // Whether the allocation can be counted without passing the new object,
+  // which is when AllocationRecorder.countAllocation can work out its size
+  // without it.
+  private boolean canCount(String typeName, int kind) {
+    if (!countOnly || kind == AllocationCallSites.LinkedSite.OTHER_ARRAY) {
+      return false;
+    } else if (kind == AllocationCallSites.LinkedSite.INSTANCE) {
+      return AllocationRecorder.canCountInstances(typeName, loader);
+    } else {
+      return AllocationRecorder.canCountArrays(kind);
+    }
+  }
+
   // Helper method to actually invoke the recorder function for an allocation
-  // event.
+  // event.  The kind is what AllocationCallSites.bootstrapSite wants to know
+  // about the site: whether it allocates instances, and if not, how to work
+  // out the size of the array from the count.
   // pre: stack: ... count newobj
   // post: stack: ... newobj
-  private void invokeRecordAllocation(String typeName) {
+  private void invokeRecordAllocation(String typeName, int kind) {
     Matcher matcher = namePattern.matcher(typeName);
     if (matcher.find()) {
       typeName = matcher.group(1);
@@ -507,12 +780,53 @@ class AllocationMethodAdapter extends MethodVisitor {
     // stack: ... count newobj
     super.visitInsn(Opcodes.DUP_X1);
     // -> stack: ... newobj count newobj
-    super.visitLdcInsn(typeName);
-    // -> stack: ... newobj count newobj typename
-    super.visitInsn(Opcodes.SWAP);
-    // -> stack: ... newobj count typename newobj
-    super.visitMethodInsn(
-        Opcodes.INVOKESTATIC, recorderClass, recorderMethod, RECORDER_SIGNATURE, false);
+    if (useTypeIds) {
+      int siteId =
+          AllocationSiteRegistry.register(
+              className,
+              methodName,
+              methodDesc,
+              currentLine,
+              siteIndex++,
+              TypeIdRegistry.getTypeId(typeName));
+      if (canCount(typeName, kind)) {
+        // Leaves the new object out of it, so that it doesn't escape.
+        if (kind == AllocationCallSites.LinkedSite.INSTANCE) {
+          super.visitInsn(Opcodes.POP);
+          // -> stack: ... newobj count
+          super.visitInsn(Opcodes.POP);
+          // -> stack: ... newobj
+          super.visitLdcInsn(Type.getObjectType(typeName));
+          super.visitLdcInsn(siteId);
+          // -> stack: ... newobj class siteId
+          super.visitMethodInsn(
+              Opcodes.INVOKESTATIC, recorderClass, COUNTER_METHOD, INSTANCE_COUNTER_SIG, false);
+        } else {
+          super.visitInsn(Opcodes.POP);
+          // -> stack: ... newobj count
+          super.visitLdcInsn(kind);
+          super.visitLdcInsn(siteId);
+          // -> stack: ... newobj count kind siteId
+          super.visitMethodInsn(
+              Opcodes.INVOKESTATIC, recorderClass, COUNTER_METHOD, ARRAY_COUNTER_SIG, false);
+        }
+      } else if (useInvokeDynamic) {
+        // The site ID is a constant of the call site, which is linked to a
+        // recorder specialized for it.
+        super.visitInvokeDynamicInsn(
+            recorderMethod, LINKED_SITE_SIG, LINKED_SITE_BOOTSTRAP, siteId, kind);
+      } else {
+        super.visitLdcInsn(siteId);
+        // -> stack: ... newobj count newobj siteId
+        invokeRecorder(SITE_RECORDER_SIG);
+      }
+    } else {
+      super.visitLdcInsn(typeName);
+      // -> stack: ... newobj count newobj typename
+      super.visitInsn(Opcodes.SWAP);
+      // -> stack: ... newobj count typename newobj
+      invokeRecorder(RECORDER_SIGNATURE);
+    }
     // -> stack: ... newobj
   }
 
@@ -562,12 +876,12 @@ class AllocationMethodAdapter extends MethodVisitor {
 
       Label nonNullDimension = new Label();
       // -> stack: ... origaref productToI aref aref
-      super.visitJumpInsn(Opcodes.IFNONNULL, nonNullDimension);
+      visitBranch(Opcodes.IFNONNULL, nonNullDimension);
       // -> stack: ... origaref productToI aref
       super.visitInsn(Opcodes.SWAP);
       // -> stack: ... origaref aref productToI
-      super.visitJumpInsn(Opcodes.GOTO, zeroDimension);
-      super.visitLabel(nonNullDimension);
+      visitBranch(Opcodes.GOTO, zeroDimension);
+      visitBranchTarget(nonNullDimension);
 
       // -> stack: ... origaref productToI aref
       super.visitInsn(Opcodes.DUP_X1);
@@ -578,12 +892,12 @@ class AllocationMethodAdapter extends MethodVisitor {
       Label nonZeroDimension = new Label();
       super.visitInsn(Opcodes.DUP);
       // -> stack: ... origaref aref0 productToI dimI dimI
-      super.visitJumpInsn(Opcodes.IFNE, nonZeroDimension);
+      visitBranch(Opcodes.IFNE, nonZeroDimension);
       // -> stack: ... origaref aref0 productToI dimI
       super.visitInsn(Opcodes.POP);
       // -> stack: ... origaref aref0 productToI
-      super.visitJumpInsn(Opcodes.GOTO, zeroDimension);
-      super.visitLabel(nonZeroDimension);
+      visitBranch(Opcodes.GOTO, zeroDimension);
+      visitBranchTarget(nonZeroDimension);
       // -> stack: ... origaref aref0 productToI max(dimI,1)
 
       super.visitInsn(Opcodes.IMUL);
@@ -599,11 +913,11 @@ class AllocationMethodAdapter extends MethodVisitor {
       }
       // post: stack: ... origaref aref0 productTo{I+1}
     }
-    super.visitLabel(zeroDimension);
+    visitBranchTarget(zeroDimension);
 
     super.visitInsn(Opcodes.SWAP); // -> stack: ... origaref product aref0
     super.visitInsn(Opcodes.POP); // -> stack: ... origaref product
     super.visitInsn(Opcodes.SWAP); // -> stack: ... product origaref
-    invokeRecordAllocation(typeName);
+    invokeRecordAllocation(typeName, AllocationCallSites.LinkedSite.OTHER_ARRAY);
   }
 }
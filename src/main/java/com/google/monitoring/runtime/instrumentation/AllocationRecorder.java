@@ -16,17 +16,20 @@
 
 package com.google.monitoring.runtime.instrumentation;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
-import java.util.Objects;
-import java.util.concurrent.ExecutionException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
 
 /**
  * The logic for recording allocations, called from bytecode rewritten by {@link
  * AllocationInstrumenter}.
  */
 public class AllocationRecorder {
+  private static final Logger logger = Logger.getLogger(AllocationRecorder.class.getName());
+
   static {
     // Sun's JVMs in 1.5.0_06 and 1.6.0{,_01} have a bug where calling
     // Instrumentation.getObjectSize() during JVM shutdown triggers a
@@ -56,23 +59,102 @@ public class AllocationRecorder {
   }
 
   static void setInstrumentation(Instrumentation inst) {
+    if (inst != null && objectLayout == null) {
+      objectLayout = ObjectLayout.probe(inst);
+    }
     instrumentation = inst;
   }
 
-  // Mostly because, yes, arrays are faster than collections.
-  private static volatile Sampler[] additionalSamplers;
+  // Used to compute the sizes of arrays without calling getObjectSize().
+  // Null if the layout couldn't be probed, in which case we always call it.
+  private static volatile ObjectLayout objectLayout = null;
+
+  // If set, the sizes computed by objectLayout are checked against
+  // getObjectSize(), which defeats the purpose of computing them, but can be
+  // used to check that they are correct on a new JVM.
+  private static volatile boolean verifyArraySizes = false;
+
+  // Set once a computed array size is found to be wrong, so that we only
+  // complain once.
+  private static volatile boolean arraySizeMismatchReported = false;
+
+  static void setVerifyArraySizes(boolean verify) {
+    verifyArraySizes = verify;
+  }
 
-  // Protects mutations of additionalSamplers.  Reads are okay because
-  // the field is volatile, so anyone who reads additionalSamplers
-  // will get a consistent view of it.
+  // The samplers, and which of them want which types.  Null if there are
+  // none.
+  private static volatile SamplerDispatch samplerDispatch;
+
+  // Protects mutations of samplerDispatch.  Reads are okay because the field
+  // is volatile, and a dispatch's samplers never change.
   private static final Object samplerLock = new Object();
 
-  // Used for reentrancy checks
-  private static final ThreadLocal<Boolean> recordingAllocation = new ThreadLocal<Boolean>();
+  // Also protected by samplerLock.  batchSamplerWantsObjects[i] is true iff
+  // batchSamplers[i] was added with keepObjects set.
+  private static volatile BatchSampler[] batchSamplers;
+  private static boolean[] batchSamplerWantsObjects;
+
+  // True iff any batch sampler wants the allocated objects.
+  private static volatile boolean keepBatchObjects = false;
+
+  /** The number of allocations passed to a {@link BatchSampler} at once, unless changed. */
+  public static final int DEFAULT_SAMPLER_BATCH_SIZE = 1024;
+
+  private static volatile int samplerBatchSize = DEFAULT_SAMPLER_BATCH_SIZE;
+
+  /**
+   * The mean number of bytes between sampled allocations used when sampling is turned on without an
+   * explicit interval. This is the same default as the JVMTI SampledObjectAlloc event.
+   */
+  public static final long DEFAULT_SAMPLING_INTERVAL = 512 * 1024;
+
+  // The mean number of bytes allocated between samples, or 0 if every
+  // allocation is passed to the samplers.
+  private static volatile long samplingInterval = 0;
+
+  // Counts every allocation by type, in a file other processes can read.
+  // Null unless turned on.
+  private static volatile MappedHistogram histogram = null;
+
+  // Whether each thread counts its allocations by type.
+  private static volatile boolean threadAccounting = false;
+
+  /**
+   * The number of sampled objects whose lifetimes are tracked at once when lifetime tracking is
+   * turned on without an explicit capacity.
+   */
+  public static final int DEFAULT_LIFETIME_TRACKING = 65536;
+
+  // The number of frames captured for each sampled allocation, or 0.
+  private static volatile int stackDepth = 0;
+
+  // Prefixes of the names of classes whose frames are left out of captured
+  // stacks.
+  private static volatile String[] excludedStackFrames = new String[0];
+
+  // The shallow size of instances of a class.  Filled in the first time we
+  // see an instance, since getObjectSize() needs one, or the first time
+  // instanceSize() is asked about the class.  If that can't work it out, it
+  // is UNKNOWN until we see an instance.
+  private static final class ShallowSize {
+    static final long NOT_COMPUTED = -1;
+    static final long UNKNOWN = -2;
 
-  // Stores the object sizes for the last 100,000 encountered classes
-  private static final Cache<Class<?>, Long> classSizesCache =
-      CacheBuilder.newBuilder().weakKeys().maximumSize(100_000).build();
+    volatile long size = NOT_COMPUTED;
+  }
+
+  // Stores the object sizes of the non-array classes we have seen.  Lookups
+  // don't lock, and don't allocate after the first one for each class.  The
+  // values live as long as their class, and don't refer back to it, so this
+  // doesn't keep classes (or their loaders) from being unloaded.
+  private static final ClassValue<ShallowSize> classSizes =
+      new ClassValue<ShallowSize>() {
+        @Override
+        protected ShallowSize computeValue(Class<?> cls) {
+          return new ShallowSize();
+        }
+      };
 
   /**
    * Adds a {@link Sampler} that will get run <b>every time an allocation is performed from Java
@@ -81,50 +163,533 @@ public class AllocationRecorder {
    * @param sampler The sampler to add.
    */
   public static void addSampler(Sampler sampler) {
+    addSampler(sampler, AllocationFilter.ALL);
+  }
+
+  /**
+   * Adds a {@link Sampler} that will only be run for the allocations that match the given filter.
+   * Which samplers want a type is only worked out once per type, so allocations of types that no
+   * sampler wants don't call any sampler at all.
+   *
+   * <p>Adding the same sampler more than once, with the same or different filters, gets it called
+   * once for each filter that matches.
+   *
+   * @param sampler The sampler to add.
+   * @param filter The allocations to pass to the sampler.
+   */
+  public static void addSampler(Sampler sampler, AllocationFilter filter) {
+    if (filter == null) {
+      throw new NullPointerException("filter");
+    }
     synchronized (samplerLock) {
-      Sampler[] samplers = additionalSamplers;
-      /* create a new list of samplers from the old, adding this sampler */
+      samplerDispatch = SamplerDispatch.with(samplerDispatch, sampler, filter);
+      AllocationCallSites.invalidate();
+    }
+  }
+
+  /**
+   * Removes the given {@link Sampler}, whatever filters it was added with.
+   *
+   * @param sampler The sampler to remove.
+   */
+  public static void removeSampler(Sampler sampler) {
+    synchronized (samplerLock) {
+      samplerDispatch = SamplerDispatch.without(samplerDispatch, sampler);
+      AllocationCallSites.invalidate();
+    }
+  }
+
+  /**
+   * Adds a {@link BatchSampler}, which will be passed the same allocations as a {@link Sampler},
+   * but in batches.
+   *
+   * @param sampler The sampler to add.
+   * @param keepObjects Whether the batches should include weak references to the allocated objects.
+   *     Creating them isn't free, so only ask for them if the sampler needs them.
+   */
+  public static void addBatchSampler(BatchSampler sampler, boolean keepObjects) {
+    synchronized (samplerLock) {
+      BatchSampler[] samplers = batchSamplers;
+      int length = (samplers == null) ? 0 : samplers.length;
+      BatchSampler[] newSamplers = new BatchSampler[length + 1];
+      boolean[] newWantsObjects = new boolean[length + 1];
       if (samplers != null) {
-        Sampler[] newSamplers = new Sampler[samplers.length + 1];
-        System.arraycopy(samplers, 0, newSamplers, 0, samplers.length);
-        newSamplers[samplers.length] = sampler;
-        additionalSamplers = newSamplers;
-      } else {
-        Sampler[] newSamplers = new Sampler[1];
-        newSamplers[0] = sampler;
-        additionalSamplers = newSamplers;
+        System.arraycopy(samplers, 0, newSamplers, 0, length);
+        System.arraycopy(batchSamplerWantsObjects, 0, newWantsObjects, 0, length);
       }
+      newSamplers[length] = sampler;
+      newWantsObjects[length] = keepObjects;
+      batchSamplerWantsObjects = newWantsObjects;
+      keepBatchObjects = keepBatchObjects || keepObjects;
+      batchSamplers = newSamplers;
     }
   }
 
   /**
-   * Removes the given {@link Sampler}.
+   * Removes the given {@link BatchSampler}.
    *
    * @param sampler The sampler to remove.
    */
-  public static void removeSampler(Sampler sampler) {
+  public static void removeBatchSampler(BatchSampler sampler) {
     synchronized (samplerLock) {
-      Sampler[] samplers = additionalSamplers;
-      int samplerCount = samplers.length;
-      for (Sampler s : samplers) {
-        if (s.equals(sampler)) {
-          samplerCount--;
+      BatchSampler[] samplers = batchSamplers;
+      if (samplers == null) {
+        return;
+      }
+      int samplerCount = 0;
+      for (BatchSampler s : samplers) {
+        if (!s.equals(sampler)) {
+          samplerCount++;
         }
       }
-      Sampler[] newSamplers = new Sampler[samplerCount];
+      BatchSampler[] newSamplers = new BatchSampler[samplerCount];
+      boolean[] newWantsObjects = new boolean[samplerCount];
+      boolean keepObjects = false;
       int i = 0;
-      for (Sampler s : samplers) {
-        if (!s.equals(sampler)) {
-          newSamplers[i++] = s;
+      for (int j = 0; j < samplers.length; j++) {
+        if (!samplers[j].equals(sampler)) {
+          newSamplers[i] = samplers[j];
+          newWantsObjects[i] = batchSamplerWantsObjects[j];
+          keepObjects |= newWantsObjects[i];
+          i++;
         }
       }
-      additionalSamplers = newSamplers;
+      batchSamplerWantsObjects = newWantsObjects;
+      keepBatchObjects = keepObjects;
+      batchSamplers = newSamplers;
+    }
+  }
+
+  /**
+   * Sets the number of allocations each thread collects before passing them to the {@link
+   * BatchSampler}s. Threads pick up the new size after their current batch is delivered.
+   *
+   * @param events the batch size.
+   */
+  public static void setSamplerBatchSize(int events) {
+    if (events <= 0) {
+      throw new IllegalArgumentException("Non-positive batch size: " + events);
+    }
+    samplerBatchSize = events;
+  }
+
+  /**
+   * Passes the allocations in the calling thread's batch to the {@link BatchSampler}s now, rather
+   * than waiting for the batch to fill up. Threads that want all of their allocations seen should
+   * call this before they exit. Virtual threads share their carrier thread's batch (unless {@link
+   * #setVirtualThreadAttribution(boolean)} is on), so this passes on the whole batch.
+   */
+  public static void flushSamplerBatch() {
+    BatchSampler[] samplers = batchSamplers;
+    if (samplers == null) {
+      return;
+    }
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return;
+    }
+    try {
+      if (state.samplerBatch != null) {
+        deliverBatch(state.samplerBatch, samplers);
+      }
+    } finally {
+      state.exit();
+    }
+  }
+
+  /**
+   * Adds an {@link AllocationEventConsumer}, which will be passed the allocations that would be
+   * passed to a {@link Sampler}, but in batches, and on a background thread rather than on the
+   * allocating thread. The first consumer starts the background thread, and removing the last one
+   * stops it.
+   *
+   * @param consumer The consumer to add.
+   */
+  public static void addEventConsumer(AllocationEventConsumer consumer) {
+    AllocationEventPipeline.addConsumer(consumer);
+  }
+
+  /**
+   * Removes the given {@link AllocationEventConsumer}.
+   *
+   * @param consumer The consumer to remove.
+   */
+  public static void removeEventConsumer(AllocationEventConsumer consumer) {
+    AllocationEventPipeline.removeConsumer(consumer);
+  }
+
+  /**
+   * Sets the number of events each thread can buffer for the {@link AllocationEventConsumer}s
+   * before the {@link AllocationEventConsumer.OverflowPolicy} applies. Only affects threads that
+   * haven't recorded an event yet. The default is 4096.
+   *
+   * @param events the buffer capacity, which is rounded up to a power of two.
+   */
+  public static void setEventBufferCapacity(int events) {
+    AllocationEventPipeline.setBufferCapacity(events);
+  }
+
+  /**
+   * Sets what a thread does when its buffer of events for the {@link AllocationEventConsumer}s is
+   * full. The default is {@link AllocationEventConsumer.OverflowPolicy#DROP}.
+   *
+   * @param policy the new policy.
+   */
+  public static void setOverflowPolicy(AllocationEventConsumer.OverflowPolicy policy) {
+    AllocationEventPipeline.setOverflowPolicy(policy);
+  }
+
+  /**
+   * Returns the number of events that have been dropped because a thread's buffer was full.
+   *
+   * @return the number of dropped events.
+   */
+  public static long getDroppedEventCount() {
+    return AllocationEventPipeline.getDroppedCount();
+  }
+
+  /**
+   * Passes all of the events buffered so far to the {@link AllocationEventConsumer}s, on the
+   * calling thread, rather than waiting for the background thread to get to them.
+   */
+  public static void flushEvents() {
+    AllocationEventPipeline.flush();
+  }
+
+  /**
+   * Turns on sampling. Instead of being passed every allocation, the samplers will be passed
+   * allocations picked by a Poisson process over the number of bytes allocated by each thread, so
+   * that on average one allocation is sampled every {@code bytes} bytes. Larger allocations are
+   * proportionally more likely to be sampled; use {@link #getSamplingWeight(long)} to scale counts
+   * and sizes seen by a sampler back up to an estimate of the real totals.
+   *
+   * <p>Allocations that are not sampled are rejected before the type descriptor is computed or any
+   * sampler is called.
+   *
+   * @param bytes the mean sampling interval in bytes, or 0 to pass every allocation to the samplers
+   *     (the default).
+   */
+  public static void setSamplingInterval(long bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Negative sampling interval: " + bytes);
+    }
+    samplingInterval = bytes;
+    AllocationCallSites.invalidate();
+  }
+
+  /**
+   * Returns the mean sampling interval in bytes, or 0 if every allocation is passed to the
+   * samplers.
+   *
+   * @return the current sampling interval.
+   */
+  public static long getSamplingInterval() {
+    return samplingInterval;
+  }
+
+  /**
+   * Returns the number of allocations a sampled allocation of the given size stands for. An
+   * allocation of {@code size} bytes is sampled with probability {@code 1 - exp(-size / interval)},
+   * so a sampler that wants to estimate the total number (or size) of allocations should add this
+   * weight (or this weight times {@code size}) for each allocation it sees. When sampling is turned
+   * off, this is always 1.
+   *
+   * @param size the size of the sampled allocation, as passed to {@link Sampler#sampleAllocation}.
+   * @return the weight of the sample.
+   */
+  public static double getSamplingWeight(long size) {
+    return samplingWeight(size, samplingInterval);
+  }
+
+  /**
+   * Starts keeping a histogram of all allocations by type in the given file, which is memory-mapped
+   * so that other processes can read it at any time without involving this JVM (see {@link
+   * MappedHistogramReader}). The histogram counts every allocation, whether or not it is sampled.
+   * The file is created, or truncated if it exists.
+   *
+   * @param path the file to keep the histogram in, or null to stop updating the current one.
+   * @param types the number of types the histogram has room for; allocations of types whose {@link
+   *     TypeIdRegistry} IDs are larger are counted together.
+   * @throws IOException if the file can't be created or mapped.
+   */
+  public static void setHistogramFile(String path, int types) throws IOException {
+    histogram = (path == null) ? null : MappedHistogram.create(Paths.get(path), types);
+  }
+
+  /**
+   * Like {@link #setHistogramFile(String, int)}, with room for 8192 types.
+   *
+   * @param path the file to keep the histogram in, or null to stop updating the current one.
+   * @throws IOException if the file can't be created or mapped.
+   */
+  public static void setHistogramFile(String path) throws IOException {
+    setHistogramFile(path, MappedHistogram.DEFAULT_SLOT_COUNT);
+  }
+
+  /**
+   * Turns the recorder on or off. While it is off, allocations are not passed to samplers or
+   * consumers, nor counted in the histogram, the site counts or the per-thread accounting. It is on
+   * by default, unless the agent is given the {@code recordingDisabled} argument.
+   *
+   * <p>When the agent is given the {@code invokedynamic} argument, the allocation sites of classes
+   * not loaded by the bootstrap class loader are linked through {@link AllocationCallSites}, so
+   * that while the recorder is off the JIT compiles them away entirely. Turning it on or off makes
+   * each of them relink the next time it runs, which causes their callers to be recompiled.
+   *
+   * @param enabled whether to record allocations.
+   */
+  public static void setRecordingEnabled(boolean enabled) {
+    AllocationCallSites.setEnabled(enabled);
+  }
+
+  /**
+   * Returns whether the recorder is on. See {@link #setRecordingEnabled(boolean)}.
+   *
+   * @return whether allocations are recorded.
+   */
+  public static boolean isRecordingEnabled() {
+    return AllocationCallSites.isEnabled();
+  }
+
+  /**
+   * Turns per-thread accounting on or off. When it is on, each thread counts the number and size of
+   * all of its allocations (whether or not they are sampled) by type, in a table that only it
+   * writes to, so that threads never contend with each other. The tables are merged on demand by
+   * {@link #getThreadAccountingSnapshot()} and {@link #getThreadAccountingSnapshotByThread()}.
+   * Turning accounting off doesn't discard the counts.
+   *
+   * @param enabled whether to count allocations per thread.
+   */
+  public static void setThreadAccounting(boolean enabled) {
+    threadAccounting = enabled;
+  }
+
+  /**
+   * Returns the allocations counted by per-thread accounting, summed over all threads, including
+   * those that have exited.
+   *
+   * @return the allocations counted so far.
+   */
+  public static AllocationHistogram getThreadAccountingSnapshot() {
+    return ThreadAllocationTable.snapshot();
+  }
+
+  /**
+   * Returns the allocations counted by per-thread accounting, for each live thread that has
+   * allocated while it was on.
+   *
+   * @return the allocations counted so far, by thread.
+   */
+  public static Map<Thread, AllocationHistogram> getThreadAccountingSnapshotByThread() {
+    return ThreadAllocationTable.snapshotByThread();
+  }
+
+  /**
+   * Sets whether each virtual thread has its own recorder state. By default, on JDKs with virtual
+   * threads, a virtual thread uses the state of the carrier thread it is running on, so that
+   * millions of virtual threads don't each pay for a state, an event buffer, a sampler batch and an
+   * accounting table. Their allocations are then attributed to the carrier thread: in {@link
+   * AllocationEventBatch#getThreadId()}, and in {@link #getThreadAccountingSnapshotByThread()}.
+   *
+   * <p>Turning this on attributes allocations to the virtual threads that made them, at the cost of
+   * that per-thread state. It makes no difference to platform threads, or on JDKs without virtual
+   * threads.
+   *
+   * @param enabled whether to give each virtual thread its own state.
+   */
+  public static void setVirtualThreadAttribution(boolean enabled) {
+    RecorderState.setPerVirtualThread(enabled);
+  }
+
+  /**
+   * Returns whether each virtual thread has its own recorder state. See {@link
+   * #setVirtualThreadAttribution(boolean)}.
+   *
+   * @return whether allocations are attributed to virtual threads.
+   */
+  public static boolean isVirtualThreadAttribution() {
+    return RecorderState.isPerVirtualThread();
+  }
+
+  /**
+   * Turns on stack capture for sampled allocations. The stack of each allocation passed to the
+   * samplers is recorded in the {@link AllocationStackTable}, which also aggregates the samples by
+   * stack. Samplers can find the stack of the allocation they are being passed with {@link
+   * #getSampledStackId()}. Capturing stacks is expensive, so this is best combined with {@link
+   * #setSamplingInterval(long) sampling}.
+   *
+   * @param frames the maximum number of frames to capture, counting from the allocation, or 0 to
+   *     turn stack capture off (the default).
+   */
+  public static void setStackDepth(int frames) {
+    if (frames < 0) {
+      throw new IllegalArgumentException("Negative stack depth: " + frames);
+    }
+    stackDepth = frames;
+  }
+
+  /**
+   * Returns the maximum number of frames captured for sampled allocations, or 0 if stacks are not
+   * captured.
+   *
+   * @return the stack depth.
+   */
+  public static int getStackDepth() {
+    return stackDepth;
+  }
+
+  /**
+   * Turns on lifetime tracking for sampled allocations. Each object passed to the samplers is then
+   * watched until it is collected, and its lifetime, in wall time and in garbage collections, is
+   * recorded in the {@link AllocationLifetimes} histograms, and the objects still alive make up the
+   * {@link #getLiveHeapSnapshot() live heap profile}. Only the given number of objects are tracked
+   * at once, and samples beyond that are not tracked, so this is best combined with {@link
+   * #setSamplingInterval(long) sampling}. Allocations counted without their objects (with the
+   * {@code countOnly} agent argument) can't be tracked.
+   *
+   * @param maxTracked the largest number of objects to track at once, or 0 to turn tracking off
+   *     (the default). Changing it forgets the objects being tracked.
+   */
+  public static void setLifetimeTracking(int maxTracked) {
+    AllocationLifetimes.setCapacity(maxTracked);
+  }
+
+  /**
+   * Returns the largest number of sampled objects whose lifetimes are tracked at once, or 0 if
+   * lifetimes are not tracked.
+   *
+   * @return the lifetime tracking capacity.
+   */
+  public static int getLifetimeTracking() {
+    return AllocationLifetimes.getCapacity();
+  }
+
+  /**
+   * Returns an estimate of the objects that are live right now, by allocation site, stack and type,
+   * made from the sampled objects that {@link #setLifetimeTracking(int) lifetime tracking} is
+   * watching and that haven't been collected yet. Empty if lifetime tracking is off.
+   *
+   * @return the live heap profile.
+   */
+  public static LiveHeapSnapshot getLiveHeapSnapshot() {
+    return AllocationLifetimes.snapshot();
+  }
+
+  /**
+   * Leaves frames of the given classes out of captured stacks, e.g., to skip reflection or
+   * framework plumbing. Excluded frames don't count towards the {@link #setStackDepth(int) depth}.
+   *
+   * @param classNamePrefixes prefixes of the binary ('.'-separated) names of the classes whose
+   *     frames should be skipped. Replaces any previous exclusions.
+   */
+  public static void setExcludedStackFrames(String... classNamePrefixes) {
+    excludedStackFrames = classNamePrefixes.clone();
+  }
+
+  /**
+   * Returns the {@link AllocationStackTable} ID of the stack of the allocation currently being
+   * passed to the samplers on this thread. Only meaningful when called from a sampler, and when
+   * stack capture is on; otherwise, returns {@link AllocationStackTable#NO_STACK}.
+   *
+   * @return the stack ID of the sampled allocation.
+   */
+  public static int getSampledStackId() {
+    return RecorderState.entered().stackId;
+  }
+
+  static double samplingWeight(long size, long interval) {
+    if (interval <= 0) {
+      return 1.0;
+    }
+    if (size <= 0) {
+      // Zero-sized allocations never cross the sampling threshold on their
+      // own, so there is no sensible weight; count them once.
+      return 1.0;
+    }
+    return 1.0 / -Math.expm1(-(double) size / interval);
+  }
+
+  /**
+   * Draws the number of bytes until the next sample. The distances between samples of a Poisson
+   * process are exponentially distributed with the given mean.
+   */
+  static long nextSampleDistance(long interval) {
+    // 1 - nextDouble() is in (0, 1], so the log is finite.
+    double distance = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * interval;
+    return distance >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) distance + 1;
+  }
+
+  /**
+   * Charges an allocation of the given size against this thread's sampling countdown, and returns
+   * true iff it should be sampled.
+   */
+  private static boolean shouldSample(RecorderState state, long size, long interval) {
+    if (state.samplingInterval != interval) {
+      state.samplingInterval = interval;
+      state.bytesUntilSample = nextSampleDistance(interval);
+    }
+    state.bytesUntilSample -= size;
+    if (state.bytesUntilSample > 0) {
+      return false;
+    }
+    state.bytesUntilSample = nextSampleDistance(interval);
+    return true;
+  }
+
+  /**
+   * Adds an allocation to the current thread's batch, and passes the batch to the batch samplers if
+   * that fills it up.
+   */
+  private static void addToBatch(
+      RecorderState state,
+      BatchSampler[] samplers,
+      int count,
+      int typeId,
+      int siteId,
+      int stackId,
+      Object obj,
+      long size) {
+    AllocationEventBatch batch = state.samplerBatch;
+    if (batch == null || (batch.size() == 0 && batch.capacity() != samplerBatchSize)) {
+      batch = new AllocationEventBatch(samplerBatchSize);
+      batch.reset(AllocationEventBuffer.threadId(state.thread));
+      state.samplerBatch = batch;
+    }
+    if (batch.size() == 0) {
+      batch.setKeepObjects(keepBatchObjects);
+    }
+    batch.add(typeId, siteId, stackId, count, size, System.nanoTime(), obj);
+    if (batch.isFull()) {
+      deliverBatch(batch, samplers);
+    }
+  }
+
+  private static void deliverBatch(AllocationEventBatch batch, BatchSampler[] samplers) {
+    if (batch.size() == 0) {
+      return;
+    }
+    try {
+      for (BatchSampler sampler : samplers) {
+        sampler.sampleAllocations(batch);
+      }
+    } finally {
+      batch.reset(batch.getThreadId());
     }
   }
 
+  private static int captureStack(RecorderState state, int depth) {
+    StackCapture capture = state.stackCapture;
+    if (capture == null) {
+      capture = new StackCapture();
+      state.stackCapture = capture;
+    }
+    return capture.capture(depth, excludedStackFrames);
+  }
+
   /**
-   * Returns the size of the given object. If the object is not an array, we check the cache first,
-   * and update it as necessary.
+   * Returns the size of the given object. If the object is an array, we compute its size from its
+   * length and the probed {@link ObjectLayout}. Otherwise, we check the per-class cache first, and
+   * update it as necessary.
    *
    * @param obj the object.
    * @param isArray indicates if the given object is an array.
@@ -133,21 +698,81 @@ public class AllocationRecorder {
    */
   private static long getObjectSize(Object obj, boolean isArray, Instrumentation instr) {
     if (isArray) {
-      return instr.getObjectSize(obj);
+      ObjectLayout layout = objectLayout;
+      long size = (layout == null) ? -1 : layout.arraySize(obj);
+      if (size < 0) {
+        return instr.getObjectSize(obj);
+      }
+      if (verifyArraySizes) {
+        long actualSize = instr.getObjectSize(obj);
+        if (actualSize != size) {
+          if (!arraySizeMismatchReported) {
+            arraySizeMismatchReported = true;
+            logger.warning(
+                "Computed size "
+                    + size
+                    + " for "
+                    + obj.getClass().getName()
+                    + " but getObjectSize() says "
+                    + actualSize);
+          }
+          return actualSize;
+        }
+      }
+      return size;
     }
 
-    try {
-      return classSizesCache.get(obj.getClass(), () -> instr.getObjectSize(obj));
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e);
+    ShallowSize shallowSize = classSizes.get(obj.getClass());
+    long size = shallowSize.size;
+    if (size < 0) {
+      // Racing threads may both call getObjectSize(), but they will get the
+      // same answer.
+      size = instr.getObjectSize(obj);
+      shallowSize.size = size;
     }
+    return size;
   }
 
+  /**
+   * Records the allocation of an object whose type is only known at runtime, e.g., through {@link
+   * Class#newInstance} or {@link Object#clone}.
+   *
+   * @param cls the class of the new object.
+   * @param newObj the new <code>Object</code> whose allocation is being recorded.
+   */
   public static void recordAllocation(Class<?> cls, Object newObj) {
-    // The use of replace makes calls to this method relatively ridiculously
-    // expensive.
-    String typename = cls.getName().replace('.', '/');
-    recordAllocation(-1, typename, newObj);
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return;
+    }
+
+    try {
+      record(state, -1, TypeIdRegistry.getTypeId(cls), null, newObj);
+    } finally {
+      state.exit();
+    }
+  }
+
+  /**
+   * Records the allocation of an array whose component type is only known at runtime, i.e., through
+   * {@link java.lang.reflect.Array#newInstance}.
+   *
+   * @param count the number of elements (the product of the dimensions for multidimensional
+   *     arrays).
+   * @param componentType the component type passed to {@code Array.newInstance}.
+   * @param newObj the new array whose allocation is being recorded.
+   */
+  public static void recordAllocation(int count, Class<?> componentType, Object newObj) {
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return;
+    }
+
+    try {
+      record(state, count, TypeIdRegistry.getTypeId(componentType), null, newObj);
+    } finally {
+      state.exit();
+    }
   }
 
   /**
@@ -159,38 +784,321 @@ public class AllocationRecorder {
    * @param newObj the new <code>Object</code> whose allocation is being recorded.
    */
   public static void recordAllocation(int count, String desc, Object newObj) {
-    if (Objects.equals(recordingAllocation.get(), Boolean.TRUE)) {
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
       return;
     }
 
-    recordingAllocation.set(Boolean.TRUE);
+    try {
+      record(state, count, TypeIdRegistry.getTypeId(desc), null, newObj);
+    } finally {
+      state.exit();
+    }
+  }
 
-    if (count >= 0) {
-      desc = desc.replace('.', '/');
+  /**
+   * Records the allocation. Like {@link #recordAllocation(int, String, Object)}, but with the type
+   * identified by the {@link TypeIdRegistry} ID assigned when the allocation site was instrumented.
+   *
+   * @param count the count of how many instances are being allocated, if an array is being
+   *     allocated. If an array is not being allocated, then this value will be -1.
+   * @param typeId the ID of the class/primitive type being allocated.
+   * @param newObj the new <code>Object</code> whose allocation is being recorded.
+   */
+  public static void recordAllocation(int count, int typeId, Object newObj) {
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return;
+    }
+
+    try {
+      record(state, count, typeId, null, newObj);
+    } finally {
+      state.exit();
+    }
+  }
+
+  /**
+   * Records the allocation. Like {@link #recordAllocation(int, String, Object)}, but with the
+   * allocation site, and so the type, identified by the {@link AllocationSiteRegistry} ID assigned
+   * when the site was instrumented.
+   *
+   * @param count the count of how many instances are being allocated, if an array is being
+   *     allocated. If an array is not being allocated, then this value will be -1.
+   * @param newObj the new <code>Object</code> whose allocation is being recorded.
+   * @param siteId the ID of the allocation site.
+   */
+  public static void recordAllocation(int count, Object newObj, int siteId) {
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return;
+    }
+
+    try {
+      AllocationSite site = AllocationSiteRegistry.site(siteId);
+      record(state, count, site.getTypeId(), site, newObj);
+    } finally {
+      state.exit();
+    }
+  }
+
+  /**
+   * Counts the allocation of an instance without being passed the instance, so that the JIT can
+   * still optimize the allocation away. The allocation is counted at its site, in the histogram and
+   * by per-thread accounting, and passed to the {@link AllocationEventConsumer}s, but not to the
+   * samplers. Called from classes instrumented with the {@code countOnly} agent argument, for the
+   * classes whose instance size can be worked out from their fields; sites that allocate other
+   * classes pass the instance as usual. Should the size still turn out to be unknown, the
+   * allocation is counted as 0 bytes.
+   *
+   * @param cls the class of the new instance.
+   * @param siteId the ID of the allocation site.
+   */
+  public static void countAllocation(Class<?> cls, int siteId) {
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return;
+    }
+
+    try {
+      AllocationSite site = AllocationSiteRegistry.site(siteId);
+      record(state, -1, site.getTypeId(), site, null, null, instanceSize(cls));
+    } finally {
+      state.exit();
+    }
+  }
+
+  /**
+   * Counts the allocation of a one-dimensional array without being passed the array. Like {@link
+   * #countAllocation(Class, int)}, for the kinds of arrays whose layout is known.
+   *
+   * @param count the length of the array.
+   * @param kind the kind of the array, as an {@code ObjectLayout} constant.
+   * @param siteId the ID of the allocation site.
+   */
+  public static void countAllocation(int count, int kind, int siteId) {
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return;
+    }
+
+    try {
+      AllocationSite site = AllocationSiteRegistry.site(siteId);
+      ObjectLayout layout = objectLayout;
+      long size = (layout == null) ? -1 : layout.arraySize(kind, count);
+      record(state, count, site.getTypeId(), site, null, null, size);
+    } finally {
+      state.exit();
+    }
+  }
+
+  // Whether countAllocation(Class, int) can work out the size of instances
+  // of the class with the given internal name.  AllocationMethodAdapter
+  // passes the new object to the recorder when it can't.
+  static boolean canCountInstances(String type, ClassLoader loader) {
+    ObjectLayout layout = objectLayout;
+    return layout != null && layout.computesInstanceSize(type, loader);
+  }
+
+  // Like canCountInstances, for countAllocation(int, int, int) and arrays of
+  // the given ObjectLayout kind.
+  static boolean canCountArrays(int kind) {
+    ObjectLayout layout = objectLayout;
+    return layout != null && layout.computesArraySize(kind);
+  }
+
+  // Returns the size of instances of the given class, worked out from its
+  // fields, or -1 if we can't.
+  private static long instanceSize(Class<?> cls) {
+    ShallowSize shallowSize = classSizes.get(cls);
+    long size = shallowSize.size;
+    if (size == ShallowSize.NOT_COMPUTED) {
+      ObjectLayout layout = objectLayout;
+      size = (layout == null) ? -1 : layout.instanceSize(cls);
+      // Remembers failures too, so that they aren't tried again every time.
+      shallowSize.size = (size < 0) ? ShallowSize.UNKNOWN : size;
+    }
+    return (size < 0) ? -1 : size;
+  }
+
+  /**
+   * Records an allocation made at a site linked by {@link AllocationCallSites#bootstrapSite}, which
+   * passes what it already knows about the allocation.
+   */
+  static void recordAllocation(int count, Object newObj, AllocationCallSites.LinkedSite linked) {
+    RecorderState state = RecorderState.enter();
+    if (state == null) {
+      return;
+    }
+
+    try {
+      long size = linked.size;
+      if (size < 0 && !linked.isArray) {
+        // The site always allocates instances of the same class.
+        Instrumentation instr = instrumentation;
+        if (instr != null) {
+          size = getObjectSize(newObj, false, instr);
+          linked.size = size;
+        }
+      }
+      record(state, count, linked.typeId, linked.site, newObj, linked.samplers, size);
+    } finally {
+      state.exit();
     }
+  }
 
+  /**
+   * The sampling fast path of sites linked by {@link AllocationCallSites#bootstrapSite}: charges
+   * the allocation to the current thread's sampling countdown, and returns true if that doesn't
+   * make it a sample, so that the recorder needn't be called at all. Returns false, leaving the
+   * countdown alone, when there is more to do than sampling (e.g., keeping a histogram), the size
+   * of the allocation isn't known yet, or the thread is already in the recorder.
+   */
+  static boolean skipsSample(int count, AllocationCallSites.LinkedSite linked) {
+    long interval = samplingInterval;
+    if (interval <= 0
+        || histogram != null
+        || threadAccounting
+        || AllocationSiteRegistry.isCountingEnabled()) {
+      return false;
+    }
+    long size;
+    int kind = linked.kind;
+    if (kind == AllocationCallSites.LinkedSite.INSTANCE) {
+      size = linked.size;
+    } else if (kind == AllocationCallSites.LinkedSite.OTHER_ARRAY) {
+      return false;
+    } else {
+      ObjectLayout layout = objectLayout;
+      size = (layout == null) ? -1 : layout.arraySize(kind, count);
+    }
+    if (size < 0) {
+      return false;
+    }
+    // Like shouldSample(), but only when the countdown doesn't run out.
+    RecorderState state = RecorderState.current();
+    if (state.user != null || state.samplingInterval != interval) {
+      return false;
+    }
+    long remaining = state.bytesUntilSample - size;
+    if (remaining <= 0) {
+      return false;
+    }
+    state.bytesUntilSample = remaining;
+    return true;
+  }
+
+  // Returns the samplers that want allocations of the given type, or null if
+  // there are none.
+  static SamplerDispatch.Subscription[] samplersFor(int typeId, boolean isArray) {
+    SamplerDispatch dispatch = samplerDispatch;
+    return (dispatch == null) ? null : dispatch.forType(typeId, isArray);
+  }
+
+  // The site is null when it isn't known, e.g., for reflective allocations.
+  private static void record(
+      RecorderState state, int count, int typeId, AllocationSite site, Object newObj) {
+    record(state, count, typeId, site, newObj, samplersFor(typeId, count >= 0), -1);
+  }
+
+  // The size is -1 if the caller doesn't know it.  The new object is null
+  // when counting, in which case the caller should know the size (it is
+  // taken to be 0 if not), and it is not passed to samplers.
+  private static void record(
+      RecorderState state,
+      int count,
+      int typeId,
+      AllocationSite site,
+      Object newObj,
+      SamplerDispatch.Subscription[] samplers,
+      long size) {
+    // Sites linked through AllocationCallSites don't get here when recording
+    // is off, but those still called directly do.
+    if (!AllocationCallSites.isEnabled()) {
+      return;
+    }
     // Copy value into local variable to prevent NPE that occurs when
     // instrumentation field is set to null by this class's shutdown hook
     // after another thread passed the null check but has yet to call
     // instrumentation.getObjectSize()
     // See https://github.com/google/allocation-instrumenter/issues/15
     Instrumentation instr = instrumentation;
-    if (instr != null) {
+    BatchSampler[] batchers = (newObj == null) ? null : batchSamplers;
+    if (newObj == null) {
+      samplers = null;
+    }
+    boolean recordEvents = AllocationEventPipeline.isActive();
+    boolean trackLifetime = newObj != null && AllocationLifetimes.isActive();
+    boolean countSite = site != null && AllocationSiteRegistry.isCountingEnabled();
+    MappedHistogram hist = histogram;
+    boolean accounting = threadAccounting;
+    int depth = stackDepth;
+    if (instr != null
+        && (samplers != null
+            || batchers != null
+            || recordEvents
+            || trackLifetime
+            || countSite
+            || hist != null
+            || accounting
+            || depth > 0)) {
       // calling getObjectSize() could be expensive,
       // so make sure we do it only once per object
-      long objectSize = -1;
+      long objectSize = size;
+      if (objectSize < 0) {
+        objectSize = (newObj == null) ? 0 : getObjectSize(newObj, (count >= 0), instr);
+      }
 
-      Sampler[] samplers = additionalSamplers;
-      if (samplers != null) {
-        if (objectSize < 0) {
-          objectSize = getObjectSize(newObj, (count >= 0), instr);
+      // Site counts, the histogram and the per-thread accounting are exact,
+      // so they are kept whether or not we sample.
+      if (countSite) {
+        site.count(objectSize);
+      }
+      if (hist != null) {
+        hist.record(typeId, objectSize);
+      }
+      if (accounting) {
+        ThreadAllocationTable table = state.allocationTable;
+        if (table == null) {
+          table = ThreadAllocationTable.create(state.thread);
+          state.allocationTable = table;
+        }
+        table.record(typeId, objectSize);
+      }
+      int siteId = (site == null) ? -1 : site.getId();
+
+      // When sampling, the size is all we need to reject the allocation, so
+      // we check before doing any of the other work.
+      long interval = samplingInterval;
+      if (interval <= 0 || shouldSample(state, objectSize, interval)) {
+        int stackId = AllocationStackTable.NO_STACK;
+        if (depth > 0) {
+          stackId = captureStack(state, depth);
+          if (stackId != AllocationStackTable.NO_STACK) {
+            AllocationStackTable.recordSample(
+                stackId, objectSize, samplingWeight(objectSize, interval));
+          }
+        }
+        state.stackId = stackId;
+        if (samplers != null) {
+          for (SamplerDispatch.Subscription subscription : samplers) {
+            if (objectSize >= subscription.minimumSize) {
+              subscription.sampler.sampleAllocation(count, typeId, newObj, objectSize);
+            }
+          }
+        }
+        if (batchers != null) {
+          addToBatch(state, batchers, count, typeId, siteId, stackId, newObj, objectSize);
         }
-        for (Sampler sampler : samplers) {
-          sampler.sampleAllocation(count, desc, newObj, objectSize);
+        if (recordEvents) {
+          AllocationEventPipeline.record(state, typeId, siteId, stackId, count, objectSize);
         }
+        if (trackLifetime) {
+          AllocationLifetimes.track(
+              newObj, typeId, siteId, stackId, objectSize, samplingWeight(objectSize, interval));
+        }
+        state.stackId = AllocationStackTable.NO_STACK;
       }
     }
-
-    recordingAllocation.set(Boolean.FALSE);
   }
 }
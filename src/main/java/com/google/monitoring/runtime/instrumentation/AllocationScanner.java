@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Finds the methods of a class that have none of the bytecodes that {@link
+ * AllocationMethodAdapter} rewrites, so that they can be copied into the instrumented class as they
+ * are. A method that is passed straight from a {@link ClassReader} to a {@link
+ * org.objectweb.asm.ClassWriter} made from the same reader is copied as raw bytes, with its
+ * original stack map frames, without being parsed or having its frames computed again, which is
+ * where almost all of the time to instrument a class goes.
+ *
+ * <p>The scan errs on the side of rewriting: a method with any instruction that might be an
+ * allocation the adapter instruments is rewritten.
+ */
+class AllocationScanner extends ClassVisitor {
+  private final Set<String> unchangedMethods = new HashSet<String>();
+  private boolean allocates;
+
+  AllocationScanner() {
+    super(Opcodes.ASM9);
+  }
+
+  /**
+   * Scans the given class.
+   *
+   * @param reader the class to scan.
+   * @return the scanner, which knows which methods of the class allocate.
+   */
+  static AllocationScanner scan(ClassReader reader) {
+    AllocationScanner scanner = new AllocationScanner();
+    reader.accept(scanner, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return scanner;
+  }
+
+  /**
+   * Returns the key of the method with the given name and descriptor in {@link #unchanged()}: its
+   * name followed by its descriptor, as {@link VerifyingClassAdapter} expects.
+   */
+  static String methodKey(String name, String desc) {
+    return name + desc;
+  }
+
+  /** Returns whether any method of the class has a bytecode that may allocate. */
+  boolean allocates() {
+    return allocates;
+  }
+
+  /**
+   * Returns the {@link #methodKey(String, String) keys} of the methods that have no bytecode that
+   * may allocate, and can be left alone.
+   */
+  Set<String> unchanged() {
+    return unchangedMethods;
+  }
+
+  @Override
+  public MethodVisitor visitMethod(
+      int access, final String name, final String desc, String signature, String[] exceptions) {
+    // Abstract and native methods have no code to visit, and so are copied.
+    unchangedMethods.add(methodKey(name, desc));
+    return new MethodVisitor(Opcodes.ASM9) {
+      private void markAllocating() {
+        unchangedMethods.remove(methodKey(name, desc));
+        allocates = true;
+      }
+
+      @Override
+      public void visitIntInsn(int opcode, int operand) {
+        if (opcode == Opcodes.NEWARRAY) {
+          markAllocating();
+        }
+      }
+
+      @Override
+      public void visitTypeInsn(int opcode, String type) {
+        if (opcode == Opcodes.NEW || opcode == Opcodes.ANEWARRAY) {
+          markAllocating();
+        }
+      }
+
+      @Override
+      public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+        markAllocating();
+      }
+
+      @Override
+      public void visitMethodInsn(
+          int opcode, String owner, String calledName, String descriptor, boolean itf) {
+        // Array.newInstance, Class.newInstance, Constructor.newInstance and
+        // the clone methods of Object and of arrays.
+        if (calledName.equals("newInstance") || calledName.equals("clone")) {
+          markAllocating();
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A place in the code that allocates: one NEW, NEWARRAY, ANEWARRAY or MULTIANEWARRAY bytecode (or
+ * array clone()) that the instrumenter rewrote. Sites are created by the instrumenter and looked up
+ * through {@link AllocationSiteRegistry}.
+ *
+ * <p>When {@link AllocationSiteRegistry#setCountingEnabled(boolean) counting} is on, each site also
+ * counts the allocations made there. The counters are striped, so threads allocating at the same
+ * site don't contend.
+ */
+public final class AllocationSite {
+  private final int id;
+  private final int typeId;
+  private final String className;
+  private final String methodName;
+  private final String methodDescriptor;
+  private final int lineNumber;
+
+  private final LongAdder allocations = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+
+  AllocationSite(
+      int id,
+      int typeId,
+      String className,
+      String methodName,
+      String methodDescriptor,
+      int lineNumber) {
+    this.id = id;
+    this.typeId = typeId;
+    this.className = className;
+    this.methodName = methodName;
+    this.methodDescriptor = methodDescriptor;
+    this.lineNumber = lineNumber;
+  }
+
+  /**
+   * Returns the ID of this site, as passed to the recorder.
+   *
+   * @return the site ID.
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Returns the {@link TypeIdRegistry} ID of the type allocated here.
+   *
+   * @return the type ID.
+   */
+  public int getTypeId() {
+    return typeId;
+  }
+
+  /**
+   * Returns the internal ('/'-separated) name of the class containing this site.
+   *
+   * @return the class name.
+   */
+  public String getClassName() {
+    return className;
+  }
+
+  /**
+   * Returns the name of the method containing this site.
+   *
+   * @return the method name.
+   */
+  public String getMethodName() {
+    return methodName;
+  }
+
+  /**
+   * Returns the descriptor of the method containing this site, e.g., {@code (I)[J}.
+   *
+   * @return the method descriptor.
+   */
+  public String getMethodDescriptor() {
+    return methodDescriptor;
+  }
+
+  /**
+   * Returns the source line of this site, or -1 if the class has no line number information.
+   *
+   * @return the line number.
+   */
+  public int getLineNumber() {
+    return lineNumber;
+  }
+
+  /**
+   * Returns the number of allocations counted at this site.
+   *
+   * @return the allocation count.
+   */
+  public long getAllocationCount() {
+    return allocations.sum();
+  }
+
+  /**
+   * Returns the total size of the allocations counted at this site.
+   *
+   * @return the allocated bytes.
+   */
+  public long getAllocatedBytes() {
+    return bytes.sum();
+  }
+
+  void count(long size) {
+    allocations.increment();
+    bytes.add(size);
+  }
+
+  @Override
+  public String toString() {
+    return className.replace('/', '.')
+        + "."
+        + methodName
+        + methodDescriptor
+        + ":"
+        + lineNumber
+        + " ("
+        + TypeIdRegistry.getDescriptor(typeId)
+        + ")";
+  }
+}
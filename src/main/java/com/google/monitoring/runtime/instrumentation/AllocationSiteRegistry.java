@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Assigns IDs to the allocation sites the instrumenter rewrites. IDs are small and dense, starting
+ * at 0, and are passed to the recorder as constants, so finding out where an object was allocated
+ * needs no stack walking.
+ *
+ * <p>Like {@link TypeIdRegistry} IDs, site IDs are only meaningful within the JVM that assigned
+ * them. A class that is instrumented more than once (e.g., because it is retransformed) gets the
+ * same IDs each time, and so do classes with the same name loaded by different class loaders.
+ */
+public final class AllocationSiteRegistry {
+  // Protects registration of new sites.  Reads of sites are okay because
+  // the field is volatile, and a site is only published after it is stored.
+  private static final Object registryLock = new Object();
+
+  // Guarded by registryLock.
+  private static final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+  private static volatile AllocationSite[] sites = new AllocationSite[1024];
+
+  private static volatile int siteCount = 0;
+
+  private static volatile boolean countingEnabled = false;
+
+  private AllocationSiteRegistry() {}
+
+  /**
+   * Returns the site with the given ID.
+   *
+   * @param siteId an ID passed to the recorder.
+   * @return the site.
+   * @throws IllegalArgumentException if no site has the given ID.
+   */
+  public static AllocationSite getSite(int siteId) {
+    AllocationSite[] s = sites;
+    AllocationSite site = (siteId >= 0 && siteId < s.length) ? s[siteId] : null;
+    if (site == null) {
+      throw new IllegalArgumentException("Unknown site ID " + siteId);
+    }
+    return site;
+  }
+
+  /**
+   * Returns the number of IDs that have been handed out. All IDs are less than this.
+   *
+   * @return the number of registered sites.
+   */
+  public static int getSiteCount() {
+    return siteCount;
+  }
+
+  /**
+   * Returns all of the sites at which allocations have been counted, in ID order.
+   *
+   * @return the sites with a non-zero allocation count.
+   */
+  public static List<AllocationSite> getCountedSites() {
+    AllocationSite[] s = sites;
+    int count = siteCount;
+    List<AllocationSite> result = new ArrayList<AllocationSite>();
+    for (int i = 0; i < count; i++) {
+      if (s[i].getAllocationCount() > 0) {
+        result.add(s[i]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Turns per-site allocation counting on or off. Counting is off by default; when it is on, every
+   * recorded allocation with a known site is counted, whether or not it is sampled.
+   *
+   * @param enabled whether to count allocations.
+   */
+  public static void setCountingEnabled(boolean enabled) {
+    countingEnabled = enabled;
+  }
+
+  /**
+   * Returns true iff per-site allocation counting is on.
+   *
+   * @return whether allocations are being counted.
+   */
+  public static boolean isCountingEnabled() {
+    return countingEnabled;
+  }
+
+  /**
+   * Returns the ID for the given site, assigning a new one if it hasn't been seen before.
+   *
+   * @param className the internal name of the class containing the site.
+   * @param methodName the name of the method containing the site.
+   * @param methodDescriptor the descriptor of that method.
+   * @param lineNumber the source line of the site, or -1 if it isn't known.
+   * @param index the number of sites that precede this one in the method, which tells apart
+   *     sites on the same line.
+   * @param typeId the {@link TypeIdRegistry} ID of the allocated type.
+   * @return the ID of the site.
+   */
+  static int register(
+      String className,
+      String methodName,
+      String methodDescriptor,
+      int lineNumber,
+      int index,
+      int typeId) {
+    String key = className + '.' + methodName + methodDescriptor + '#' + index;
+    synchronized (registryLock) {
+      Integer id = ids.get(key);
+      if (id == null) {
+        id = siteCount;
+        AllocationSite[] s = sites;
+        if (id == s.length) {
+          s = Arrays.copyOf(s, s.length * 2);
+        }
+        s[id] = new AllocationSite(id, typeId, className, methodName, methodDescriptor, lineNumber);
+        sites = s;
+        siteCount++;
+        ids.put(key, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Returns the site with the given ID, which must have been returned by {@link #register}. For the
+   * recorder, which is only ever passed such IDs.
+   */
+  static AllocationSite site(int siteId) {
+    return sites[siteId];
+  }
+}
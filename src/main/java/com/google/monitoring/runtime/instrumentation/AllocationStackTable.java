@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The stacks captured for sampled allocations (see {@link AllocationRecorder#setStackDepth(int)}).
+ * Stacks are stored as a trie: each stack ID names a frame and the ID of the stack of its caller,
+ * so identical stacks share an ID, and stacks with a common prefix share storage. An allocation's
+ * stack then costs a single int.
+ *
+ * <p>The table also aggregates the samples taken with each stack, weighted by {@link
+ * AllocationRecorder#getSamplingWeight(long)}, so it can answer "where is this allocated from?"
+ * directly.
+ *
+ * <p>Stack IDs are small, dense and start at 0. Like {@link TypeIdRegistry} IDs, they are only
+ * meaningful within the JVM that assigned them. Nothing is ever removed from the table.
+ */
+public final class AllocationStackTable {
+  /** The stack ID of the caller of an outermost frame. */
+  public static final int NO_STACK = -1;
+
+  // A frame: where in which method.  Used as a key when interning frames,
+  // so it needs equals() and hashCode().
+  static final class Frame {
+    String className;
+    String methodName;
+    String fileName;
+    int lineNumber;
+
+    Frame() {}
+
+    Frame(String className, String methodName, String fileName, int lineNumber) {
+      set(className, methodName, fileName, lineNumber);
+    }
+
+    void set(String className, String methodName, String fileName, int lineNumber) {
+      this.className = className;
+      this.methodName = methodName;
+      this.fileName = fileName;
+      this.lineNumber = lineNumber;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Frame)) {
+        return false;
+      }
+      Frame f = (Frame) o;
+      return lineNumber == f.lineNumber
+          && className.equals(f.className)
+          && methodName.equals(f.methodName)
+          && (fileName == null ? f.fileName == null : fileName.equals(f.fileName));
+    }
+
+    @Override
+    public int hashCode() {
+      return (className.hashCode() * 31 + methodName.hashCode()) * 31 + lineNumber;
+    }
+  }
+
+  // A node of the trie.  The counters are only created for stacks that are
+  // actually sampled, rather than for every prefix.
+  private static final class Node {
+    final int parent;
+    final int frame;
+    volatile Counters counters;
+
+    Node(int parent, int frame) {
+      this.parent = parent;
+      this.frame = frame;
+    }
+  }
+
+  private static final class Counters {
+    final LongAdder samples = new LongAdder();
+    final DoubleAdder count = new DoubleAdder();
+    final DoubleAdder bytes = new DoubleAdder();
+  }
+
+  // Protects registration of new frames and nodes, and creation of
+  // counters.  Reads are okay because the arrays are volatile, and entries
+  // are only published after they are stored.
+  private static final Object tableLock = new Object();
+
+  private static final ConcurrentHashMap<Frame, Integer> frameIds =
+      new ConcurrentHashMap<Frame, Integer>();
+  private static volatile Frame[] frames = new Frame[1024];
+  private static int frameCount = 0;
+
+  // Keyed by (parent stack ID << 32 | frame ID).
+  private static final ConcurrentHashMap<Long, Integer> nodeIds =
+      new ConcurrentHashMap<Long, Integer>();
+  private static volatile Node[] nodes = new Node[1024];
+  private static volatile int nodeCount = 0;
+
+  private AllocationStackTable() {}
+
+  /**
+   * Returns the number of stack IDs that have been handed out, including those of the callers of
+   * captured stacks. All IDs are less than this.
+   *
+   * @return the number of stacks.
+   */
+  public static int getStackCount() {
+    return nodeCount;
+  }
+
+  /**
+   * Returns the stack with the given ID, innermost frame first, as for {@link
+   * Throwable#getStackTrace()}.
+   *
+   * @param stackId a stack ID.
+   * @return the frames of the stack.
+   * @throws IllegalArgumentException if no stack has the given ID.
+   */
+  public static StackTraceElement[] getStackTrace(int stackId) {
+    Node[] n = nodes;
+    Frame[] f = frames;
+    int depth = 0;
+    for (int id = stackId; id != NO_STACK; id = n[id].parent) {
+      node(n, id);
+      depth++;
+    }
+    StackTraceElement[] trace = new StackTraceElement[depth];
+    int i = 0;
+    for (int id = stackId; id != NO_STACK; id = n[id].parent) {
+      Frame frame = f[n[id].frame];
+      trace[i++] =
+          new StackTraceElement(
+              frame.className, frame.methodName, frame.fileName, frame.lineNumber);
+    }
+    return trace;
+  }
+
+  /**
+   * Returns the ID of the stack of the caller of the innermost frame of the given stack, or {@link
+   * #NO_STACK} if that frame is the outermost one captured.
+   *
+   * @param stackId a stack ID.
+   * @return the caller's stack ID.
+   * @throws IllegalArgumentException if no stack has the given ID.
+   */
+  public static int getCallerStackId(int stackId) {
+    return node(nodes, stackId).parent;
+  }
+
+  /**
+   * Returns the IDs of all of the stacks that have been sampled, in increasing order.
+   *
+   * @return the sampled stack IDs.
+   */
+  public static int[] getSampledStackIds() {
+    Node[] n = nodes;
+    int count = nodeCount;
+    int[] ids = new int[count];
+    int sampled = 0;
+    for (int i = 0; i < count; i++) {
+      if (n[i].counters != null) {
+        ids[sampled++] = i;
+      }
+    }
+    return Arrays.copyOf(ids, sampled);
+  }
+
+  /**
+   * Returns the number of sampled allocations made with the given stack.
+   *
+   * @param stackId a stack ID.
+   * @return the number of samples.
+   */
+  public static long getSampleCount(int stackId) {
+    Counters c = node(nodes, stackId).counters;
+    return (c == null) ? 0 : c.samples.sum();
+  }
+
+  /**
+   * Returns the estimated number of allocations made with the given stack: the sum of the sampling
+   * weights of the samples.
+   *
+   * @param stackId a stack ID.
+   * @return the estimated number of allocations.
+   */
+  public static double getEstimatedCount(int stackId) {
+    Counters c = node(nodes, stackId).counters;
+    return (c == null) ? 0 : c.count.sum();
+  }
+
+  /**
+   * Returns the estimated number of bytes allocated with the given stack: the sum of the sizes of
+   * the samples, times their sampling weights.
+   *
+   * @param stackId a stack ID.
+   * @return the estimated number of bytes.
+   */
+  public static double getEstimatedBytes(int stackId) {
+    Counters c = node(nodes, stackId).counters;
+    return (c == null) ? 0 : c.bytes.sum();
+  }
+
+  private static Node node(Node[] n, int stackId) {
+    Node node = (stackId >= 0 && stackId < n.length) ? n[stackId] : null;
+    if (node == null) {
+      throw new IllegalArgumentException("Unknown stack ID " + stackId);
+    }
+    return node;
+  }
+
+  /**
+   * Returns the ID of the given frame, adding it if it hasn't been seen before. The frame may be
+   * reused by the caller afterwards.
+   */
+  static int internFrame(Frame frame) {
+    Integer id = frameIds.get(frame);
+    if (id != null) {
+      return id;
+    }
+    synchronized (tableLock) {
+      id = frameIds.get(frame);
+      if (id == null) {
+        Frame copy = new Frame(frame.className, frame.methodName, frame.fileName, frame.lineNumber);
+        id = frameCount;
+        Frame[] f = frames;
+        if (id == f.length) {
+          f = Arrays.copyOf(f, f.length * 2);
+        }
+        f[id] = copy;
+        frames = f;
+        frameCount++;
+        frameIds.put(copy, id);
+      }
+      return id;
+    }
+  }
+
+  /** Returns the ID of the stack made by calling the given frame from the given stack. */
+  static int internStack(int callerStackId, int frameId) {
+    Long key = ((long) callerStackId << 32) | (frameId & 0xffffffffL);
+    Integer id = nodeIds.get(key);
+    if (id != null) {
+      return id;
+    }
+    synchronized (tableLock) {
+      id = nodeIds.get(key);
+      if (id == null) {
+        id = nodeCount;
+        Node[] n = nodes;
+        if (id == n.length) {
+          n = Arrays.copyOf(n, n.length * 2);
+        }
+        n[id] = new Node(callerStackId, frameId);
+        nodes = n;
+        nodeCount++;
+        nodeIds.put(key, id);
+      }
+      return id;
+    }
+  }
+
+  /** Adds a sample of the given size and sampling weight to the given stack. */
+  static void recordSample(int stackId, long size, double weight) {
+    Node node = nodes[stackId];
+    Counters c = node.counters;
+    if (c == null) {
+      synchronized (tableLock) {
+        c = node.counters;
+        if (c == null) {
+          c = new Counters();
+          node.counters = c;
+        }
+      }
+    }
+    c.samples.increment();
+    c.count.add(weight);
+    c.bytes.add(weight * size);
+  }
+}
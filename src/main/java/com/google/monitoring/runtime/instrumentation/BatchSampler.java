@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+/**
+ * A {@link Sampler} that is passed allocations in bulk. Each thread collects the allocations it
+ * makes into a batch, and when the batch is full, passes it to every batch sampler on that thread.
+ * A sampler that aggregates (e.g., counts bytes by type) can then do so in a tight loop, and lock
+ * once per batch rather than once per allocation.
+ *
+ * <p>Allocations still in a thread's batch are only delivered when the batch fills up, or when the
+ * thread calls {@link AllocationRecorder#flushSamplerBatch()}; a thread that exits with a partial
+ * batch discards it.
+ *
+ * <p><b>CAUTION:</b> as with {@link Sampler}, this is called on the allocating thread, so it should
+ * be fast. Allocations made by a batch sampler are not recorded.
+ *
+ * @see AllocationRecorder#addBatchSampler(BatchSampler, boolean)
+ */
+public interface BatchSampler {
+  /**
+   * Processes a batch of allocations, all made by the current thread. The batch is only valid until
+   * this method returns; it is reused for the next batch.
+   *
+   * @param batch the allocations. {@link AllocationEventBatch#getObject(int)} returns the allocated
+   *     objects only if a batch sampler that asked for them has been added.
+   */
+  public void sampleAllocations(AllocationEventBatch batch);
+}
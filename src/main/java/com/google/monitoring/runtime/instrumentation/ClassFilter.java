@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which classes the {@link AllocationInstrumenter} rewrites. A class is rewritten if it
+ * matches at least one include rule (or there are none), and no exclude rule. Classes that aren't
+ * rewritten are left exactly as they were, so their allocations cost nothing, and aren't seen.
+ *
+ * <p>A rule is a pattern, optionally preceded by what it matches:
+ *
+ * <ul>
+ *   <li>{@code class:<pattern>}, or just {@code <pattern>}: the binary name of the class, e.g.,
+ *       {@code com.example.Foo$Bar}.
+ *   <li>{@code module:<pattern>}: the name of the class's module, or {@code ALL-UNNAMED} for
+ *       classes in unnamed modules.
+ *   <li>{@code loader:<pattern>}: the name of the class's loader (e.g., {@code app} or {@code
+ *       platform}), or the name of the loader's class, or {@code bootstrap} for the bootstrap
+ *       loader.
+ * </ul>
+ *
+ * <p>In patterns, {@code *} matches anything but a '.', {@code **} matches anything, and {@code ?}
+ * matches a single character other than '.'. A pattern that ends in '.' is a prefix: {@code
+ * com.example.} matches everything in the package {@code com.example} and its subpackages, as does
+ * {@code com.example.**}.
+ *
+ * <p>Rules come from the agent arguments {@code include=<rule>} and {@code exclude=<rule>}, which
+ * may be repeated, and from {@code filterFile=<path>}, a file with one {@code include <rule>} or
+ * {@code exclude <rule>} per line. Blank lines and lines starting with '#' are ignored.
+ */
+final class ClassFilter {
+  /** Rewrites everything. */
+  static final ClassFilter ALL = new ClassFilter(new Rule[0], new Rule[0]);
+
+  private enum Kind {
+    CLASS,
+    MODULE,
+    LOADER
+  }
+
+  private static final class Rule {
+    final Kind kind;
+    final Pattern pattern;
+
+    Rule(Kind kind, Pattern pattern) {
+      this.kind = kind;
+      this.pattern = pattern;
+    }
+
+    boolean matches(String className, String moduleName, ClassLoader loader) {
+      switch (kind) {
+        case CLASS:
+          return pattern.matcher(className).matches();
+        case MODULE:
+          return pattern.matcher(moduleName).matches();
+        case LOADER:
+          if (loader == null) {
+            return pattern.matcher("bootstrap").matches();
+          }
+          String name = loader.getName();
+          return (name != null && pattern.matcher(name).matches())
+              || pattern.matcher(loader.getClass().getName()).matches();
+      }
+      throw new AssertionError(kind);
+    }
+  }
+
+  private final Rule[] includes;
+  private final Rule[] excludes;
+
+  private ClassFilter(Rule[] includes, Rule[] excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  /**
+   * Returns the filter described by the given agent arguments, or {@link #ALL} if they don't
+   * describe one.
+   *
+   * @throws IllegalArgumentException if a rule is malformed.
+   * @throws IOException if the filter file can't be read.
+   */
+  static ClassFilter fromAgentArgs(List<String> args) throws IOException {
+    List<Rule> includes = new ArrayList<Rule>();
+    List<Rule> excludes = new ArrayList<Rule>();
+    for (String arg : args) {
+      if (arg.startsWith("include=")) {
+        includes.add(parseRule(arg.substring("include=".length())));
+      } else if (arg.startsWith("exclude=")) {
+        excludes.add(parseRule(arg.substring("exclude=".length())));
+      } else if (arg.startsWith("filterFile=")) {
+        String path = arg.substring("filterFile=".length());
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          String[] parts = line.split("\\s+", 2);
+          if (parts.length == 2 && parts[0].equals("include")) {
+            includes.add(parseRule(parts[1]));
+          } else if (parts.length == 2 && parts[0].equals("exclude")) {
+            excludes.add(parseRule(parts[1]));
+          } else {
+            throw new IllegalArgumentException("Bad line in " + path + ": " + line);
+          }
+        }
+      }
+    }
+    if (includes.isEmpty() && excludes.isEmpty()) {
+      return ALL;
+    }
+    return new ClassFilter(includes.toArray(new Rule[0]), excludes.toArray(new Rule[0]));
+  }
+
+  private static Rule parseRule(String rule) {
+    Kind kind = Kind.CLASS;
+    String pattern = rule;
+    if (rule.startsWith("class:")) {
+      pattern = rule.substring("class:".length());
+    } else if (rule.startsWith("module:")) {
+      kind = Kind.MODULE;
+      pattern = rule.substring("module:".length());
+    } else if (rule.startsWith("loader:")) {
+      kind = Kind.LOADER;
+      pattern = rule.substring("loader:".length());
+    }
+    if (pattern.isEmpty()) {
+      throw new IllegalArgumentException("Empty pattern in rule: " + rule);
+    }
+    // Class names are matched in their internal, '/'-separated form, since
+    // that's how the transformer gets them.
+    char separator = '.';
+    if (kind == Kind.CLASS) {
+      pattern = pattern.replace('.', '/');
+      separator = '/';
+    }
+    return new Rule(kind, compileGlob(pattern, separator));
+  }
+
+  // Translates a glob into a regular expression.  A trailing separator
+  // makes the pattern a prefix.
+  private static Pattern compileGlob(String glob, char separator) {
+    if (glob.charAt(glob.length() - 1) == separator) {
+      glob = glob + "**";
+    }
+    String notSeparator = "[^" + Pattern.quote(String.valueOf(separator)) + "]";
+    StringBuilder regex = new StringBuilder();
+    int literalStart = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c != '*' && c != '?') {
+        continue;
+      }
+      if (literalStart < i) {
+        regex.append(Pattern.quote(glob.substring(literalStart, i)));
+      }
+      if (c == '?') {
+        regex.append(notSeparator);
+      } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+        regex.append(".*");
+        i++;
+      } else {
+        regex.append(notSeparator).append('*');
+      }
+      literalStart = i + 1;
+    }
+    if (literalStart < glob.length()) {
+      regex.append(Pattern.quote(glob.substring(literalStart)));
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  /** Returns true if every class is rewritten. */
+  boolean isAll() {
+    return includes.length == 0 && excludes.length == 0;
+  }
+
+  /**
+   * Returns true if the given class should be rewritten.
+   *
+   * @param className the internal ('/'-separated) name of the class.
+   * @param module the class's module, or null if it isn't known.
+   * @param loader the class's loader, or null for the bootstrap loader.
+   */
+  boolean matches(String className, Module module, ClassLoader loader) {
+    if (isAll()) {
+      return true;
+    }
+    if (className == null) {
+      className = "";
+    }
+    String moduleName = (module == null || !module.isNamed()) ? "ALL-UNNAMED" : module.getName();
+    boolean included = includes.length == 0;
+    for (Rule rule : includes) {
+      if (rule.matches(className, moduleName, loader)) {
+        included = true;
+        break;
+      }
+    }
+    if (!included) {
+      return false;
+    }
+    for (Rule rule : excludes) {
+      if (rule.matches(className, moduleName, loader)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns true if the given loaded class should be rewritten. */
+  boolean matches(Class<?> cls) {
+    return matches(cls.getName().replace('.', '/'), cls.getModule(), cls.getClassLoader());
+  }
+}
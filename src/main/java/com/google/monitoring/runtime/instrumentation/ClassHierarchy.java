@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * An index of the supertypes of classes, by class loader, for {@link StaticClassWriter} to work out
+ * common superclasses with. It is filled with the classes that the agent rewrites, as it sees them,
+ * and otherwise with the class files that the class loaders have as resources, which are read once
+ * and remembered. Either way, it never loads or initializes a class.
+ *
+ * <p>The classes of each class loader are only weakly held by it, so that they go away with it.
+ */
+final class ClassHierarchy {
+  /** What the index knows about a class. All the names are internal names. */
+  static final class Entry {
+    final boolean isInterface;
+    final String superName;
+    final String[] interfaces;
+
+    Entry(boolean isInterface, String superName, String[] interfaces) {
+      this.isInterface = isInterface;
+      this.superName = superName;
+      this.interfaces = interfaces;
+    }
+  }
+
+  // The classes of each class loader, by internal name.  Those of the
+  // bootstrap class loader are kept separately, since it is null.
+  private static final Map<ClassLoader, Map<String, Entry>> byLoader =
+      new WeakHashMap<ClassLoader, Map<String, Entry>>();
+  private static final Map<String, Entry> bootstrapClasses =
+      new ConcurrentHashMap<String, Entry>();
+
+  private ClassHierarchy() {}
+
+  /**
+   * Adds a class to the index.
+   *
+   * @param loader the class loader that defines the class.
+   * @param reader the class file.
+   */
+  static void record(ClassLoader loader, ClassReader reader) {
+    classes(loader, true).put(reader.getClassName(), entry(reader));
+  }
+
+  /**
+   * Returns what the index knows about a class, reading its class file if it doesn't know the class
+   * yet.
+   *
+   * @param type the internal name of the class.
+   * @param loader the class loader to look the class up with.
+   * @return the supertypes of the class.
+   * @throws RuntimeException if the class can't be found.
+   */
+  static Entry get(String type, ClassLoader loader) {
+    // Looks in the same places the class loader would, if it delegates to
+    // its parent.
+    for (ClassLoader l = loader; l != null; l = l.getParent()) {
+      Map<String, Entry> classes = classes(l, false);
+      Entry entry = (classes == null) ? null : classes.get(type);
+      if (entry != null) {
+        return entry;
+      }
+    }
+    Entry entry = bootstrapClasses.get(type);
+    if (entry == null) {
+      entry = read(type, loader);
+      classes(loader, true).put(type, entry);
+    }
+    return entry;
+  }
+
+  // Returns the classes of the loader, or, if there are none yet and create
+  // isn't set, null.
+  private static Map<String, Entry> classes(ClassLoader loader, boolean create) {
+    if (loader == null) {
+      return bootstrapClasses;
+    }
+    synchronized (byLoader) {
+      Map<String, Entry> classes = byLoader.get(loader);
+      if (classes == null && create) {
+        classes = new ConcurrentHashMap<String, Entry>();
+        byLoader.put(loader, classes);
+      }
+      return classes;
+    }
+  }
+
+  private static Entry entry(ClassReader reader) {
+    return new Entry(
+        (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0,
+        reader.getSuperName(),
+        reader.getInterfaces());
+  }
+
+  // Reads the class file of the class, without loading the class.
+  private static Entry read(String type, ClassLoader loader) {
+    String fileName = type + ".class";
+    try (InputStream is =
+        (loader == null)
+            ? ClassLoader.getSystemResourceAsStream(fileName)
+            : loader.getResourceAsStream(fileName)) {
+      if (is == null) {
+        throw new RuntimeException("Class not found: " + fileName);
+      }
+      return entry(new ClassReader(is));
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading: " + fileName, e);
+    }
+  }
+}
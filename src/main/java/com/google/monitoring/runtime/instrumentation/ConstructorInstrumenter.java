@@ -174,9 +174,6 @@ public class ConstructorInstrumenter implements ClassFileTransformer {
     }
   }
 
-  // Each thread remembers the last object the thread has seen.
-  private static final ThreadLocal<Object> lastObject = new ThreadLocal<>();
-
   /**
    * Bytecode is rewritten to invoke this method; it calls the sampler for the given class. Note
    * that, unless the javaagent command line argument "subclassesAlso" is specified, it won't do
@@ -186,11 +183,15 @@ public class ConstructorInstrumenter implements ClassFileTransformer {
    */
   @SuppressWarnings("unchecked")
   public static void invokeSamplers(Object o) {
-    // Remember the last object for this thread, skip if seen already.
-    if (lastObject.get() == o) {
+    // Remember the last object for this thread, skip if seen already.  Kept
+    // in a state of the thread's own, since a virtual thread may move to
+    // another carrier (e.g., if a sampler blocks) between the constructors of
+    // the same object.
+    RecorderState state = RecorderState.own();
+    if (state.lastConstructed == o) {
       return;
     }
-    lastObject.set(o);
+    state.lastConstructed = o;
 
     Class<?> currentClass = o.getClass();
     while (currentClass != null) {
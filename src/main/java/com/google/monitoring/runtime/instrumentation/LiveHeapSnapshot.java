@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.Arrays;
+
+/**
+ * An immutable estimate of the objects that are live on the heap, and where they were allocated,
+ * as returned by {@link AllocationRecorder#getLiveHeapSnapshot()}. It is made from the sampled
+ * objects tracked by {@link AllocationRecorder#setLifetimeTracking(int) lifetime tracking} that
+ * haven't been collected yet: each of them is weighted by its {@link
+ * AllocationRecorder#getSamplingWeight(long) sampling weight}, so that the estimates scale back up
+ * to the whole heap. Comparing snapshots taken a while apart shows which sites retain more and
+ * more memory, without taking a heap dump.
+ *
+ * <p>Sizes are shallow: an object's size doesn't include that of the objects it refers to. Samples
+ * that weren't tracked because the tracker was full (see {@link
+ * AllocationLifetimes#getDroppedCount()}) are missing from the estimates.
+ */
+public final class LiveHeapSnapshot {
+  // The estimates for each distinct ID, sorted by ID.
+  private static final class Totals {
+    final int[] ids;
+    final double[] counts;
+    final double[] bytes;
+
+    Totals(int[] ids, double[] counts, double[] bytes) {
+      this.ids = ids;
+      this.counts = counts;
+      this.bytes = bytes;
+    }
+
+    double count(int id) {
+      int i = Arrays.binarySearch(ids, id);
+      return (i < 0) ? 0 : counts[i];
+    }
+
+    double bytes(int id) {
+      int i = Arrays.binarySearch(ids, id);
+      return (i < 0) ? 0 : bytes[i];
+    }
+  }
+
+  private final int sampleCount;
+  private final double totalCount;
+  private final double totalBytes;
+  private final Totals types;
+  private final Totals sites;
+  private final Totals stacks;
+
+  // The arrays hold one entry per live sample.
+  LiveHeapSnapshot(int[] typeIds, int[] siteIds, int[] stackIds, long[] sizes, double[] weights) {
+    double count = 0;
+    double bytes = 0;
+    for (int i = 0; i < weights.length; i++) {
+      count += weights[i];
+      bytes += weights[i] * sizes[i];
+    }
+    this.sampleCount = weights.length;
+    this.totalCount = count;
+    this.totalBytes = bytes;
+    this.types = totals(typeIds, sizes, weights);
+    this.sites = totals(siteIds, sizes, weights);
+    this.stacks = totals(stackIds, sizes, weights);
+  }
+
+  // Sums the estimates by ID.  Sorts the samples by ID, with the index of
+  // each in the low half of its key, so as not to box anything.
+  private static Totals totals(int[] ids, long[] sizes, double[] weights) {
+    long[] keys = new long[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      keys[i] = ((long) ids[i] << 32) | i;
+    }
+    Arrays.sort(keys);
+    int[] distinct = new int[ids.length];
+    double[] counts = new double[ids.length];
+    double[] bytes = new double[ids.length];
+    int n = 0;
+    for (long key : keys) {
+      int id = (int) (key >> 32);
+      int i = (int) key;
+      if (n == 0 || distinct[n - 1] != id) {
+        distinct[n++] = id;
+      }
+      counts[n - 1] += weights[i];
+      bytes[n - 1] += weights[i] * sizes[i];
+    }
+    return new Totals(
+        Arrays.copyOf(distinct, n), Arrays.copyOf(counts, n), Arrays.copyOf(bytes, n));
+  }
+
+  /**
+   * Returns the number of tracked objects the estimates are made from.
+   *
+   * @return the number of live samples.
+   */
+  public int getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * Returns the estimated number of live objects.
+   *
+   * @return the estimated number of objects.
+   */
+  public double getEstimatedCount() {
+    return totalCount;
+  }
+
+  /**
+   * Returns the estimated total shallow size of the live objects.
+   *
+   * @return the estimated number of bytes.
+   */
+  public double getEstimatedBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Returns the {@link AllocationSiteRegistry} IDs of the sites that allocated live samples, in
+   * increasing order. Objects whose sites aren't known, e.g., those allocated by reflection, are
+   * counted under -1.
+   *
+   * @return the site IDs.
+   */
+  public int[] getSiteIds() {
+    return sites.ids.clone();
+  }
+
+  /**
+   * Returns the estimated number of live objects allocated at the given site.
+   *
+   * @param siteId an {@link AllocationSiteRegistry} ID, or -1.
+   * @return the estimated number of objects.
+   */
+  public double getEstimatedCountForSite(int siteId) {
+    return sites.count(siteId);
+  }
+
+  /**
+   * Returns the estimated total shallow size of the live objects allocated at the given site.
+   *
+   * @param siteId an {@link AllocationSiteRegistry} ID, or -1.
+   * @return the estimated number of bytes.
+   */
+  public double getEstimatedBytesForSite(int siteId) {
+    return sites.bytes(siteId);
+  }
+
+  /**
+   * Returns the {@link AllocationStackTable} IDs of the stacks that allocated live samples, in
+   * increasing order. Objects sampled while stack capture was off are counted under {@link
+   * AllocationStackTable#NO_STACK}.
+   *
+   * @return the stack IDs.
+   */
+  public int[] getStackIds() {
+    return stacks.ids.clone();
+  }
+
+  /**
+   * Returns the estimated number of live objects allocated with the given stack.
+   *
+   * @param stackId an {@link AllocationStackTable} ID, or {@link AllocationStackTable#NO_STACK}.
+   * @return the estimated number of objects.
+   */
+  public double getEstimatedCountForStack(int stackId) {
+    return stacks.count(stackId);
+  }
+
+  /**
+   * Returns the estimated total shallow size of the live objects allocated with the given stack.
+   *
+   * @param stackId an {@link AllocationStackTable} ID, or {@link AllocationStackTable#NO_STACK}.
+   * @return the estimated number of bytes.
+   */
+  public double getEstimatedBytesForStack(int stackId) {
+    return stacks.bytes(stackId);
+  }
+
+  /**
+   * Returns the {@link TypeIdRegistry} IDs of the types of the live samples, in increasing order.
+   *
+   * @return the type IDs.
+   */
+  public int[] getTypeIds() {
+    return types.ids.clone();
+  }
+
+  /**
+   * Returns the estimated number of live objects of the given type.
+   *
+   * @param typeId a {@link TypeIdRegistry} ID.
+   * @return the estimated number of objects.
+   */
+  public double getEstimatedCountForType(int typeId) {
+    return types.count(typeId);
+  }
+
+  /**
+   * Returns the estimated total shallow size of the live objects of the given type.
+   *
+   * @param typeId a {@link TypeIdRegistry} ID.
+   * @return the estimated number of bytes.
+   */
+  public double getEstimatedBytesForType(int typeId) {
+    return types.bytes(typeId);
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A histogram of allocations by type, kept in a memory-mapped file so that other processes can
+ * read it without the JVM doing anything. See {@link MappedHistogramReader} for a reader.
+ *
+ * <p>The file has a fixed layout. All numbers are little-endian, and all offsets are in bytes.
+ *
+ * <pre>
+ * Header (64 bytes):
+ *    0  int   magic, 0x41494847 ("AIHG" as a big-endian int); written last, so a file without
+ *             it is not ready yet
+ *    4  int   layout version, currently 1
+ *    8  int   number of slots
+ *   12  int   slot size, currently 128
+ *   16  long  sequence number; odd while a slot is being named
+ *   24  long  allocations of types without a slot
+ *   32  long  bytes allocated by types without a slot
+ *   40  long  creation time, in milliseconds since the epoch
+ *   48  long  process ID of the writer
+ *   56  long  reserved
+ * Slots, one per type, indexed by TypeIdRegistry ID, starting at offset 64:
+ *    0  long  number of allocations
+ *    8  long  number of bytes allocated
+ *   16  int   length of the type descriptor, or 0 if the slot hasn't been named
+ *   20        UTF-8 type descriptor, truncated to 108 bytes
+ * </pre>
+ *
+ * <p>The counters are only ever incremented, with atomic adds. A slot is named before its counters
+ * first change; naming bumps the sequence number to odd, writes the name, and bumps it back to
+ * even. So a reader that wants a consistent set of names reads the sequence number, waits while it
+ * is odd, reads the slots, and retries if the sequence number has changed (a seqlock). Counters
+ * read in one pass may be mutually skewed by in-flight allocations, but are never torn.
+ */
+final class MappedHistogram {
+  static final int MAGIC = 0x41494847;
+  static final int VERSION = 1;
+
+  static final int HEADER_SIZE = 64;
+  static final int MAGIC_OFFSET = 0;
+  static final int VERSION_OFFSET = 4;
+  static final int SLOT_COUNT_OFFSET = 8;
+  static final int SLOT_SIZE_OFFSET = 12;
+  static final int SEQUENCE_OFFSET = 16;
+  static final int OVERFLOW_COUNT_OFFSET = 24;
+  static final int OVERFLOW_BYTES_OFFSET = 32;
+  static final int CREATION_TIME_OFFSET = 40;
+  static final int PID_OFFSET = 48;
+
+  static final int SLOT_SIZE = 128;
+  static final int COUNT_OFFSET = 0;
+  static final int BYTES_OFFSET = 8;
+  static final int NAME_LENGTH_OFFSET = 16;
+  static final int NAME_OFFSET = 20;
+  static final int MAX_NAME_LENGTH = SLOT_SIZE - NAME_OFFSET;
+
+  /** The number of slots used when none is specified. */
+  static final int DEFAULT_SLOT_COUNT = 8192;
+
+  static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  static final VarHandle INTS =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final MappedByteBuffer buffer;
+  private final int slotCount;
+
+  private MappedHistogram(MappedByteBuffer buffer, int slotCount) {
+    this.buffer = buffer;
+    this.slotCount = slotCount;
+  }
+
+  /** Creates (or truncates) the given file, and maps a histogram with the given number of slots. */
+  static MappedHistogram create(Path path, int slotCount) throws IOException {
+    if (slotCount <= 0) {
+      throw new IllegalArgumentException("Non-positive slot count: " + slotCount);
+    }
+    MappedByteBuffer buffer;
+    try (FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      buffer =
+          channel.map(
+              FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(VERSION_OFFSET, VERSION);
+    buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+    buffer.putInt(SLOT_SIZE_OFFSET, SLOT_SIZE);
+    buffer.putLong(CREATION_TIME_OFFSET, System.currentTimeMillis());
+    buffer.putLong(PID_OFFSET, ProcessHandle.current().pid());
+    INTS.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+    return new MappedHistogram(buffer, slotCount);
+  }
+
+  /** Counts an allocation of the given type and size. */
+  void record(int typeId, long size) {
+    if (typeId >= slotCount) {
+      LONGS.getAndAdd(buffer, OVERFLOW_COUNT_OFFSET, 1L);
+      LONGS.getAndAdd(buffer, OVERFLOW_BYTES_OFFSET, size);
+      return;
+    }
+    int slot = HEADER_SIZE + typeId * SLOT_SIZE;
+    if ((int) INTS.getAcquire(buffer, slot + NAME_LENGTH_OFFSET) == 0) {
+      name(typeId, slot);
+    }
+    LONGS.getAndAdd(buffer, slot + COUNT_OFFSET, 1L);
+    LONGS.getAndAdd(buffer, slot + BYTES_OFFSET, size);
+  }
+
+  private synchronized void name(int typeId, int slot) {
+    if ((int) INTS.getAcquire(buffer, slot + NAME_LENGTH_OFFSET) != 0) {
+      return;
+    }
+    byte[] name = TypeIdRegistry.getDescriptor(typeId).getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(name.length, MAX_NAME_LENGTH);
+    long sequence = (long) LONGS.getVolatile(buffer, SEQUENCE_OFFSET);
+    LONGS.setVolatile(buffer, SEQUENCE_OFFSET, sequence + 1);
+    for (int i = 0; i < length; i++) {
+      buffer.put(slot + NAME_OFFSET + i, name[i]);
+    }
+    INTS.setRelease(buffer, slot + NAME_LENGTH_OFFSET, Math.max(length, 1));
+    LONGS.setVolatile(buffer, SEQUENCE_OFFSET, sequence + 2);
+  }
+
+  /** One line of the histogram. */
+  static final class Entry {
+    final String type;
+    final long count;
+    final long bytes;
+
+    Entry(String type, long count, long bytes) {
+      this.type = type;
+      this.count = count;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Reads the named slots of the histogram in the given buffer, following the seqlock protocol.
+   * Types without a slot are reported as a single entry with a null type. Returns null if the
+   * buffer doesn't (yet) hold a histogram.
+   */
+  static List<Entry> snapshot(ByteBuffer buffer) {
+    if (buffer.capacity() < HEADER_SIZE
+        || (int) INTS.getAcquire(buffer, MAGIC_OFFSET) != MAGIC
+        || buffer.getInt(VERSION_OFFSET) != VERSION) {
+      return null;
+    }
+    int slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+    int slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+    byte[] name = new byte[MAX_NAME_LENGTH];
+    while (true) {
+      long sequence = (long) LONGS.getVolatile(buffer, SEQUENCE_OFFSET);
+      if ((sequence & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      List<Entry> entries = new ArrayList<Entry>();
+      for (int i = 0; i < slotCount; i++) {
+        int slot = HEADER_SIZE + i * slotSize;
+        int length = (int) INTS.getAcquire(buffer, slot + NAME_LENGTH_OFFSET);
+        if (length == 0) {
+          continue;
+        }
+        length = Math.min(length, MAX_NAME_LENGTH);
+        for (int j = 0; j < length; j++) {
+          name[j] = buffer.get(slot + NAME_OFFSET + j);
+        }
+        entries.add(
+            new Entry(
+                new String(name, 0, length, StandardCharsets.UTF_8),
+                (long) LONGS.getVolatile(buffer, slot + COUNT_OFFSET),
+                (long) LONGS.getVolatile(buffer, slot + BYTES_OFFSET)));
+      }
+      long overflowCount = (long) LONGS.getVolatile(buffer, OVERFLOW_COUNT_OFFSET);
+      if (overflowCount > 0) {
+        entries.add(
+            new Entry(
+                null, overflowCount, (long) LONGS.getVolatile(buffer, OVERFLOW_BYTES_OFFSET)));
+      }
+      if ((long) LONGS.getVolatile(buffer, SEQUENCE_OFFSET) == sequence) {
+        return entries;
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Prints the allocation histogram that an agent started with {@code histogramFile=<path>} keeps in
+ * the given file. The file is only mapped and read, so this costs the monitored JVM nothing.
+ *
+ * <p>Usage: {@code MappedHistogramReader <path> [<seconds between polls> [<top N types>]]}
+ */
+public final class MappedHistogramReader {
+  private MappedHistogramReader() {}
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 1 || args.length > 3) {
+      System.err.println(
+          "Usage: MappedHistogramReader <path> [<seconds between polls> [<top N types>]]");
+      System.exit(2);
+    }
+    Path path = Paths.get(args[0]);
+    long intervalMillis = (args.length > 1) ? (long) (Double.parseDouble(args[1]) * 1000) : 0;
+    int top = (args.length > 2) ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    while (true) {
+      List<MappedHistogram.Entry> entries = MappedHistogram.snapshot(buffer);
+      if (entries == null) {
+        System.err.println(path + " does not contain an allocation histogram.");
+        System.exit(1);
+      }
+      print(entries, top, System.out);
+      if (intervalMillis <= 0) {
+        return;
+      }
+      Thread.sleep(intervalMillis);
+    }
+  }
+
+  private static void print(List<MappedHistogram.Entry> entries, int top, PrintStream out) {
+    Collections.sort(
+        entries,
+        new Comparator<MappedHistogram.Entry>() {
+          @Override
+          public int compare(MappedHistogram.Entry a, MappedHistogram.Entry b) {
+            return Long.compare(b.bytes, a.bytes);
+          }
+        });
+    long totalCount = 0;
+    long totalBytes = 0;
+    for (MappedHistogram.Entry entry : entries) {
+      totalCount += entry.count;
+      totalBytes += entry.bytes;
+    }
+    out.printf("%20s %16s  %s%n", "bytes", "allocations", "type");
+    for (int i = 0; i < entries.size() && i < top; i++) {
+      MappedHistogram.Entry entry = entries.get(i);
+      out.printf(
+          "%20d %16d  %s%n",
+          entry.bytes, entry.count, entry.type == null ? "(other types)" : entry.type);
+    }
+    out.printf("%20d %16d  (total)%n%n", totalBytes, totalCount);
+  }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Computes the sizes of arrays from their length and the heap layout of the running JVM, so that
+ * the recorder doesn't have to call {@link Instrumentation#getObjectSize} (a JVMTI round trip) for
+ * every array it sees.
+ *
+ * <p>The layout (the offset of the first element for each kind of array, the size of a reference,
+ * which depends on whether oops are compressed, and the object alignment) is not available through
+ * any standard API, so we probe it once, by asking {@code getObjectSize} about arrays of increasing
+ * length, and then check the result against a range of lengths. If anything doesn't add up, we
+ * don't use the probed layout for that kind of array and fall back to {@code getObjectSize}.
+ *
+ * <p>It can also compute the sizes of instances of a class without an instance to ask {@code
+ * getObjectSize} about, from the offsets of the class's fields, which {@code
+ * sun.misc.Unsafe.objectFieldOffset} gives us. That, too, is checked against {@code getObjectSize}
+ * for a few classes before we rely on it.
+ */
+final class ObjectLayout {
+  private static final Logger logger = Logger.getLogger(ObjectLayout.class.getName());
+
+  // Kinds of arrays.  Each kind has its own element size and, potentially,
+  // its own base offset.
+  static final int BOOLEAN = 0;
+  static final int BYTE = 1;
+  static final int CHAR = 2;
+  static final int SHORT = 3;
+  static final int INT = 4;
+  static final int FLOAT = 5;
+  static final int LONG = 6;
+  static final int DOUBLE = 7;
+  static final int OBJECT = 8;
+  private static final int KINDS = 9;
+
+  // The longest array we probe.  Must be long enough to cross several
+  // alignment boundaries for 1-byte elements.
+  private static final int PROBE_LENGTH = 256;
+
+  // Per kind: the offset of element 0, and log2 of the element size, or -1
+  // if we don't know the layout of that kind of array.
+  private final long[] baseOffsets = new long[KINDS];
+  private final int[] indexShifts = new int[KINDS];
+
+  // All object sizes are multiples of this.
+  private final long alignmentMask;
+
+  // Unsafe.objectFieldOffset(Field), bound to the Unsafe, and the size of an
+  // instance of a class without fields.  The handle is null if we can't get
+  // at it, or the sizes it gives us don't match getObjectSize().
+  private MethodHandle fieldOffset;
+  private long emptyInstanceSize;
+
+  private ObjectLayout(long alignment) {
+    this.alignmentMask = alignment - 1;
+  }
+
+  /**
+   * Probes the layout using the given instrumentation.
+   *
+   * @return the layout, or null if we couldn't make sense of it at all.
+   */
+  static ObjectLayout probe(Instrumentation instr) {
+    try {
+      long alignment = probeAlignment(instr);
+      if (alignment <= 0 || Long.bitCount(alignment) != 1) {
+        logger.warning("Unexpected object alignment " + alignment + "; not computing array sizes");
+        return null;
+      }
+      ObjectLayout layout = new ObjectLayout(alignment);
+      for (int kind = 0; kind < KINDS; kind++) {
+        layout.probeKind(instr, kind);
+      }
+      layout.probeInstances(instr);
+      return layout;
+    } catch (RuntimeException e) {
+      logger.warning("Could not probe the object layout; not computing array sizes: " + e);
+      return null;
+    }
+  }
+
+  // The sizes of byte arrays grow in steps of the object alignment.
+  private static long probeAlignment(Instrumentation instr) {
+    long previous = instr.getObjectSize(new byte[0]);
+    long step = 0;
+    for (int length = 1; length <= PROBE_LENGTH; length++) {
+      long size = instr.getObjectSize(new byte[length]);
+      if (size != previous) {
+        if (step == 0 || size - previous < step) {
+          step = size - previous;
+        }
+        previous = size;
+      }
+    }
+    return step;
+  }
+
+  private void probeKind(Instrumentation instr, int kind) {
+    baseOffsets[kind] = -1;
+    indexShifts[kind] = -1;
+
+    int elementSize;
+    if (kind == OBJECT) {
+      // The size of a reference is what we need to find out.  With a
+      // length of 64, the difference is a multiple of any plausible
+      // alignment, so it is exact.
+      long delta = instr.getObjectSize(new Object[64]) - instr.getObjectSize(new Object[0]);
+      elementSize = (int) (delta / 64);
+    } else {
+      elementSize = primitiveSize(kind);
+    }
+    if (elementSize <= 0 || Integer.bitCount(elementSize) != 1) {
+      return;
+    }
+
+    // The size of an empty array is the base offset rounded up to the
+    // alignment.  The array first grows at the shortest length whose elements
+    // don't fit in that, which pins the base offset down to within one
+    // element; we take the largest offset consistent with that.
+    long emptySize = instr.getObjectSize(newArray(kind, 0));
+    int firstGrowth = 1;
+    while (firstGrowth <= PROBE_LENGTH
+        && instr.getObjectSize(newArray(kind, firstGrowth)) == emptySize) {
+      firstGrowth++;
+    }
+    if (firstGrowth > PROBE_LENGTH) {
+      return;
+    }
+    long baseOffset = emptySize - (long) (firstGrowth - 1) * elementSize;
+    int indexShift = Integer.numberOfTrailingZeros(elementSize);
+
+    for (int length = 0; length <= PROBE_LENGTH; length++) {
+      long expected = instr.getObjectSize(newArray(kind, length));
+      if (align(baseOffset + ((long) length << indexShift)) != expected) {
+        logger.warning(
+            "Probed array layout for kind " + kind + " does not match; using getObjectSize");
+        return;
+      }
+    }
+    baseOffsets[kind] = baseOffset;
+    indexShifts[kind] = indexShift;
+  }
+
+  private void probeInstances(Instrumentation instr) {
+    if (indexShifts[OBJECT] < 0) {
+      // We don't know the size of a reference.
+      return;
+    }
+    MethodHandle offsetOf;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      offsetOf =
+          MethodHandles.lookup()
+              .findVirtual(
+                  unsafeClass,
+                  "objectFieldOffset",
+                  MethodType.methodType(long.class, Field.class))
+              .bindTo(theUnsafe.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return;
+    }
+    fieldOffset = offsetOf;
+
+    // Classes with fields of most sizes, and superclasses with fields.
+    Object[] instances = {
+      new Object(),
+      Boolean.TRUE,
+      Integer.valueOf(1000),
+      Long.valueOf(1L << 40),
+      new AtomicLong(),
+      new Date(),
+      new StringBuilder(),
+      new ArrayList<Object>(),
+      new HashMap<Object, Object>(),
+    };
+    try {
+      emptyInstanceSize = instr.getObjectSize(new Object());
+      for (Object instance : instances) {
+        if (instanceSize(instance.getClass()) != instr.getObjectSize(instance)) {
+          logger.warning(
+              "Computed instance size of "
+                  + instance.getClass().getName()
+                  + " does not match; not computing instance sizes");
+          fieldOffset = null;
+          return;
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.warning("Could not probe instance sizes; not computing them: " + e);
+      fieldOffset = null;
+    }
+  }
+
+  private static int primitiveSize(int kind) {
+    switch (kind) {
+      case BOOLEAN:
+      case BYTE:
+        return 1;
+      case CHAR:
+      case SHORT:
+        return 2;
+      case INT:
+      case FLOAT:
+        return 4;
+      case LONG:
+      case DOUBLE:
+        return 8;
+      default:
+        throw new IllegalArgumentException("Not a primitive kind: " + kind);
+    }
+  }
+
+  private static Object newArray(int kind, int length) {
+    switch (kind) {
+      case BOOLEAN:
+        return new boolean[length];
+      case BYTE:
+        return new byte[length];
+      case CHAR:
+        return new char[length];
+      case SHORT:
+        return new short[length];
+      case INT:
+        return new int[length];
+      case FLOAT:
+        return new float[length];
+      case LONG:
+        return new long[length];
+      case DOUBLE:
+        return new double[length];
+      default:
+        return new Object[length];
+    }
+  }
+
+  private long align(long size) {
+    return (size + alignmentMask) & ~alignmentMask;
+  }
+
+  /**
+   * Returns the size of the given array, or -1 if we don't know the layout of that kind of array.
+   *
+   * @param array an array. Note that for multidimensional arrays, this is the size of the outermost
+   *     array only.
+   */
+  long arraySize(Object array) {
+    int kind;
+    int length;
+    // Ordered roughly by how common these are.
+    if (array instanceof Object[]) {
+      kind = OBJECT;
+      length = ((Object[]) array).length;
+    } else if (array instanceof byte[]) {
+      kind = BYTE;
+      length = ((byte[]) array).length;
+    } else if (array instanceof char[]) {
+      kind = CHAR;
+      length = ((char[]) array).length;
+    } else if (array instanceof int[]) {
+      kind = INT;
+      length = ((int[]) array).length;
+    } else if (array instanceof long[]) {
+      kind = LONG;
+      length = ((long[]) array).length;
+    } else if (array instanceof double[]) {
+      kind = DOUBLE;
+      length = ((double[]) array).length;
+    } else if (array instanceof float[]) {
+      kind = FLOAT;
+      length = ((float[]) array).length;
+    } else if (array instanceof short[]) {
+      kind = SHORT;
+      length = ((short[]) array).length;
+    } else if (array instanceof boolean[]) {
+      kind = BOOLEAN;
+      length = ((boolean[]) array).length;
+    } else {
+      return -1;
+    }
+    return arraySize(kind, length);
+  }
+
+  /**
+   * Returns the size of instances of the given class, which must not be an array class, or -1 if
+   * we can't work it out.
+   */
+  long instanceSize(Class<?> cls) {
+    MethodHandle offsetOf = fieldOffset;
+    if (offsetOf == null
+        // Reflection hides some of the fields of these classes.
+        || ClassLoader.class.isAssignableFrom(cls)
+        || AccessibleObject.class.isAssignableFrom(cls)
+        || cls == MethodHandles.Lookup.class) {
+      return -1;
+    }
+    long end = 0;
+    try {
+      for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (Modifier.isStatic(field.getModifiers())) {
+            continue;
+          }
+          long offset = (long) offsetOf.invokeExact(field);
+          end = Math.max(end, offset + fieldSize(field.getType()));
+        }
+      }
+    } catch (Throwable t) {
+      // E.g., objectFieldOffset() refuses the fields of records and hidden
+      // classes.
+      return -1;
+    }
+    return (end == 0) ? emptyInstanceSize : align(end);
+  }
+
+  /**
+   * Returns whether {@link #instanceSize} can work out the size of instances of the class with the
+   * given internal name, as far as we can tell from its superclasses without loading it. It can't
+   * for records, whose field offsets {@code objectFieldOffset} refuses to give us, or for the
+   * classes whose fields reflection hides. Hidden classes can't be told apart by name, but the
+   * agent never sees their code, which is the only code that can allocate them.
+   *
+   * @param type the internal name of the class.
+   * @param loader the class loader to look its superclasses up with.
+   * @return false if we can't work it out, or can't tell.
+   */
+  boolean computesInstanceSize(String type, ClassLoader loader) {
+    if (fieldOffset == null) {
+      return false;
+    }
+    try {
+      for (String t = type; t != null; t = ClassHierarchy.get(t, loader).superName) {
+        if (t.equals("java/lang/Record")
+            || t.equals("java/lang/ClassLoader")
+            || t.equals("java/lang/reflect/AccessibleObject")
+            || t.equals("java/lang/invoke/MethodHandles$Lookup")) {
+          return false;
+        }
+      }
+    } catch (RuntimeException e) {
+      // We can't find one of the superclasses.
+      return false;
+    }
+    return true;
+  }
+
+  private int fieldSize(Class<?> type) {
+    if (!type.isPrimitive()) {
+      return 1 << indexShifts[OBJECT];
+    } else if (type == boolean.class) {
+      return primitiveSize(BOOLEAN);
+    } else if (type == byte.class) {
+      return primitiveSize(BYTE);
+    } else if (type == char.class) {
+      return primitiveSize(CHAR);
+    } else if (type == short.class) {
+      return primitiveSize(SHORT);
+    } else if (type == int.class) {
+      return primitiveSize(INT);
+    } else if (type == float.class) {
+      return primitiveSize(FLOAT);
+    } else if (type == long.class) {
+      return primitiveSize(LONG);
+    } else {
+      return primitiveSize(DOUBLE);
+    }
+  }
+
+  /** Returns whether we know the layout of the given kind of array. */
+  boolean computesArraySize(int kind) {
+    return indexShifts[kind] >= 0;
+  }
+
+  /**
+   * Returns the size of an array of the given kind and length, or -1 if we don't know the layout of
+   * that kind of array.
+   */
+  long arraySize(int kind, int length) {
+    int shift = indexShifts[kind];
+    if (shift < 0) {
+      return -1;
+    }
+    return align(baseOffsets[kind] + ((long) length << shift));
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The per-thread state of the {@link AllocationRecorder}. Everything the recorder needs to keep
+ * per thread hangs off one instance of this class, so that recording an allocation costs a single
+ * thread-local lookup, and nothing is allocated after the first allocation recorded on a thread.
+ *
+ * <p>Virtual threads are cheap, and there may be millions of them, so by default they don't get
+ * states of their own: when the JDK lets us (see {@link AllocationInstrumenter#premain}), a virtual
+ * thread uses the state of the platform thread that is carrying it, and its allocations are
+ * attributed to that carrier thread. {@link #setPerVirtualThread(boolean)} gives each virtual
+ * thread its own state instead, which costs a state (and a thread-local map) per virtual thread.
+ *
+ * <p>A state is only used by one thread at a time, between {@link #enter()} and {@link #exit()}, so
+ * nothing here is synchronized.
+ */
+final class RecorderState {
+  // The states of threads that have their own.
+  private static final ThreadLocal<RecorderState> threadStates =
+      new ThreadLocal<RecorderState>() {
+        @Override
+        protected RecorderState initialValue() {
+          return new RecorderState(Thread.currentThread());
+        }
+      };
+
+  // A jdk.internal.misc.CarrierThreadLocal, whose values belong to the
+  // carrier thread when accessed from a virtual thread, and
+  // Thread.currentCarrierThread().  Both are null when the JDK has no virtual
+  // threads, or the agent couldn't get at them; then every thread has its
+  // own state.
+  private static final ThreadLocal<RecorderState> carrierStates;
+  private static final MethodHandle currentCarrierThread;
+
+  // The state that a virtual thread using its carrier's is in the recorder
+  // with, if any.  The virtual thread may block (e.g., in a sampler) and be
+  // carried on by another carrier, whose state doesn't know that it is in
+  // the recorder, so this is what keeps it from entering again.  A plain
+  // thread-local, so it belongs to the virtual thread itself.
+  private static final ThreadLocal<RecorderState> enteredStates = new ThreadLocal<RecorderState>();
+
+  // Stands in for a carrier's state while it is being created.  Finding the
+  // carrier thread may spin classes, whose allocations mustn't be recorded.
+  private static final RecorderState creating = new RecorderState(null);
+
+  static {
+    ThreadLocal<RecorderState> states = null;
+    MethodHandle carrier = null;
+    try {
+      // Looks for virtual threads first, like
+      // AllocationInstrumenter.exposeCarrierThreads, so that older JDKs
+      // aren't asked for private access to Thread.
+      Class<?> carrierThreadLocal = Class.forName("jdk.internal.misc.CarrierThreadLocal");
+      carrier =
+          MethodHandles.privateLookupIn(Thread.class, MethodHandles.lookup())
+              .findStatic(
+                  Thread.class, "currentCarrierThread", MethodType.methodType(Thread.class));
+      @SuppressWarnings("unchecked")
+      ThreadLocal<RecorderState> s =
+          (ThreadLocal<RecorderState>) carrierThreadLocal.getConstructor().newInstance();
+      // Links the handle now, rather than when the first state is created.
+      Thread unused = (Thread) carrier.invokeExact();
+      states = s;
+    } catch (Throwable t) {
+      carrier = null;
+    }
+    carrierStates = states;
+    currentCarrierThread = carrier;
+  }
+
+  private static volatile boolean perVirtualThread = false;
+
+  /** Gives each virtual thread its own state, rather than having it use its carrier's. */
+  static void setPerVirtualThread(boolean enabled) {
+    perVirtualThread = enabled;
+  }
+
+  static boolean isPerVirtualThread() {
+    return perVirtualThread;
+  }
+
+  /**
+   * Returns the state the current thread uses, without marking it as in use. Only for reading
+   * state that the current thread set while it was in the recorder.
+   */
+  static RecorderState current() {
+    ThreadLocal<RecorderState> carriers = carrierStates;
+    // When virtual threads have their own states, so do platform threads, so
+    // that we needn't ask which kind the current thread is.  (For a platform
+    // thread, the carrier thread-local is just another thread-local.)
+    if (carriers == null || perVirtualThread) {
+      return threadStates.get();
+    }
+    RecorderState state = carriers.get();
+    if (state == null) {
+      carriers.set(creating);
+      state = new RecorderState(carrierThread());
+      carriers.set(state);
+    }
+    return state;
+  }
+
+  /**
+   * Returns the current thread's state, marked as in use by the current thread until {@link
+   * #exit()} is called. Returns null if the current thread is already in the recorder, so that
+   * allocations made by the recorder or by samplers are not themselves recorded.
+   */
+  static RecorderState enter() {
+    Thread thread = Thread.currentThread();
+    RecorderState state = current();
+    if (state == creating) {
+      return null;
+    }
+    // Only virtual threads use states that aren't their own, so platform
+    // threads never look at enteredStates.
+    boolean virtual = state.thread != thread;
+    if (virtual && enteredStates.get() != null) {
+      return null;
+    }
+    Thread user = state.user;
+    if (user != null) {
+      if (user == thread) {
+        return null;
+      }
+      // A virtual thread blocked (e.g., in a sampler) while using its
+      // carrier's state, and this virtual thread was scheduled on the
+      // carrier in the meantime.  Rather than sharing the state, which only
+      // supports one user at a time, this thread gets one of its own.
+      state = threadStates.get();
+      if (state.user != null) {
+        return null;
+      }
+    }
+    state.user = thread;
+    if (virtual) {
+      state.marked = true;
+      enteredStates.set(state);
+    }
+    return state;
+  }
+
+  /**
+   * Marks the state as no longer in use. Always called in a finally block after {@link #enter()}.
+   */
+  void exit() {
+    // Another thread may start using the state as soon as user is reset,
+    // so that comes last.
+    if (marked) {
+      marked = false;
+      enteredStates.remove();
+    }
+    user = null;
+  }
+
+  /**
+   * Returns the state the current thread is in the recorder with, which, for a virtual thread that
+   * has since moved to another carrier, isn't the one {@link #current()} returns. If the current
+   * thread isn't in the recorder, returns {@link #current()}.
+   */
+  static RecorderState entered() {
+    RecorderState state = current();
+    if (state.user == Thread.currentThread() || state.thread == Thread.currentThread()) {
+      return state;
+    }
+    RecorderState entered = enteredStates.get();
+    return (entered == null) ? state : entered;
+  }
+
+  /**
+   * Returns a state that belongs to the current thread alone, even if it is a virtual thread that
+   * would otherwise use its carrier's, for state that must follow the thread from one carrier to
+   * another.
+   */
+  static RecorderState own() {
+    RecorderState state = current();
+    Thread thread = Thread.currentThread();
+    return (state.thread == thread) ? state : threadStates.get();
+  }
+
+  private static Thread carrierThread() {
+    try {
+      return (Thread) currentCarrierThread.invokeExact();
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+
+  /**
+   * The thread this state belongs to, to which the allocations recorded with it are attributed: a
+   * platform thread, the carrier of the virtual threads that share the state, or a virtual thread
+   * with a state of its own.
+   */
+  final Thread thread;
+
+  /**
+   * The thread currently inside the recorder with this state, or null. Always reset in a finally
+   * block, so that a sampler that throws doesn't turn recording off for the thread.
+   */
+  Thread user;
+
+  /** Whether {@link #user} is a virtual thread that has this state in {@code enteredStates}. */
+  boolean marked;
+
+  /**
+   * The sampling interval that {@link #bytesUntilSample} was drawn from. If the global interval
+   * changes, we redraw rather than finishing the old countdown.
+   */
+  long samplingInterval;
+
+  /** The number of bytes this thread can allocate before the next sampled allocation. */
+  long bytesUntilSample;
+
+  /**
+   * This thread's buffer of events for the {@link AllocationEventConsumer}s. Created the first time
+   * the thread records an event.
+   */
+  AllocationEventBuffer eventBuffer;
+
+  /** This thread's allocations that haven't been passed to the {@link BatchSampler}s yet. */
+  AllocationEventBatch samplerBatch;
+
+  /** This thread's per-type allocation totals. Created when accounting first sees the thread. */
+  ThreadAllocationTable allocationTable;
+
+  /** Scratch space for capturing stacks. Created the first time the thread captures a stack. */
+  StackCapture stackCapture;
+
+  /**
+   * The {@link AllocationStackTable} ID of the stack of the allocation being passed to the
+   * samplers, if any.
+   */
+  int stackId = AllocationStackTable.NO_STACK;
+
+  /**
+   * The last object passed to {@link ConstructorInstrumenter#invokeSamplers(Object)}, so that
+   * constructors that chain to a superclass constructor don't invoke the samplers twice.
+   */
+  Object lastConstructed;
+
+  private RecorderState(Thread thread) {
+    this.thread = thread;
+  }
+}
@@ -34,4 +34,24 @@ public interface Sampler {
    * @param size the size of the object being allocated.
    */
   public void sampleAllocation(int count, String desc, Object newObj, long size);
+
+  /**
+   * Like {@link #sampleAllocation(int, String, Object, long)}, but identifies the type being
+   * allocated by its {@link TypeIdRegistry} ID. The recorder calls this version; the default
+   * implementation looks up the descriptor and calls the String version. Samplers that aggregate by
+   * type can override this to avoid dealing with Strings at all, and look up the descriptor with
+   * {@link TypeIdRegistry#getDescriptor(int)} (or the class with {@code newObj.getClass()}) only
+   * when they need it.
+   *
+   * <p>The same cautions about allocation apply.
+   *
+   * @param count the <code>int</code> count of how many instances are being allocated, as for the
+   *     String version.
+   * @param typeId the {@link TypeIdRegistry} ID of the class/primitive type being allocated.
+   * @param newObj the new <code>Object</code> whose allocation we're recording.
+   * @param size the size of the object being allocated.
+   */
+  public default void sampleAllocation(int count, int typeId, Object newObj, long size) {
+    sampleAllocation(count, TypeIdRegistry.getDescriptor(typeId), newObj, size);
+  }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The {@link Sampler}s registered with the {@link AllocationRecorder}, with the lists of those
+ * interested in each type. A type's list is worked out from the samplers' {@link
+ * AllocationFilter}s the first time the type is allocated, and kept in a table indexed by {@link
+ * TypeIdRegistry} ID, so allocations of types no sampler wants cost an array lookup.
+ *
+ * <p>Instances are immutable apart from the table, which is only a cache; adding or removing a
+ * sampler makes a new instance.
+ */
+final class SamplerDispatch {
+  /** A sampler, and the size below which it isn't interested in allocations of a matching type. */
+  static final class Subscription {
+    final Sampler sampler;
+    final AllocationFilter filter;
+    final long minimumSize;
+
+    Subscription(Sampler sampler, AllocationFilter filter) {
+      this.sampler = sampler;
+      this.filter = filter;
+      this.minimumSize = filter.getMinimumSize();
+    }
+  }
+
+  private static final Subscription[] NONE = new Subscription[0];
+
+  private final Subscription[] subscriptions;
+
+  // True if every subscription matches every type, in which case there is
+  // no need for the table.
+  private final boolean allTypes;
+
+  // The subscriptions matching type i are at 2 * i for instances, and
+  // 2 * i + 1 for arrays.  Null until worked out.  Replaced by a bigger copy
+  // when there are more types.
+  private volatile AtomicReferenceArray<Subscription[]> table;
+
+  private SamplerDispatch(Subscription[] subscriptions) {
+    this.subscriptions = subscriptions;
+    boolean all = true;
+    for (Subscription s : subscriptions) {
+      all &= s.filter.matchesAllTypes();
+    }
+    allTypes = all;
+    table =
+        new AtomicReferenceArray<Subscription[]>(2 * Math.max(TypeIdRegistry.getTypeCount(), 64));
+  }
+
+  /** Returns a dispatch with the given sampler added. The old dispatch may be null. */
+  static SamplerDispatch with(SamplerDispatch old, Sampler sampler, AllocationFilter filter) {
+    Subscription[] subs = (old == null) ? NONE : old.subscriptions;
+    Subscription[] newSubs = new Subscription[subs.length + 1];
+    System.arraycopy(subs, 0, newSubs, 0, subs.length);
+    newSubs[subs.length] = new Subscription(sampler, filter);
+    return new SamplerDispatch(newSubs);
+  }
+
+  /**
+   * Returns a dispatch with every subscription of the given sampler removed, or null if there are
+   * none left. The old dispatch may be null.
+   */
+  static SamplerDispatch without(SamplerDispatch old, Sampler sampler) {
+    if (old == null) {
+      return null;
+    }
+    int count = 0;
+    for (Subscription s : old.subscriptions) {
+      if (!s.sampler.equals(sampler)) {
+        count++;
+      }
+    }
+    if (count == 0) {
+      return null;
+    }
+    Subscription[] newSubs = new Subscription[count];
+    int i = 0;
+    for (Subscription s : old.subscriptions) {
+      if (!s.sampler.equals(sampler)) {
+        newSubs[i++] = s;
+      }
+    }
+    return new SamplerDispatch(newSubs);
+  }
+
+  /**
+   * Returns the subscriptions interested in the given type, or null if there are none.
+   *
+   * @param typeId the {@link TypeIdRegistry} ID of the allocated type.
+   * @param isArray whether an array of the type is being allocated.
+   */
+  Subscription[] forType(int typeId, boolean isArray) {
+    if (allTypes) {
+      return subscriptions;
+    }
+    int i = 2 * typeId + (isArray ? 1 : 0);
+    AtomicReferenceArray<Subscription[]> t = table;
+    Subscription[] subs = (i < t.length()) ? t.get(i) : null;
+    if (subs == null) {
+      subs = resolve(typeId, isArray, i);
+    }
+    return (subs.length == 0) ? null : subs;
+  }
+
+  private Subscription[] resolve(int typeId, boolean isArray, int i) {
+    String descriptor = TypeIdRegistry.getDescriptor(typeId);
+    int count = 0;
+    for (Subscription s : subscriptions) {
+      if (s.filter.matchesType(descriptor, isArray)) {
+        count++;
+      }
+    }
+    Subscription[] subs = NONE;
+    if (count > 0) {
+      subs = new Subscription[count];
+      int j = 0;
+      for (Subscription s : subscriptions) {
+        if (s.filter.matchesType(descriptor, isArray)) {
+          subs[j++] = s;
+        }
+      }
+    }
+
+    AtomicReferenceArray<Subscription[]> t = table;
+    if (i >= t.length()) {
+      synchronized (this) {
+        t = table;
+        if (i >= t.length()) {
+          // Entries resolved into the old table while we copy are lost, and
+          // just get resolved again.
+          AtomicReferenceArray<Subscription[]> bigger =
+              new AtomicReferenceArray<Subscription[]>(Math.max(2 * t.length(), i + 2));
+          for (int j = 0; j < t.length(); j++) {
+            bigger.set(j, t.get(j));
+          }
+          table = bigger;
+          t = bigger;
+        }
+      }
+    }
+    t.set(i, subs);
+    return subs;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.StackWalker.StackFrame;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Captures the current thread's stack into the {@link AllocationStackTable}. Uses {@link
+ * StackWalker}, which only materializes the frames it is asked for, rather than {@code new
+ * Throwable().getStackTrace()}, which fills in the whole stack.
+ *
+ * <p>Each {@link RecorderState} has its own instance, which holds the scratch space for a walk, so
+ * capturing a stack doesn't allocate beyond what StackWalker does.
+ */
+final class StackCapture implements Function<Stream<StackFrame>, Integer> {
+  private static final StackWalker walker = StackWalker.getInstance();
+
+  // The recorder's own frames are at the top of every captured stack.
+  private static final String RECORDER_CLASS = AllocationRecorder.class.getName();
+  private static final String CAPTURE_CLASS = StackCapture.class.getName();
+
+  // Frames are collected innermost first, and then interned outermost first,
+  // since the trie is rooted at the outermost frame.
+  private int[] frameIds = new int[0];
+  private final AllocationStackTable.Frame probe = new AllocationStackTable.Frame();
+
+  // The parameters of the current walk.
+  private int maxDepth;
+  private String[] excludedPrefixes;
+
+  /**
+   * Returns the stack ID of the current stack, starting at the caller of the recorder, and keeping
+   * at most {@code maxDepth} frames whose classes don't start with one of the excluded prefixes.
+   * Returns {@link AllocationStackTable#NO_STACK} if no frames are kept.
+   */
+  int capture(int maxDepth, String[] excludedPrefixes) {
+    if (frameIds.length < maxDepth) {
+      frameIds = new int[maxDepth];
+    }
+    this.maxDepth = maxDepth;
+    this.excludedPrefixes = excludedPrefixes;
+    return walker.walk(this);
+  }
+
+  @Override
+  public Integer apply(Stream<StackFrame> stream) {
+    Iterator<StackFrame> it = stream.iterator();
+    int depth = 0;
+    boolean inRecorder = true;
+    while (depth < maxDepth && it.hasNext()) {
+      StackFrame frame = it.next();
+      String className = frame.getClassName();
+      if (inRecorder) {
+        if (className.equals(CAPTURE_CLASS) || className.equals(RECORDER_CLASS)) {
+          continue;
+        }
+        inRecorder = false;
+      }
+      if (isExcluded(className)) {
+        continue;
+      }
+      probe.set(className, frame.getMethodName(), frame.getFileName(), frame.getLineNumber());
+      frameIds[depth++] = AllocationStackTable.internFrame(probe);
+    }
+    int stackId = AllocationStackTable.NO_STACK;
+    for (int i = depth - 1; i >= 0; i--) {
+      stackId = AllocationStackTable.internStack(stackId, frameIds[i]);
+    }
+    return stackId;
+  }
+
+  private boolean isExcluded(String className) {
+    for (String prefix : excludedPrefixes) {
+      if (className.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -40,23 +40,22 @@ package com.google.monitoring.runtime.instrumentation;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
-import java.io.InputStream;
-import java.io.IOException;
-
 /**
  * A {@link ClassWriter} that looks for static class data in the
- * classpath when the classes are not available at runtime.
+ * classpath rather than in loaded classes.
  *
  * <p>ClassWriter uses class hierarchy information, which it gets by
  * looking at loaded classes, to make some decisions about the best
  * way to write classes.  The problem with this is that it fails if
- * the superclass hasn't been loaded yet.  StaticClassWriter fails
- * over to looking for the class hierarchy information in the
- * ClassLoader's resources (usually the classpath) if the class it
- * needs hasn't been loaded yet.
+ * the superclass hasn't been loaded yet, and that loading it from a
+ * transformer can initialize it, or load it with the wrong class
+ * loader.  StaticClassWriter gets the class hierarchy information
+ * from {@link ClassHierarchy}, which has the classes the agent has
+ * seen, and otherwise reads the ClassLoader's resources (usually the
+ * classpath), so it never loads a class.  Finding the common
+ * superclass of two classes is then a matter of a few hash lookups.
  *
  * <p>This class was heavily influenced by ASM's
  * org.objectweb.asm.util.ClassWriterComputeFramesTest, which contains
@@ -68,8 +67,6 @@ public class StaticClassWriter extends ClassWriter {
   /* The classloader that we use to look for the unloaded class */
   private final ClassLoader classLoader;
 
-  /* Whether to always load class data statically. */
-  private boolean alwaysStatic;
 
   /**
    * {@inheritDoc}
@@ -79,20 +76,17 @@ public class StaticClassWriter extends ClassWriter {
       ClassReader classReader, int flags, ClassLoader classLoader) {
     super(classReader, flags);
     this.classLoader = classLoader;
-    this.alwaysStatic = false;
   }
 
   /**
    * {@inheritDoc}
    * @param classLoader the class loader that loaded this class
-   * @param alwaysStatic whether to always load class data statically
+   * @param alwaysStatic ignored: class data is always loaded statically
    */
   public StaticClassWriter(
       ClassReader classReader, int flags, ClassLoader classLoader,
       boolean alwaysStatic) {
-    super(classReader, flags);
-    this.classLoader = classLoader;
-    this.alwaysStatic = alwaysStatic;
+    this(classReader, flags, classLoader);
   }
 
 
@@ -101,19 +95,12 @@ public class StaticClassWriter extends ClassWriter {
    */
   @Override protected String getCommonSuperClass(
       final String type1, final String type2) {
-    if (!alwaysStatic) {
-      try {
-        return super.getCommonSuperClass(type1, type2);
-      } catch (Throwable e) {
-        // Try something else...
-      }
-    }
     // Exactly the same as in ClassWriter, but gets the superclass
-    // directly from the class file.
+    // from the class hierarchy index rather than from loaded classes.
     ClassInfo ci1, ci2;
     try {
-      ci1 = new ClassInfo(type1, classLoader, alwaysStatic);
-      ci2 = new ClassInfo(type2, classLoader, alwaysStatic);
+      ci1 = new ClassInfo(type1, classLoader);
+      ci2 = new ClassInfo(type2, classLoader);
     } catch (Throwable e) {
       throw new RuntimeException(e);
     }
@@ -137,9 +124,7 @@ public class StaticClassWriter extends ClassWriter {
 
   /**
    * For a given class, this stores the information needed by the
-   * getCommonSuperClass test.  This determines if the class is
-   * available at runtime, and then, if it isn't, it tries to get the
-   * class file, and extract the appropriate information from that.
+   * getCommonSuperClass test, as found in the {@link ClassHierarchy}.
    */
   static class ClassInfo {
 
@@ -148,82 +133,14 @@ public class StaticClassWriter extends ClassWriter {
     private final boolean isInterface;
     private final String superClass;
     private final String[] interfaces;
-    private final boolean alwaysStatic;
-
-    public ClassInfo(String type, ClassLoader loader, boolean alwaysStatic) {
-      this.alwaysStatic = alwaysStatic;
-      if (!alwaysStatic) {
-        Class cls = null;
-        // First, see if we can extract the information from the class...
-        try {
-          cls = Class.forName(type);
-        } catch (Exception e) {
-          // failover...
-        }
-
-        if (cls != null) {
-          this.type = Type.getType(cls);
-          this.loader = loader;
-          this.isInterface = cls.isInterface();
-          this.superClass = cls.getSuperclass().getName();
-          Class[] ifs = cls.getInterfaces();
-          this.interfaces = new String[ifs.length];
-          for (int i = 0; i < ifs.length; i++) {
-            this.interfaces[i] = ifs[i].getName();
-          }
-          return;
-        }
-      }
 
-      // The class isn't loaded.  Try to get the class file, and
-      // extract the information from that.
-      this.loader = loader;
+    public ClassInfo(String type, ClassLoader loader) {
+      ClassHierarchy.Entry entry = ClassHierarchy.get(type, loader);
       this.type = Type.getObjectType(type);
-      String fileName = type.replace('.', '/') + ".class";
-      InputStream is = null;
-      ClassReader cr;
-      try {
-        is = (loader == null) ?
-            ClassLoader.getSystemResourceAsStream(fileName) :
-            loader.getResourceAsStream(fileName);
-        cr = new ClassReader(is);
-      } catch (IOException e) {
-        throw new RuntimeException("Error reading: " + fileName, e);
-      } finally {
-        if (is != null) {
-          try {
-            is.close();
-          } catch (Exception e) {
-          }
-        }
-      }
-
-      int offset = cr.header;
-      isInterface = (cr.readUnsignedShort(offset) & Opcodes.ACC_INTERFACE) != 0;
-      char[] buf = new char[2048];
-
-      // Read the superclass
-      offset += 4;
-      superClass = readConstantPoolString(cr, offset, buf);
-
-      // Read the interfaces
-      offset += 2;
-      int numInterfaces = cr.readUnsignedShort(offset);
-      interfaces = new String[numInterfaces];
-      offset += 2;
-      for (int i = 0; i < numInterfaces; i++) {
-        interfaces[i] = readConstantPoolString(cr, offset, buf);
-        offset += 2;
-      }
-    }
-
-    String readConstantPoolString(ClassReader cr, int offset, char[] buf) {
-      int cpIndex = cr.getItem(cr.readUnsignedShort(offset));
-      if (cpIndex == 0) {
-        return null;
-        // throw new RuntimeException("Bad constant pool index");
-      }
-      return cr.readUTF8(cpIndex, buf);
+      this.loader = loader;
+      this.isInterface = entry.isInterface;
+      this.superClass = entry.superName;
+      this.interfaces = entry.interfaces;
     }
 
     Type getType() {
@@ -234,7 +151,7 @@ public class StaticClassWriter extends ClassWriter {
       if (superClass == null) {
         return null;
       }
-      return new ClassInfo(superClass, loader, alwaysStatic);
+      return new ClassInfo(superClass, loader);
     }
 
     /**
@@ -246,7 +163,7 @@ public class StaticClassWriter extends ClassWriter {
       }
       ClassInfo[] result = new ClassInfo[interfaces.length];
       for (int i = 0; i < result.length; ++i) {
-        result[i] = new ClassInfo(interfaces[i], loader, alwaysStatic);
+        result[i] = new ClassInfo(interfaces[i], loader);
       }
       return result;
     }
@@ -284,7 +201,7 @@ public class StaticClassWriter extends ClassWriter {
      * Same as {@link Class#isAssignableFrom(Class)}
      */
     boolean isAssignableFrom(ClassInfo that) {
-      return (this == that ||
+      return (type.equals(that.type) ||
               that.isSubclassOf(this) ||
               that.implementsInterface(this) ||
               (that.isInterface()
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One thread's allocation counts and bytes, by {@link TypeIdRegistry} ID. Only the owning thread
+ * writes to a table, without any synchronization, so keeping it costs about as much as
+ * incrementing two array elements. Other threads merge the tables into {@link AllocationHistogram}s
+ * on demand.
+ */
+final class ThreadAllocationTable {
+  // The counts and bytes for type i are at PAD + 2 * i and PAD + 2 * i + 1,
+  // so they share a cache line.  The padding at either end keeps the ends of
+  // the array off cache lines shared with other threads' objects.
+  private static final int PAD = 8;
+
+  // Threads (particularly virtual ones) may only ever allocate a few types,
+  // so tables start small, and grow to fit the types actually allocated.
+  private static final int INITIAL_TYPES = 64;
+
+  // Opaque accesses are plain loads and stores on the platforms we care
+  // about, but keep readers from seeing torn or indefinitely stale values.
+  private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+  // Guarded by tablesLock.
+  private static final List<ThreadAllocationTable> tables = new ArrayList<ThreadAllocationTable>();
+
+  // The allocations of threads that have exited.  Guarded by tablesLock.
+  private static long[] retired = new long[0];
+
+  private static final Object tablesLock = new Object();
+
+  // Replaced (by the owner) when it grows.
+  private volatile long[] slots;
+  private final WeakReference<Thread> owner;
+
+  private ThreadAllocationTable(Thread owner) {
+    this.owner = new WeakReference<Thread>(owner);
+    slots = new long[2 * PAD + 2 * INITIAL_TYPES];
+  }
+
+  /**
+   * Creates and registers a table for the given thread. Only that thread, or the virtual threads it
+   * carries, may write to it.
+   */
+  static ThreadAllocationTable create(Thread owner) {
+    ThreadAllocationTable table = new ThreadAllocationTable(owner);
+    synchronized (tablesLock) {
+      tables.add(table);
+    }
+    return table;
+  }
+
+  /** Counts an allocation. Only called by the owner. */
+  void record(int typeId, long size) {
+    long[] s = slots;
+    int i = PAD + 2 * typeId;
+    if (i + 1 >= s.length - PAD) {
+      s = grow(typeId);
+    }
+    LONGS.setOpaque(s, i, (long) LONGS.getOpaque(s, i) + 1);
+    LONGS.setOpaque(s, i + 1, (long) LONGS.getOpaque(s, i + 1) + size);
+  }
+
+  private long[] grow(int typeId) {
+    long[] old = slots;
+    int types = Math.max(typeId + 1, old.length - 2 * PAD);
+    long[] s = new long[2 * PAD + 2 * types];
+    for (int i = PAD; i < old.length - PAD; i++) {
+      s[i] = (long) LONGS.getOpaque(old, i);
+    }
+    slots = s;
+    return s;
+  }
+
+  /** Adds this table's counts and bytes, indexed by 2 * type ID, to the given array. */
+  private long[] addTo(long[] totals) {
+    long[] s = slots;
+    int length = s.length - 2 * PAD;
+    if (totals.length < length) {
+      totals = Arrays.copyOf(totals, length);
+    }
+    for (int i = 0; i < length; i++) {
+      totals[i] += (long) LONGS.getOpaque(s, PAD + i);
+    }
+    return totals;
+  }
+
+  /** Returns the allocations of all threads, including ones that have exited. */
+  static AllocationHistogram snapshot() {
+    synchronized (tablesLock) {
+      retireDeadThreads();
+      long[] totals = retired.clone();
+      for (ThreadAllocationTable table : tables) {
+        totals = table.addTo(totals);
+      }
+      return new AllocationHistogram(totals);
+    }
+  }
+
+  /** Returns the allocations of each live thread that has allocated since accounting started. */
+  static Map<Thread, AllocationHistogram> snapshotByThread() {
+    // A thread can have more than one table, e.g., if it was given a new
+    // recorder state when virtual thread attribution was turned on.
+    Map<Thread, long[]> totals = new LinkedHashMap<Thread, long[]>();
+    synchronized (tablesLock) {
+      retireDeadThreads();
+      for (ThreadAllocationTable table : tables) {
+        Thread thread = table.owner.get();
+        if (thread != null) {
+          long[] t = totals.get(thread);
+          totals.put(thread, table.addTo(t == null ? new long[0] : t));
+        }
+      }
+    }
+    Map<Thread, AllocationHistogram> result = new LinkedHashMap<Thread, AllocationHistogram>();
+    for (Map.Entry<Thread, long[]> entry : totals.entrySet()) {
+      result.put(entry.getKey(), new AllocationHistogram(entry.getValue()));
+    }
+    return result;
+  }
+
+  // Guarded by tablesLock.
+  private static void retireDeadThreads() {
+    for (int i = tables.size() - 1; i >= 0; i--) {
+      ThreadAllocationTable table = tables.get(i);
+      Thread thread = table.owner.get();
+      if (thread == null || !thread.isAlive()) {
+        retired = table.addTo(retired);
+        tables.remove(i);
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2026 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.monitoring.runtime.instrumentation;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the descriptors of allocated types to small, dense integer IDs. IDs are handed out in
+ * order starting at 0, so samplers can aggregate by type into primitive arrays indexed by ID
+ * instead of hashing descriptor Strings on every allocation.
+ *
+ * <p>The descriptors are the ones passed to {@link Sampler#sampleAllocation(int, String, Object,
+ * long)}: internal class names with '/' separators for objects and reference arrays, and the names
+ * of primitive types (e.g., "long") for primitive arrays. IDs are only meaningful within the JVM
+ * that assigned them. Since descriptors are names, classes with the same name loaded by different
+ * class loaders share an ID.
+ */
+public final class TypeIdRegistry {
+  // Protects registration of new types.  Reads are okay because the fields
+  // are volatile, and an ID is only published after its descriptor is stored.
+  private static final Object registryLock = new Object();
+
+  private static final ConcurrentHashMap<String, Integer> ids =
+      new ConcurrentHashMap<String, Integer>();
+
+  private static volatile String[] descriptors = new String[1024];
+
+  private static volatile int typeCount = 0;
+
+  private static final ClassValue<Integer> classIds =
+      new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> cls) {
+          return getTypeId(cls.getName());
+        }
+      };
+
+  private TypeIdRegistry() {}
+
+  /**
+   * Returns the ID for the given type descriptor, assigning a new one if it hasn't been seen
+   * before. Descriptors in '.'-separated form are treated the same as their '/'-separated form.
+   *
+   * @param descriptor the descriptor of the class/primitive type.
+   * @return the ID of the type.
+   */
+  public static int getTypeId(String descriptor) {
+    Integer id = ids.get(descriptor);
+    if (id != null) {
+      return id;
+    }
+    return register(descriptor);
+  }
+
+  /**
+   * Returns the ID of the given class. This is the same as the ID of its descriptor, but is
+   * computed only once per class.
+   *
+   * @param cls the class.
+   * @return the ID of the class's descriptor.
+   */
+  public static int getTypeId(Class<?> cls) {
+    return classIds.get(cls);
+  }
+
+  /**
+   * Returns the descriptor of the type with the given ID.
+   *
+   * @param typeId an ID returned by {@link #getTypeId}.
+   * @return the '/'-separated descriptor for the type.
+   * @throws IllegalArgumentException if no type has the given ID.
+   */
+  public static String getDescriptor(int typeId) {
+    String[] descs = descriptors;
+    String desc = (typeId >= 0 && typeId < descs.length) ? descs[typeId] : null;
+    if (desc == null) {
+      throw new IllegalArgumentException("Unknown type ID " + typeId);
+    }
+    return desc;
+  }
+
+  /**
+   * Returns the number of IDs that have been handed out. All IDs are less than this, so it can be
+   * used to size arrays indexed by type ID.
+   *
+   * @return the number of registered types.
+   */
+  public static int getTypeCount() {
+    return typeCount;
+  }
+
+  private static int register(String descriptor) {
+    String normalized = descriptor.replace('.', '/');
+    synchronized (registryLock) {
+      Integer id = ids.get(normalized);
+      if (id == null) {
+        id = typeCount;
+        String[] descs = descriptors;
+        if (id == descs.length) {
+          descs = Arrays.copyOf(descs, descs.length * 2);
+        }
+        descs[id] = normalized;
+        descriptors = descs;
+        typeCount++;
+        ids.put(normalized, id);
+      }
+      // Remember the un-normalized form too, so that we only ever do the
+      // replace once per descriptor.
+      ids.putIfAbsent(descriptor, id);
+      return id;
+    }
+  }
+}
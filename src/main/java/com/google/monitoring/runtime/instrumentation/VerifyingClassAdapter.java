@@ -17,6 +17,8 @@
 package com.google.monitoring.runtime.instrumentation;
 
 import org.objectweb.asm.Opcodes;
+import java.util.Collections;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.objectweb.asm.ClassVisitor;
@@ -44,6 +46,7 @@ public class VerifyingClassAdapter extends ClassVisitor {
   final ClassWriter cw;
   final byte[] original;
   final String className;
+  final Set<String> unchangedMethods;
   String message;
   State state;
 
@@ -53,12 +56,26 @@ public class VerifyingClassAdapter extends ClassVisitor {
    * @param className the name of the class being examined.
    */
   public VerifyingClassAdapter(ClassWriter cw, byte[] original, String className) {
+    this(cw, original, className, Collections.<String>emptySet());
+  }
+
+  /**
+   * @param cw A class writer that is wrapped by this class adapter
+   * @param original the original bytecode
+   * @param className the name of the class being examined.
+   * @param unchangedMethods the names followed by the descriptors of the methods that are passed
+   *     on without being changed. They are passed straight to the writer, so that it can copy them
+   *     verbatim; they are no longer than they were.
+   */
+  VerifyingClassAdapter(
+      ClassWriter cw, byte[] original, String className, Set<String> unchangedMethods) {
     super(Opcodes.ASM9, cw);
     state = State.UNKNOWN;
     message = "The class has not finished being examined";
     this.cw = cw;
     this.original = original;
     this.className = className.replace('/', '.');
+    this.unchangedMethods = unchangedMethods;
   }
 
   /**
@@ -75,6 +92,9 @@ public class VerifyingClassAdapter extends ClassVisitor {
       final String signature,
       final String[] exceptions) {
     MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+    if (unchangedMethods.contains(name + desc)) {
+      return mv;
+    }
     return new CodeSizeEvaluator(mv) {
       @Override
       public void visitEnd() {
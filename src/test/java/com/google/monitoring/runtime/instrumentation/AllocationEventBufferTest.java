@@ -0,0 +1,73 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AllocationEventBuffer}. */
+@RunWith(JUnit4.class)
+public class AllocationEventBufferTest {
+  @Test
+  public void testCapacityRoundsUpToPowerOfTwo() {
+    assertEquals(8, new AllocationEventBuffer(5, Thread.currentThread()).capacity());
+    assertEquals(8, new AllocationEventBuffer(8, Thread.currentThread()).capacity());
+    assertEquals(2, new AllocationEventBuffer(1, Thread.currentThread()).capacity());
+  }
+
+  @Test
+  public void testDrainPreservesOrderAcrossWraparound() {
+    AllocationEventBuffer buffer = new AllocationEventBuffer(4, Thread.currentThread());
+    AllocationEventBatch batch = new AllocationEventBatch(buffer.capacity());
+    int next = 0;
+    int expected = 0;
+    for (int round = 0; round < 10; round++) {
+      // Write a different number of events each time, so that the indices
+      // wrap at different points.
+      for (int i = 0; i < 1 + round % 4; i++, next++) {
+        assertTrue(buffer.offer(next, 2 * next, 3 * next, -1, 16 * next, next));
+      }
+      assertEquals(1 + round % 4, buffer.drainTo(batch));
+      assertEquals(AllocationEventBuffer.threadId(Thread.currentThread()), batch.getThreadId());
+      for (int i = 0; i < batch.size(); i++, expected++) {
+        assertEquals(expected, batch.getTypeId(i));
+        assertEquals(2 * expected, batch.getSiteId(i));
+        assertEquals(3 * expected, batch.getStackId(i));
+        assertEquals(-1, batch.getCount(i));
+        assertEquals(16 * expected, batch.getSize(i));
+        assertEquals(expected, batch.getTimestamp(i));
+      }
+      assertTrue(buffer.isEmpty());
+    }
+    assertEquals(next, expected);
+  }
+
+  @Test
+  public void testOfferFailsWhenFull() {
+    AllocationEventBuffer buffer = new AllocationEventBuffer(4, Thread.currentThread());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(buffer.offer(i, i, i, i, i, i));
+    }
+    assertFalse(buffer.offer(4, 4, 4, 4, 4, 4));
+    buffer.drop();
+    assertEquals(1, buffer.getDroppedCount());
+
+    AllocationEventBatch batch = new AllocationEventBatch(buffer.capacity());
+    assertEquals(4, buffer.drainTo(batch));
+    assertEquals(3, batch.getTypeId(3));
+    assertTrue(buffer.offer(5, 5, 5, 5, 5, 5));
+  }
+
+  @Test
+  public void testBatchChecksIndex() {
+    AllocationEventBuffer buffer = new AllocationEventBuffer(4, Thread.currentThread());
+    buffer.offer(1, 1, 1, 1, 1, 1);
+    final AllocationEventBatch batch = new AllocationEventBatch(buffer.capacity());
+    buffer.drainTo(batch);
+    assertThrows(IndexOutOfBoundsException.class, () -> batch.getSize(1));
+  }
+}
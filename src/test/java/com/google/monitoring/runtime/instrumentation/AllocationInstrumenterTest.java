@@ -2,8 +2,10 @@ package com.google.monitoring.runtime.instrumentation;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.Collections;
 import java.util.ArrayList;
@@ -20,6 +22,9 @@ public class AllocationInstrumenterTest {
   // needs to be static so recorder can use it, which prevents parallelization
   // of test cases.
   private static List<Event> actualEventList;
+
+  // The site passed to the last call of the site-based recorder.
+  private static AllocationSite lastSite;
   private static List<Event> expectedEventList;
 
   @Before
@@ -171,6 +176,37 @@ public class AllocationInstrumenterTest {
     assertEquals(expectedEventList, actualEventList);
   }
 
+  @Test
+  public void testBranchesWithUninitializedObjects() throws Exception {
+    Class<?> instrumenteeClass =
+        InstrumentingClassLoader.getInstrumenteeClass(
+            AllocationInstrumenterTest.class.getName().replace('.', '/'),
+            "recorder",
+            "com.google.monitoring.runtime.instrumentation.Instrumentee");
+
+    Object tempo = instrumenteeClass.getConstructor().newInstance();
+
+    // Loading the class verified the frames of the inserted code.
+    String genericName = "com/google/monitoring/runtime/instrumentation/Instrumentee$Generic";
+    Method m = instrumenteeClass.getMethod("allocateMultiDimArrayInConstructorCall", Boolean.TYPE);
+    Object generic = m.invoke(tempo, true);
+    // The dimensions, the reflective array, the multidimensional array and
+    // the Generic.
+    assertEquals(4, actualEventList.size());
+    Object reflected = actualEventList.get(1).newObj;
+    Object multiDim = actualEventList.get(2).newObj;
+    expectedEventList.add(new Event(2 * 3, "int", reflected));
+    expectedEventList.add(new Event(2 * 3, "[[I", multiDim));
+    expectedEventList.add(new Event(-1, genericName, generic));
+    assertEquals(expectedEventList, actualEventList.subList(1, 4));
+
+    actualEventList.clear();
+    expectedEventList.clear();
+    generic = m.invoke(tempo, false);
+    expectedEventList.add(new Event(-1, genericName, generic));
+    assertEquals(expectedEventList, actualEventList);
+  }
+
   @Test
   public void testLambda() throws Exception {
     Class<?> instrumenteeClass =
@@ -194,6 +230,115 @@ public class AllocationInstrumenterTest {
     assertEquals(Collections.emptyList(), actualEventList);
   }
 
+  @Test
+  public void testTypeIdInstrumentation() throws Exception {
+    Class<?> instrumenteeClass =
+        InstrumentingClassLoader.getTypeIdInstrumenteeClass(
+            AllocationInstrumenterTest.class.getName().replace('.', '/'),
+            "recorder",
+            "com.google.monitoring.runtime.instrumentation.Instrumentee");
+
+    Object tempo = instrumenteeClass.getConstructor().newInstance();
+
+    Method m;
+
+    m = instrumenteeClass.getMethod("allocateObject");
+    Object o = m.invoke(tempo);
+    expectedEventList.add(new Event(-1, "java/lang/Object", o));
+
+    m = instrumenteeClass.getMethod("allocateLongArray", Integer.TYPE);
+    long[] ia = (long[]) m.invoke(tempo, 27);
+    expectedEventList.add(new Event(27, "long", ia));
+
+    m = instrumenteeClass.getMethod("allocateMultiDimObjectArray");
+    Object mda = m.invoke(tempo);
+    expectedEventList.add(new Event(3 * 5 * 7, "java/lang/Object", mda));
+
+    // Unlike with descriptors, reflective allocations are reported with '/'.
+    m =
+        instrumenteeClass.getMethod(
+            "allocateArrayViaReflection", new Class<?>[] {Integer.TYPE, Class.class});
+    Object lar = m.invoke(tempo, 5, List.class);
+    expectedEventList.add(new Event(5, "java/util/List", lar));
+
+    m =
+        instrumenteeClass.getMethod(
+            "allocateMultiDimArrayViaReflection",
+            new Class<?>[] {(new int[0]).getClass(), Class.class});
+    Object mdlr = m.invoke(tempo, new int[] {7, 9, 11}, List.class);
+    expectedEventList.add(new Event(7 * 9 * 11, "java/util/List", mdlr));
+
+    m = instrumenteeClass.getMethod("allocateGeneric", Class.class);
+    String g = (String) m.invoke(tempo, String.class);
+    expectedEventList.add(new Event(-1, "java/lang/String", g));
+
+    assertEquals(expectedEventList, actualEventList);
+  }
+
+  @Test
+  public void testAllocationSites() throws Exception {
+    Class<?> instrumenteeClass =
+        InstrumentingClassLoader.getTypeIdInstrumenteeClass(
+            AllocationInstrumenterTest.class.getName().replace('.', '/'),
+            "recorder",
+            "com.google.monitoring.runtime.instrumentation.Instrumentee");
+    Object tempo = instrumenteeClass.getConstructor().newInstance();
+
+    Method m = instrumenteeClass.getMethod("allocateLongArray", Integer.TYPE);
+    m.invoke(tempo, 27);
+    AllocationSite site = lastSite;
+    assertEquals("com/google/monitoring/runtime/instrumentation/Instrumentee", site.getClassName());
+    assertEquals("allocateLongArray", site.getMethodName());
+    assertEquals("(I)[J", site.getMethodDescriptor());
+    assertTrue(site.getLineNumber() > 0);
+    assertEquals("long", TypeIdRegistry.getDescriptor(site.getTypeId()));
+
+    // The same site is passed every time.
+    m.invoke(tempo, 5);
+    assertEquals(site, lastSite);
+
+    // Instrumenting the class again gives the sites the same IDs.
+    Class<?> reinstrumented =
+        InstrumentingClassLoader.getTypeIdInstrumenteeClass(
+            AllocationInstrumenterTest.class.getName().replace('.', '/'),
+            "recorder",
+            "com.google.monitoring.runtime.instrumentation.Instrumentee");
+    reinstrumented
+        .getMethod("allocateLongArray", Integer.TYPE)
+        .invoke(reinstrumented.getConstructor().newInstance(), 3);
+    assertEquals(site.getId(), lastSite.getId());
+
+    m = instrumenteeClass.getMethod("allocateObject");
+    m.invoke(tempo);
+    assertEquals("allocateObject", lastSite.getMethodName());
+    assertTrue(lastSite.getId() != site.getId());
+  }
+
+  /** A class with nothing to instrument. */
+  static class NoAllocations {
+    int twice(int x) {
+      return x * 2;
+    }
+  }
+
+  @Test
+  public void testNothingToInstrument() throws Exception {
+    byte[] original;
+    try (InputStream in =
+        NoAllocations.class.getResourceAsStream(
+            "AllocationInstrumenterTest$NoAllocations.class")) {
+      original = in.readAllBytes();
+    }
+    // The class is left as it is, rather than rewritten.
+    assertSame(
+        original,
+        AllocationInstrumenter.instrument(
+            original,
+            AllocationInstrumenterTest.class.getName().replace('.', '/'),
+            "recorder",
+            NoAllocations.class.getClassLoader()));
+  }
+
   public static void recorder(int count, String desc, Object newObj) {
     actualEventList.add(new Event(count, desc, newObj));
   }
@@ -203,6 +348,21 @@ public class AllocationInstrumenterTest {
     actualEventList.add(new Event(-1, typename, newObj));
   }
 
+  public static void recorder(int count, int typeId, Object newObj) {
+    actualEventList.add(new Event(count, TypeIdRegistry.getDescriptor(typeId), newObj));
+  }
+
+  public static void recorder(int count, Object newObj, int siteId) {
+    lastSite = AllocationSiteRegistry.getSite(siteId);
+    actualEventList.add(
+        new Event(count, TypeIdRegistry.getDescriptor(lastSite.getTypeId()), newObj));
+  }
+
+  public static void recorder(int count, Class<?> componentType, Object newObj) {
+    String desc = TypeIdRegistry.getDescriptor(TypeIdRegistry.getTypeId(componentType));
+    actualEventList.add(new Event(count, desc, newObj));
+  }
+
   private static class Event {
     public final int count;
     public final String desc;
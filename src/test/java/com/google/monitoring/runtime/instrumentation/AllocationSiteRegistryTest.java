@@ -0,0 +1,69 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that the agent attributes allocations to their sites. */
+@RunWith(JUnit4.class)
+public class AllocationSiteRegistryTest {
+  static class Allocated {
+    long unused;
+  }
+
+  private static Object allocate() {
+    return new Allocated();
+  }
+
+  private static AllocationSite findSite(String methodName) {
+    for (AllocationSite site : AllocationSiteRegistry.getCountedSites()) {
+      if (site.getClassName().equals(AllocationSiteRegistryTest.class.getName().replace('.', '/'))
+          && site.getMethodName().equals(methodName)) {
+        return site;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testCounting() throws Exception {
+    int threads = 4;
+    final int allocations = 10_000;
+    AllocationSiteRegistry.setCountingEnabled(true);
+    try {
+      Thread[] workers = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+        workers[i] =
+            new Thread() {
+              @Override
+              public void run() {
+                for (int j = 0; j < allocations; j++) {
+                  allocate();
+                }
+              }
+            };
+        workers[i].start();
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+    } finally {
+      AllocationSiteRegistry.setCountingEnabled(false);
+    }
+
+    AllocationSite site = findSite("allocate");
+    assertNotNull(site);
+    assertEquals("()Ljava/lang/Object;", site.getMethodDescriptor());
+    assertTrue(site.getLineNumber() > 0);
+    assertEquals(
+        Allocated.class.getName().replace('.', '/'),
+        TypeIdRegistry.getDescriptor(site.getTypeId()));
+    assertEquals((long) threads * allocations, site.getAllocationCount());
+    assertEquals(0, site.getAllocatedBytes() % site.getAllocationCount());
+    assertTrue(site.getAllocatedBytes() >= 16 * site.getAllocationCount());
+  }
+}
@@ -0,0 +1,71 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that {@link BatchSampler}s are passed allocations in batches. */
+@RunWith(JUnit4.class)
+public class BatchSamplerTest {
+  static class Allocated {}
+
+  static class CollectingSampler implements BatchSampler {
+    final Thread thread = Thread.currentThread();
+    final int allocatedId = TypeIdRegistry.getTypeId(Allocated.class);
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+    final List<Object> objects = new ArrayList<Object>();
+
+    @Override
+    public void sampleAllocations(AllocationEventBatch batch) {
+      if (Thread.currentThread() != thread) {
+        return;
+      }
+      assertEquals(thread.getId(), batch.getThreadId());
+      batchSizes.add(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        if (batch.getTypeId(i) == allocatedId) {
+          assertEquals(-1, batch.getCount(i));
+          assertTrue(batch.getSize(i) > 0);
+          AllocationSite site = AllocationSiteRegistry.getSite(batch.getSiteId(i));
+          assertEquals("testBatches", site.getMethodName());
+          objects.add(batch.getObject(i));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBatches() {
+    Object[] allocated = new Object[100];
+    CollectingSampler sampler = new CollectingSampler();
+    AllocationRecorder.setSamplerBatchSize(16);
+    AllocationRecorder.addBatchSampler(sampler, true);
+    try {
+      for (int i = 0; i < allocated.length; i++) {
+        allocated[i] = new Allocated();
+      }
+      AllocationRecorder.flushSamplerBatch();
+    } finally {
+      AllocationRecorder.removeBatchSampler(sampler);
+      AllocationRecorder.setSamplerBatchSize(AllocationRecorder.DEFAULT_SAMPLER_BATCH_SIZE);
+    }
+
+    // Every batch but the flushed one is full.
+    assertTrue(sampler.batchSizes.size() > 1);
+    for (int i = 0; i < sampler.batchSizes.size() - 1; i++) {
+      assertEquals(16, (int) sampler.batchSizes.get(i));
+    }
+
+    // The objects are in the order they were allocated, and still reachable.
+    assertEquals(allocated.length, sampler.objects.size());
+    for (int i = 0; i < allocated.length; i++) {
+      assertSame(allocated[i], sampler.objects.get(i));
+    }
+  }
+}
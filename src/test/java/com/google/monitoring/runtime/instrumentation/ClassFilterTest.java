@@ -0,0 +1,104 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link ClassFilter}. */
+@RunWith(JUnit4.class)
+public class ClassFilterTest {
+  private static final ClassLoader app = ClassFilterTest.class.getClassLoader();
+
+  private static ClassFilter filter(String... args) throws IOException {
+    return ClassFilter.fromAgentArgs(Arrays.asList(args));
+  }
+
+  @Test
+  public void testNoRules() throws IOException {
+    assertSame(ClassFilter.ALL, ClassFilter.fromAgentArgs(Collections.<String>emptyList()));
+    assertSame(ClassFilter.ALL, filter("samplingInterval", "countSites"));
+    assertTrue(ClassFilter.ALL.matches("java/lang/String", null, null));
+  }
+
+  @Test
+  public void testClassGlobs() throws IOException {
+    ClassFilter f = filter("exclude=com.example.*", "exclude=org.**.internal.*");
+    assertFalse(f.matches("com/example/Foo", null, app));
+    assertFalse(f.matches("com/example/Foo$Bar", null, app));
+    assertTrue(f.matches("com/example/sub/Foo", null, app));
+    assertFalse(f.matches("org/a/b/internal/Impl", null, app));
+    assertTrue(f.matches("org/a/b/internal/sub/Impl", null, app));
+    assertTrue(f.matches("net/Other", null, app));
+  }
+
+  @Test
+  public void testPrefixes() throws IOException {
+    ClassFilter f = filter("include=com.example.", "include=class:net.Exact?");
+    assertTrue(f.matches("com/example/Foo", null, app));
+    assertTrue(f.matches("com/example/sub/Foo", null, app));
+    assertFalse(f.matches("com/examples/Foo", null, app));
+    assertTrue(f.matches("net/Exact1", null, app));
+    assertFalse(f.matches("net/Exact", null, app));
+    assertFalse(f.matches("net/Exact12", null, app));
+  }
+
+  @Test
+  public void testExcludeBeatsInclude() throws IOException {
+    ClassFilter f = filter("include=com.example.**", "exclude=com.example.generated.**");
+    assertTrue(f.matches("com/example/Foo", null, app));
+    assertFalse(f.matches("com/example/generated/Foo", null, app));
+  }
+
+  @Test
+  public void testModules() throws IOException {
+    ClassFilter f = filter("exclude=module:java.*", "exclude=module:jdk.**");
+    assertFalse(f.matches(String.class));
+    assertFalse(f.matches("jdk/internal/misc/Unsafe", Object.class.getModule(), null));
+    assertTrue(f.matches(ClassFilterTest.class));
+    assertFalse(filter("exclude=module:ALL-UNNAMED").matches(ClassFilterTest.class));
+  }
+
+  @Test
+  public void testLoaders() throws IOException {
+    ClassFilter f = filter("include=loader:bootstrap");
+    assertTrue(f.matches(String.class));
+    assertFalse(f.matches(ClassFilterTest.class));
+    // By loader name, and by the name of the loader's class.
+    assertFalse(filter("exclude=loader:app").matches(ClassFilterTest.class));
+    assertFalse(filter("exclude=loader:jdk.internal.loader.**").matches(ClassFilterTest.class));
+  }
+
+  @Test
+  public void testFile() throws IOException {
+    File file = File.createTempFile("filter", ".txt");
+    file.deleteOnExit();
+    Files.write(
+        file.toPath(),
+        Arrays.asList("# A comment", "", "include com.example.", "exclude  com.example.Skip"),
+        StandardCharsets.UTF_8);
+    ClassFilter f = filter("filterFile=" + file.getPath());
+    assertTrue(f.matches("com/example/Foo", null, app));
+    assertFalse(f.matches("com/example/Skip", null, app));
+    assertFalse(f.matches("net/Other", null, app));
+
+    Files.write(file.toPath(), Arrays.asList("instrument com.example."), StandardCharsets.UTF_8);
+    assertThrows(IllegalArgumentException.class, () -> filter("filterFile=" + file.getPath()));
+  }
+
+  @Test
+  public void testBadRules() {
+    assertThrows(IllegalArgumentException.class, () -> filter("include="));
+    assertThrows(IllegalArgumentException.class, () -> filter("exclude=module:"));
+  }
+}
@@ -0,0 +1,128 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests the counter-only mode, in which allocation sites count allocations without passing the new
+ * objects to the recorder.
+ */
+@RunWith(JUnit4.class)
+public class CountOnlyTest {
+  static class Allocated {
+    long a;
+    int b;
+    Object c;
+  }
+
+  // Reflection hides some of the fields of class loaders, so their sizes
+  // can't be worked out from their fields.
+  static class Loader extends ClassLoader {}
+
+  static class SizeSampler implements Sampler {
+    final Thread thread = Thread.currentThread();
+    final List<Long> sizes = new ArrayList<Long>();
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+      if (Thread.currentThread() == thread) {
+        sizes.add(size);
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    AllocationRecorder.setThreadAccounting(false);
+  }
+
+  // Reflective allocations still pass the new object to the recorder, so the
+  // sampler sees them, with sizes from getObjectSize().
+  private static long reflectiveSize(Object prototype) throws Exception {
+    Class<?> type = prototype.getClass();
+    SizeSampler sampler = new SizeSampler();
+    AllocationRecorder.addSampler(
+        sampler,
+        type.isArray()
+            ? AllocationFilter.newBuilder().addArraysOf(type.getComponentType()).build()
+            : AllocationFilter.newBuilder().addClass(type).build());
+    try {
+      if (type.isArray()) {
+        Array.newInstance(type.getComponentType(), Array.getLength(prototype));
+      } else {
+        type.getDeclaredConstructor().newInstance();
+      }
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+    assertEquals(1, sampler.sizes.size());
+    return sampler.sizes.get(0);
+  }
+
+  @Test
+  public void testCounts() throws Exception {
+    long instanceSize = reflectiveSize(new Allocated());
+    long arraySize = reflectiveSize(new long[10]);
+    int typeId = TypeIdRegistry.getTypeId(Allocated.class);
+    int arrayTypeId = TypeIdRegistry.getTypeId("long");
+
+    SizeSampler sampler = new SizeSampler();
+    AllocationRecorder.addSampler(
+        sampler,
+        AllocationFilter.newBuilder().addClass(Allocated.class).addArraysOf(long.class).build());
+    AllocationHistogram before = AllocationRecorder.getThreadAccountingSnapshot();
+    AllocationRecorder.setThreadAccounting(true);
+    try {
+      for (int i = 0; i < 100; i++) {
+        Allocated unused = new Allocated();
+        long[] unusedArray = new long[10];
+      }
+    } finally {
+      AllocationRecorder.setThreadAccounting(false);
+      AllocationRecorder.removeSampler(sampler);
+    }
+    AllocationHistogram after = AllocationRecorder.getThreadAccountingSnapshot();
+
+    // Counted, with the same sizes getObjectSize() gives, but not sampled.
+    assertEquals(100, after.getCount(typeId) - before.getCount(typeId));
+    assertEquals(100 * instanceSize, after.getBytes(typeId) - before.getBytes(typeId));
+    assertEquals(100, after.getCount(arrayTypeId) - before.getCount(arrayTypeId));
+    assertEquals(100 * arraySize, after.getBytes(arrayTypeId) - before.getBytes(arrayTypeId));
+    assertEquals(0, sampler.sizes.size());
+  }
+
+  @Test
+  public void testUnknownSizes() {
+    int typeId = TypeIdRegistry.getTypeId(Loader.class);
+    SizeSampler sampler = new SizeSampler();
+    AllocationRecorder.addSampler(
+        sampler, AllocationFilter.newBuilder().addClass(Loader.class).build());
+    AllocationHistogram before = AllocationRecorder.getThreadAccountingSnapshot();
+    AllocationRecorder.setThreadAccounting(true);
+    try {
+      for (int i = 0; i < 10; i++) {
+        Loader unused = new Loader();
+      }
+    } finally {
+      AllocationRecorder.setThreadAccounting(false);
+      AllocationRecorder.removeSampler(sampler);
+    }
+    AllocationHistogram after = AllocationRecorder.getThreadAccountingSnapshot();
+
+    // The sites pass the new objects, so they are counted with their sizes
+    // from getObjectSize(), and sampled.
+    assertEquals(10, sampler.sizes.size());
+    long size = sampler.sizes.get(0);
+    assertTrue(size > 0);
+    assertEquals(10, after.getCount(typeId) - before.getCount(typeId));
+    assertEquals(10 * size, after.getBytes(typeId) - before.getBytes(typeId));
+  }
+}
@@ -0,0 +1,75 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that samplers added with a filter only see the allocations it matches. */
+@RunWith(JUnit4.class)
+public class FilteredSamplerTest {
+  static class Wanted {}
+
+  static class Unwanted {}
+
+  static class RecordingSampler implements Sampler {
+    final Thread thread = Thread.currentThread();
+    final List<Object> objects = new ArrayList<Object>();
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+      if (Thread.currentThread() == thread) {
+        objects.add(newObj);
+      }
+    }
+  }
+
+  @Test
+  public void testFilter() {
+    // Loads the classes first; instrumenting them allocates long[]s.
+    new Wanted();
+    new Unwanted();
+    RecordingSampler sampler = new RecordingSampler();
+    AllocationRecorder.addSampler(
+        sampler,
+        AllocationFilter.newBuilder()
+            .addClass(Wanted.class)
+            .addArraysOf(long.class)
+            .setMinimumSize(1)
+            .build());
+    Object wanted;
+    Object longs;
+    try {
+      wanted = new Wanted();
+      new Unwanted();
+      Object ints = new int[10];
+      longs = new long[10];
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+    assertEquals(2, sampler.objects.size());
+    assertTrue(sampler.objects.get(0) == wanted);
+    assertTrue(sampler.objects.get(1) == longs);
+  }
+
+  @Test
+  public void testMinimumSize() {
+    RecordingSampler sampler = new RecordingSampler();
+    AllocationRecorder.addSampler(
+        sampler,
+        AllocationFilter.newBuilder().addArraysOf(byte.class).setMinimumSize(1000).build());
+    Object big;
+    try {
+      Object small = new byte[10];
+      big = new byte[2000];
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+    assertEquals(1, sampler.objects.size());
+    assertTrue(sampler.objects.get(0) == big);
+  }
+}
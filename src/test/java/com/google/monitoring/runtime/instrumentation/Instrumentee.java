@@ -59,6 +59,13 @@ public class Instrumentee implements Cloneable {
     return new Object[3][5][7][];
   }
 
+  // The loops that work out the size of the array branch with uninitialized
+  // objects on the stack, and another allocation's locals in scope.
+  public Object allocateMultiDimArrayInConstructorCall(boolean b) {
+    Object reflected = b ? Array.newInstance(int.class, new int[] {2, 3}) : null;
+    return new Generic<Object>(b ? new int[2][3] : reflected);
+  }
+
   public Object cloneMultiDimObjArrayWithTwoMissingDims(Object[][][] os) {
     return os.clone();
   }
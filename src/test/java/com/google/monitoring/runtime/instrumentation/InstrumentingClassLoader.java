@@ -24,14 +24,40 @@ public class InstrumentingClassLoader extends ClassLoader {
     return loader.findClass(targetClassName);
   }
 
+  /**
+   * Like {@link #getInstrumenteeClass}, but the recorder is passed {@link TypeIdRegistry} IDs
+   * instead of descriptors.
+   */
+  public static Class<?> getTypeIdInstrumenteeClass(
+      String recordingClassName, String recordingMethodName, String targetClassName) {
+    InstrumentingClassLoader loader =
+        new InstrumentingClassLoader(
+            recordingClassName,
+            recordingMethodName,
+            true,
+            InstrumentingClassLoader.class.getClassLoader());
+
+    return loader.findClass(targetClassName);
+  }
+
   private final String recordingClassName;
   private final String recordingMethodName;
+  private final boolean useTypeIds;
 
   public InstrumentingClassLoader(
       String recordingClassName, String recordingMethodName, ClassLoader parent) {
+    this(recordingClassName, recordingMethodName, false, parent);
+  }
+
+  private InstrumentingClassLoader(
+      String recordingClassName,
+      String recordingMethodName,
+      boolean useTypeIds,
+      ClassLoader parent) {
     super(parent);
     this.recordingClassName = recordingClassName;
     this.recordingMethodName = recordingMethodName;
+    this.useTypeIds = useTypeIds;
   }
 
   @Override
@@ -52,7 +78,13 @@ public class InstrumentingClassLoader extends ClassLoader {
     if (recordingClassName != null && recordingMethodName != null) {
       instrumentedBytes =
           AllocationInstrumenter.instrument(
-              originalBytes, recordingClassName, recordingMethodName, loader);
+              originalBytes,
+              recordingClassName,
+              recordingMethodName,
+              useTypeIds,
+              false,
+              false,
+              loader);
     } else {
       instrumentedBytes = AllocationInstrumenter.instrument(originalBytes, loader);
     }
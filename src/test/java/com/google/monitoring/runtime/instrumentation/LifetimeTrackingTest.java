@@ -0,0 +1,166 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that the agent tracks how long sampled objects live. */
+@RunWith(JUnit4.class)
+public class LifetimeTrackingTest {
+  static class Tracked {
+    long unused;
+  }
+
+  private static Object allocate() {
+    return new Tracked();
+  }
+
+  private static AllocationSite findSite(String methodName) {
+    for (AllocationSite site : AllocationSiteRegistry.getCountedSites()) {
+      if (site.getClassName().equals(LifetimeTrackingTest.class.getName().replace('.', '/'))
+          && site.getMethodName().equals(methodName)) {
+        return site;
+      }
+    }
+    return null;
+  }
+
+  private static long sum(long[] histogram) {
+    long sum = 0;
+    for (long count : histogram) {
+      sum += count;
+    }
+    return sum;
+  }
+
+  @Test
+  public void testLifetimes() throws Exception {
+    assertEquals(
+        AllocationRecorder.DEFAULT_LIFETIME_TRACKING, AllocationRecorder.getLifetimeTracking());
+    // Starts over, so that whatever the JVM allocated before the test can't
+    // have filled the tracker up.
+    AllocationRecorder.setLifetimeTracking(1 << 20);
+    try {
+      checkLifetimes();
+    } finally {
+      AllocationRecorder.setLifetimeTracking(AllocationRecorder.DEFAULT_LIFETIME_TRACKING);
+    }
+  }
+
+  private void checkLifetimes() throws Exception {
+    int typeId = TypeIdRegistry.getTypeId(Tracked.class);
+    long before = sum(AllocationLifetimes.getTimeHistogramForType(typeId));
+    AllocationSiteRegistry.setCountingEnabled(true);
+    try {
+      allocate();
+    } finally {
+      AllocationSiteRegistry.setCountingEnabled(false);
+    }
+    AllocationSite site = findSite("allocate");
+    assertNotNull(site);
+
+    // Every allocation is sampled, so all of these are tracked.
+    List<Object> kept = new ArrayList<Object>();
+    for (int i = 0; i < 100; i++) {
+      allocate();
+    }
+    for (int i = 0; i < 10; i++) {
+      kept.add(allocate());
+    }
+
+    // The 101 unreachable ones (including the one allocated to find the
+    // site) are found by the next collection, but the tracker sees them
+    // asynchronously.
+    long deadline = System.nanoTime() + 30_000_000_000L;
+    long collected = 0;
+    while (collected < 101 && System.nanoTime() < deadline) {
+      System.gc();
+      Thread.sleep(10);
+      collected = sum(AllocationLifetimes.getTimeHistogramForType(typeId)) - before;
+    }
+    assertEquals(101, collected);
+    assertEquals(
+        sum(AllocationLifetimes.getTimeHistogramForType(typeId)),
+        sum(AllocationLifetimes.getCollectionHistogramForType(typeId)));
+    assertTrue(sum(AllocationLifetimes.getTimeHistogramForSite(site.getId())) >= 101);
+    assertTrue(sum(AllocationLifetimes.getTimeHistogram()) >= collected);
+    // They were all found unreachable by a collection that ended after they
+    // were allocated.
+    assertEquals(0, AllocationLifetimes.getCollectionHistogramForType(typeId)[0]);
+    assertTrue(AllocationLifetimes.getTrackedCount() >= kept.size());
+    assertEquals(10, kept.size());
+  }
+
+  private static long[] retain() {
+    return new long[16];
+  }
+
+  private static long[] discard() {
+    return new long[16];
+  }
+
+  @Test
+  public void testLiveHeap() throws Exception {
+    // Starts over, as above.
+    AllocationRecorder.setLifetimeTracking(1 << 18);
+    AllocationRecorder.setSamplingInterval(4096);
+    try {
+      checkLiveHeap();
+    } finally {
+      AllocationRecorder.setSamplingInterval(0);
+      AllocationRecorder.setLifetimeTracking(AllocationRecorder.DEFAULT_LIFETIME_TRACKING);
+    }
+  }
+
+  private void checkLiveHeap() throws Exception {
+    AllocationSiteRegistry.setCountingEnabled(true);
+    try {
+      retain();
+      discard();
+    } finally {
+      AllocationSiteRegistry.setCountingEnabled(false);
+    }
+    int retainId = findSite("retain").getId();
+    int discardId = findSite("discard").getId();
+
+    List<long[]> retained = new ArrayList<long[]>();
+    for (int i = 0; i < 20_000; i++) {
+      retained.add(retain());
+      discard();
+    }
+    System.gc();
+    LiveHeapSnapshot snapshot = AllocationRecorder.getLiveHeapSnapshot();
+
+    // About 700 of each were sampled, so the estimates should be within a
+    // few percent.
+    double count = snapshot.getEstimatedCountForSite(retainId);
+    assertTrue("Estimated " + count, count > 15_000 && count < 25_000);
+    assertTrue(snapshot.getEstimatedBytesForSite(retainId) >= count * 16 * 8);
+    assertEquals(0, snapshot.getEstimatedCountForSite(discardId), 0);
+    assertTrue(snapshot.getSampleCount() > 0);
+    assertTrue(snapshot.getEstimatedBytes() >= snapshot.getEstimatedBytesForSite(retainId));
+    assertEquals(
+        count,
+        snapshot.getEstimatedCountForType(TypeIdRegistry.getTypeId("long")),
+        count * 0.1);
+    assertEquals(20_000, retained.size());
+  }
+
+  @Test
+  public void testBuckets() {
+    assertEquals(0, AllocationLifetimes.getTimeBucketLowerBound(0));
+    assertEquals(1, AllocationLifetimes.getTimeBucketLowerBound(1));
+    assertEquals(2, AllocationLifetimes.getTimeBucketLowerBound(2));
+    assertEquals(1024, AllocationLifetimes.getTimeBucketLowerBound(11));
+    assertEquals(
+        1L << (AllocationLifetimes.COLLECTION_BUCKET_COUNT - 2),
+        AllocationLifetimes.getCollectionBucketLowerBound(
+            AllocationLifetimes.COLLECTION_BUCKET_COUNT - 1));
+  }
+}
@@ -0,0 +1,105 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MappedHistogram}. */
+@RunWith(JUnit4.class)
+public class MappedHistogramTest {
+  private static ByteBuffer mapForReading(Path path) throws Exception {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return channel
+          .map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  private static Map<String, MappedHistogram.Entry> byType(List<MappedHistogram.Entry> entries) {
+    Map<String, MappedHistogram.Entry> map = new HashMap<String, MappedHistogram.Entry>();
+    for (MappedHistogram.Entry entry : entries) {
+      map.put(entry.type, entry);
+    }
+    return map;
+  }
+
+  @Test
+  public void testRecordAndRead() throws Exception {
+    File file = File.createTempFile("histogram", ".dat");
+    file.deleteOnExit();
+    int slots = 4096;
+    MappedHistogram histogram = MappedHistogram.create(file.toPath(), slots);
+
+    int stringId = TypeIdRegistry.getTypeId("java/lang/String");
+    int longId = TypeIdRegistry.getTypeId("long");
+    histogram.record(stringId, 24);
+    histogram.record(stringId, 24);
+    histogram.record(longId, 816);
+    // A type without a slot.
+    histogram.record(slots + 7, 100);
+
+    // Read it through a separate mapping, as another process would.
+    ByteBuffer buffer = mapForReading(file.toPath());
+    assertEquals(MappedHistogram.MAGIC, buffer.getInt(MappedHistogram.MAGIC_OFFSET));
+    assertEquals(slots, buffer.getInt(MappedHistogram.SLOT_COUNT_OFFSET));
+    assertEquals(ProcessHandle.current().pid(), buffer.getLong(MappedHistogram.PID_OFFSET));
+
+    Map<String, MappedHistogram.Entry> entries = byType(MappedHistogram.snapshot(buffer));
+    assertEquals(3, entries.size());
+    assertEquals(2, entries.get("java/lang/String").count);
+    assertEquals(48, entries.get("java/lang/String").bytes);
+    assertEquals(1, entries.get("long").count);
+    assertEquals(816, entries.get("long").bytes);
+    assertEquals(1, entries.get(null).count);
+    assertEquals(100, entries.get(null).bytes);
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    File file = File.createTempFile("histogram", ".dat");
+    file.deleteOnExit();
+    final MappedHistogram histogram = MappedHistogram.create(file.toPath(), 1024);
+    final int typeId = TypeIdRegistry.getTypeId("java/lang/Object");
+    final int allocations = 100_000;
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] =
+          new Thread() {
+            @Override
+            public void run() {
+              for (int j = 0; j < allocations; j++) {
+                histogram.record(typeId, 16);
+              }
+            }
+          };
+      threads[i].start();
+    }
+    ByteBuffer buffer = mapForReading(file.toPath());
+    for (Thread thread : threads) {
+      // Reading while the counters change never fails.
+      assertNotNull(MappedHistogram.snapshot(buffer));
+      thread.join();
+    }
+    MappedHistogram.Entry entry = byType(MappedHistogram.snapshot(buffer)).get("java/lang/Object");
+    assertEquals((long) threads.length * allocations, entry.count);
+    assertEquals(16L * threads.length * allocations, entry.bytes);
+  }
+
+  @Test
+  public void testNotAHistogram() throws Exception {
+    assertNull(MappedHistogram.snapshot(ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN)));
+  }
+}
@@ -0,0 +1,90 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that {@link ObjectLayout} recovers array layouts from getObjectSize(). */
+@RunWith(JUnit4.class)
+public class ObjectLayoutTest {
+  /**
+   * Returns an Instrumentation whose getObjectSize() lays arrays out with the given header size,
+   * reference size and alignment. Elements of size 8 are aligned to 8 bytes, as on HotSpot.
+   */
+  private static Instrumentation fakeInstrumentation(
+      final int headerSize, final int referenceSize, final int alignment) {
+    return (Instrumentation)
+        Proxy.newProxyInstance(
+            Instrumentation.class.getClassLoader(),
+            new Class<?>[] {Instrumentation.class},
+            (proxy, method, args) -> {
+              if (!method.getName().equals("getObjectSize")) {
+                throw new UnsupportedOperationException(method.getName());
+              }
+              Object array = args[0];
+              Class<?> componentType = array.getClass().getComponentType();
+              long elementSize = elementSize(componentType, referenceSize);
+              long base = (headerSize + elementSize - 1) / elementSize * elementSize;
+              long size = base + elementSize * Array.getLength(array);
+              return (size + alignment - 1) / alignment * alignment;
+            });
+  }
+
+  private static long elementSize(Class<?> componentType, int referenceSize) {
+    if (componentType == boolean.class || componentType == byte.class) {
+      return 1;
+    } else if (componentType == char.class || componentType == short.class) {
+      return 2;
+    } else if (componentType == int.class || componentType == float.class) {
+      return 4;
+    } else if (componentType == long.class || componentType == double.class) {
+      return 8;
+    }
+    return referenceSize;
+  }
+
+  private static void checkLayout(int headerSize, int referenceSize, int alignment) {
+    Instrumentation instr = fakeInstrumentation(headerSize, referenceSize, alignment);
+    ObjectLayout layout = ObjectLayout.probe(instr);
+    assertNotNull(layout);
+    Object[] arrays = {
+      new boolean[3], new byte[17], new char[5], new short[9], new int[7], new float[1],
+      new long[3], new double[0], new Object[11], new String[2][3]
+    };
+    for (Object array : arrays) {
+      assertEquals(
+          array.getClass().getName(), instr.getObjectSize(array), layout.arraySize(array));
+    }
+  }
+
+  @Test
+  public void testCompressedOops() {
+    checkLayout(16, 4, 8);
+  }
+
+  @Test
+  public void testUncompressedOops() {
+    checkLayout(16, 8, 8);
+  }
+
+  @Test
+  public void testUncompressedClassPointers() {
+    checkLayout(20, 8, 8);
+  }
+
+  @Test
+  public void testCompactHeaders() {
+    checkLayout(12, 4, 8);
+  }
+
+  @Test
+  public void testLargeAlignment() {
+    checkLayout(16, 4, 32);
+  }
+}
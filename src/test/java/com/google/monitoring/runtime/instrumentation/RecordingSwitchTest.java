@@ -0,0 +1,115 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests the allocation sites of this class, which are linked through invokedynamic: turning the
+ * recorder off and on again, and relinking them when the samplers change.
+ */
+@RunWith(JUnit4.class)
+public class RecordingSwitchTest {
+  static class Counted {}
+
+  static class RecordingSampler implements Sampler {
+    final Thread thread = Thread.currentThread();
+    final List<Object> objects = new ArrayList<Object>();
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+      if (Thread.currentThread() == thread) {
+        objects.add(newObj);
+      }
+    }
+  }
+
+  // Allocates through the same site each time, so that the test sees it
+  // relink.
+  private static Object allocate() {
+    return new Counted();
+  }
+
+  @Test
+  public void testSwitch() {
+    RecordingSampler sampler = new RecordingSampler();
+    AllocationRecorder.addSampler(
+        sampler, AllocationFilter.newBuilder().addClass(Counted.class).build());
+    List<Object> expected = new ArrayList<Object>();
+    try {
+      assertTrue(AllocationRecorder.isRecordingEnabled());
+      expected.add(allocate());
+
+      AllocationRecorder.setRecordingEnabled(false);
+      assertFalse(AllocationRecorder.isRecordingEnabled());
+      for (int i = 0; i < 10; i++) {
+        allocate();
+      }
+
+      AllocationRecorder.setRecordingEnabled(true);
+      expected.add(allocate());
+      expected.add(allocate());
+    } finally {
+      AllocationRecorder.setRecordingEnabled(true);
+      AllocationRecorder.removeSampler(sampler);
+    }
+    assertEquals(expected.size(), sampler.objects.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertTrue(sampler.objects.get(i) == expected.get(i));
+    }
+  }
+
+  private static Object allocateArray(int length) {
+    return new Counted[length];
+  }
+
+  @Test
+  public void testSamplersChange() {
+    // Links the sites while no sampler wants their types.
+    allocate();
+    allocateArray(10);
+    RecordingSampler sampler = new RecordingSampler();
+    AllocationRecorder.addSampler(
+        sampler,
+        AllocationFilter.newBuilder().addClass(Counted.class).addArraysOf(Counted.class).build());
+    Object counted;
+    Object longs;
+    try {
+      counted = allocate();
+      longs = allocateArray(10);
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+    allocate();
+    assertEquals(2, sampler.objects.size());
+    assertTrue(sampler.objects.get(0) == counted);
+    assertTrue(sampler.objects.get(1) == longs);
+  }
+
+  @Test
+  public void testSwitchBootstrapClasses() {
+    RecordingSampler sampler = new RecordingSampler();
+    AllocationRecorder.addSampler(
+        sampler, AllocationFilter.newBuilder().addClass(Integer.class).build());
+    Object expected;
+    try {
+      // Allocated in java.lang.Integer, whose sites call the recorder
+      // directly.
+      AllocationRecorder.setRecordingEnabled(false);
+      Integer.valueOf(1000);
+      AllocationRecorder.setRecordingEnabled(true);
+      expected = Integer.valueOf(1001);
+    } finally {
+      AllocationRecorder.setRecordingEnabled(true);
+      AllocationRecorder.removeSampler(sampler);
+    }
+    assertEquals(1, sampler.objects.size());
+    assertTrue(sampler.objects.get(0) == expected);
+  }
+}
@@ -0,0 +1,119 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link AllocationFilter} and {@link SamplerDispatch}. */
+@RunWith(JUnit4.class)
+public class SamplerDispatchTest {
+  private static final Sampler sampler =
+      new Sampler() {
+        @Override
+        public void sampleAllocation(int count, String desc, Object newObj, long size) {}
+      };
+
+  private static final Sampler otherSampler =
+      new Sampler() {
+        @Override
+        public void sampleAllocation(int count, String desc, Object newObj, long size) {}
+      };
+
+  @Test
+  public void testClasses() {
+    AllocationFilter filter = AllocationFilter.newBuilder().addClass(String.class).build();
+    assertTrue(filter.matchesType("java/lang/String", false));
+    assertFalse(filter.matchesType("java/lang/String", true));
+    assertFalse(filter.matchesType("java/lang/StringBuilder", false));
+  }
+
+  @Test
+  public void testPackages() {
+    AllocationFilter filter = AllocationFilter.newBuilder().addPackage("java.util").build();
+    assertTrue(filter.matchesType("java/util/ArrayList", false));
+    assertTrue(filter.matchesType("java/util/concurrent/ConcurrentHashMap", false));
+    assertTrue(filter.matchesType("[Ljava/util/HashMap$Node;", true));
+    assertFalse(filter.matchesType("java/utility/Thing", false));
+    assertFalse(filter.matchesType("int", true));
+    assertThrows(
+        IllegalArgumentException.class, () -> AllocationFilter.newBuilder().addPackage(""));
+  }
+
+  @Test
+  public void testArrays() {
+    AllocationFilter filter =
+        AllocationFilter.newBuilder().addArraysOf(byte.class).addArraysOf(String[].class).build();
+    assertTrue(filter.matchesType("byte", true));
+    assertTrue(filter.matchesType("[B", true));
+    assertTrue(filter.matchesType("java/lang/String", true));
+    assertTrue(filter.matchesType("[[Ljava/lang/String;", true));
+    assertFalse(filter.matchesType("java/lang/String", false));
+    assertFalse(filter.matchesType("int", true));
+  }
+
+  @Test
+  public void testMinimumSize() {
+    AllocationFilter filter = AllocationFilter.newBuilder().setMinimumSize(100).build();
+    assertEquals(100, filter.getMinimumSize());
+    assertTrue(filter.matchesAllTypes());
+    assertThrows(
+        IllegalArgumentException.class, () -> AllocationFilter.newBuilder().setMinimumSize(-1));
+  }
+
+  @Test
+  public void testDispatch() {
+    int stringId = TypeIdRegistry.getTypeId("java/lang/String");
+    int listId = TypeIdRegistry.getTypeId("java/util/ArrayList");
+
+    SamplerDispatch dispatch =
+        SamplerDispatch.with(
+            null, sampler, AllocationFilter.newBuilder().addClass(String.class).build());
+    dispatch =
+        SamplerDispatch.with(
+            dispatch,
+            otherSampler,
+            AllocationFilter.newBuilder().addPackage("java.util").setMinimumSize(64).build());
+
+    SamplerDispatch.Subscription[] subs = dispatch.forType(stringId, false);
+    assertEquals(1, subs.length);
+    assertSame(sampler, subs[0].sampler);
+    // The lists are worked out once.
+    assertSame(subs, dispatch.forType(stringId, false));
+    assertNull(dispatch.forType(stringId, true));
+
+    subs = dispatch.forType(listId, false);
+    assertEquals(1, subs.length);
+    assertSame(otherSampler, subs[0].sampler);
+    assertEquals(64, subs[0].minimumSize);
+
+    dispatch = SamplerDispatch.without(dispatch, sampler);
+    assertNull(dispatch.forType(stringId, false));
+    assertNull(SamplerDispatch.without(dispatch, otherSampler));
+  }
+
+  @Test
+  public void testDispatchGrows() {
+    SamplerDispatch dispatch =
+        SamplerDispatch.with(
+            null, sampler, AllocationFilter.newBuilder().addPackage("grow.test").build());
+    int last = -1;
+    for (int i = 0; i < 5000; i++) {
+      last = TypeIdRegistry.getTypeId("grow/test/Type" + i);
+    }
+    assertEquals(1, dispatch.forType(last, false).length);
+    assertNull(dispatch.forType(TypeIdRegistry.getTypeId("grow/other/Type"), false));
+  }
+
+  @Test
+  public void testUnfiltered() {
+    SamplerDispatch dispatch = SamplerDispatch.with(null, sampler, AllocationFilter.ALL);
+    assertEquals(1, dispatch.forType(TypeIdRegistry.getTypeId("java/lang/Object"), false).length);
+  }
+}
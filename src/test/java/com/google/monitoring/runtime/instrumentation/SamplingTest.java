@@ -0,0 +1,102 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests the byte-interval sampling mode of {@link AllocationRecorder}. Also run with the {@code
+ * invokedynamic} agent argument, to test the sampling fast path of {@link AllocationCallSites}.
+ */
+@RunWith(JUnit4.class)
+public class SamplingTest {
+  // Set on the command line with samplingInterval=.
+  private static final long INTERVAL = 64 * 1024;
+
+  static class Small {
+    long a;
+    long b;
+  }
+
+  static class CountingSampler implements Sampler {
+    final Thread thread = Thread.currentThread();
+    final Class<?> type;
+    long samples;
+    long lastSize;
+    double estimatedCount;
+    double estimatedBytes;
+
+    CountingSampler(Class<?> type) {
+      this.type = type;
+    }
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+      if (Thread.currentThread() != thread || newObj.getClass() != type) {
+        return;
+      }
+      double weight = AllocationRecorder.getSamplingWeight(size);
+      samples++;
+      lastSize = size;
+      estimatedCount += weight;
+      estimatedBytes += weight * size;
+    }
+  }
+
+  @Test
+  public void testWeightsScaleBackUp() {
+    assertEquals(INTERVAL, AllocationRecorder.getSamplingInterval());
+
+    CountingSampler sampler = new CountingSampler(byte[].class);
+    AllocationRecorder.addSampler(sampler);
+    int allocations = 200_000;
+    try {
+      for (int i = 0; i < allocations; i++) {
+        byte[] unused = new byte[1000];
+      }
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+    long size = sampler.lastSize;
+
+    // About one sample per INTERVAL bytes; far fewer than the allocations.
+    double expectedSamples = (double) allocations * size / INTERVAL;
+    assertTrue("Saw " + sampler.samples, sampler.samples > expectedSamples * 0.8);
+    assertTrue("Saw " + sampler.samples, sampler.samples < expectedSamples * 1.2);
+
+    assertEquals(allocations, sampler.estimatedCount, allocations * 0.1);
+    assertEquals((double) allocations * size, sampler.estimatedBytes, allocations * size * 0.1);
+  }
+
+  @Test
+  public void testInstanceWeightsScaleBackUp() {
+    CountingSampler sampler = new CountingSampler(Small.class);
+    AllocationRecorder.addSampler(sampler);
+    int allocations = 20_000_000;
+    try {
+      for (int i = 0; i < allocations; i++) {
+        Small unused = new Small();
+      }
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+    long size = sampler.lastSize;
+
+    double expectedSamples = (double) allocations * size / INTERVAL;
+    assertTrue("Saw " + sampler.samples, sampler.samples > expectedSamples * 0.8);
+    assertTrue("Saw " + sampler.samples, sampler.samples < expectedSamples * 1.2);
+
+    assertEquals(allocations, sampler.estimatedCount, allocations * 0.1);
+  }
+
+  @Test
+  public void testWeight() {
+    // Allocations much larger than the interval are always sampled.
+    assertEquals(1.0, AllocationRecorder.getSamplingWeight(100 * INTERVAL), 1e-9);
+    // Small allocations stand for about interval / size allocations.
+    assertEquals(INTERVAL / 16.0, AllocationRecorder.getSamplingWeight(16), 1.0);
+  }
+}
@@ -0,0 +1,112 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that the recorder captures the stacks of sampled allocations. */
+@RunWith(JUnit4.class)
+public class StackCaptureTest {
+  static class Allocated {}
+
+  static class StackSampler implements Sampler {
+    final Thread thread = Thread.currentThread();
+    final List<Integer> stackIds = new ArrayList<Integer>();
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+      if (Thread.currentThread() == thread && newObj instanceof Allocated) {
+        stackIds.add(AllocationRecorder.getSampledStackId());
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    AllocationRecorder.setStackDepth(0);
+    AllocationRecorder.setExcludedStackFrames();
+  }
+
+  private static Object allocate() {
+    return new Allocated();
+  }
+
+  private static Object allocateViaHelper() {
+    return allocate();
+  }
+
+  private static List<Integer> sample(int depth) {
+    StackSampler sampler = new StackSampler();
+    AllocationRecorder.setStackDepth(depth);
+    AllocationRecorder.addSampler(sampler);
+    try {
+      for (int i = 0; i < 2; i++) {
+        allocate();
+      }
+      allocateViaHelper();
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+    return sampler.stackIds;
+  }
+
+  @Test
+  public void testStacks() {
+    List<Integer> stackIds = sample(3);
+    assertEquals(3, stackIds.size());
+
+    // The same stack gets the same ID.
+    assertEquals(stackIds.get(0), stackIds.get(1));
+    assertNotEquals(stackIds.get(0), stackIds.get(2));
+
+    StackTraceElement[] trace = AllocationStackTable.getStackTrace(stackIds.get(2));
+    assertEquals(3, trace.length);
+    assertEquals(StackCaptureTest.class.getName(), trace[0].getClassName());
+    assertEquals("allocate", trace[0].getMethodName());
+    assertTrue(trace[0].getLineNumber() > 0);
+    assertEquals("allocateViaHelper", trace[1].getMethodName());
+    assertEquals("sample", trace[2].getMethodName());
+
+    // Stacks share their callers' IDs.
+    int caller = AllocationStackTable.getCallerStackId(stackIds.get(2));
+    assertEquals(
+        "allocateViaHelper", AllocationStackTable.getStackTrace(caller)[0].getMethodName());
+
+    // Every allocation is sampled, so the samples are counted with weight 1.
+    assertTrue(AllocationStackTable.getSampleCount(stackIds.get(0)) >= 2);
+    assertEquals(
+        AllocationStackTable.getSampleCount(stackIds.get(0)),
+        AllocationStackTable.getEstimatedCount(stackIds.get(0)),
+        1e-9);
+    assertTrue(AllocationStackTable.getEstimatedBytes(stackIds.get(0)) > 0);
+    boolean found = false;
+    for (int id : AllocationStackTable.getSampledStackIds()) {
+      found |= id == stackIds.get(0);
+    }
+    assertTrue(found);
+  }
+
+  @Test
+  public void testExcludedFrames() {
+    AllocationRecorder.setExcludedStackFrames(StackCaptureTest.class.getName());
+    for (int stackId : sample(1)) {
+      assertNotEquals(
+          StackCaptureTest.class.getName(),
+          AllocationStackTable.getStackTrace(stackId)[0].getClassName());
+    }
+  }
+
+  @Test
+  public void testOff() {
+    for (int stackId : sample(0)) {
+      assertEquals(AllocationStackTable.NO_STACK, stackId);
+    }
+  }
+}
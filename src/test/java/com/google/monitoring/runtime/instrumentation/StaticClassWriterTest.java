@@ -0,0 +1,89 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/** Tests that {@link StaticClassWriter} finds common superclasses without loading classes. */
+@RunWith(JUnit4.class)
+public class StaticClassWriterTest {
+  private static final String PREFIX = "com/google/monitoring/runtime/instrumentation/";
+
+  // None of these are referred to by anything but their names, so they are
+  // only ever loaded if the writer loads them.
+  static boolean initialized = false;
+
+  interface Shape {}
+
+  static class Base {
+    static {
+      initialized = true;
+    }
+  }
+
+  static class Left extends Base implements Shape {
+    static {
+      initialized = true;
+    }
+  }
+
+  static class Right extends Base {
+    static {
+      initialized = true;
+    }
+  }
+
+  private static String name(String simpleName) {
+    return PREFIX + "StaticClassWriterTest$" + simpleName;
+  }
+
+  private static StaticClassWriter writer(ClassLoader loader) {
+    return new StaticClassWriter(null, ClassWriter.COMPUTE_FRAMES, loader);
+  }
+
+  @Test
+  public void testResources() {
+    StaticClassWriter writer = writer(StaticClassWriterTest.class.getClassLoader());
+    assertEquals(name("Base"), writer.getCommonSuperClass(name("Left"), name("Right")));
+    assertEquals(name("Base"), writer.getCommonSuperClass(name("Base"), name("Right")));
+    assertEquals(name("Left"), writer.getCommonSuperClass(name("Left"), name("Left")));
+    assertEquals(name("Shape"), writer.getCommonSuperClass(name("Shape"), name("Left")));
+    assertEquals("java/lang/Object", writer.getCommonSuperClass(name("Shape"), name("Right")));
+    assertEquals(
+        "java/lang/Object", writer.getCommonSuperClass(name("Right"), "java/lang/String"));
+    assertFalse(initialized);
+  }
+
+  @Test
+  public void testRecordedClasses() {
+    // A class that only exists as bytes the agent has seen, as for those
+    // that are generated at runtime.
+    String generatedName = PREFIX + "Generated";
+    ClassWriter generated = new ClassWriter(0);
+    generated.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, generatedName, null, name("Left"), null);
+    generated.visitEnd();
+    ClassLoader loader =
+        new URLClassLoader(new URL[0], StaticClassWriterTest.class.getClassLoader());
+    ClassHierarchy.record(loader, new ClassReader(generated.toByteArray()));
+
+    assertEquals(name("Base"), writer(loader).getCommonSuperClass(generatedName, name("Right")));
+    // Child class loaders see it too, but others don't.
+    ClassLoader child = new URLClassLoader(new URL[0], loader);
+    assertEquals(name("Left"), writer(child).getCommonSuperClass(generatedName, name("Left")));
+    assertSame(ClassHierarchy.get(generatedName, loader), ClassHierarchy.get(generatedName, child));
+    assertThrows(
+        RuntimeException.class,
+        () -> ClassHierarchy.get(generatedName, StaticClassWriterTest.class.getClassLoader()));
+    assertFalse(initialized);
+  }
+}
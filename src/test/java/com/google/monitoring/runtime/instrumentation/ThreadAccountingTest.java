@@ -0,0 +1,78 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that each thread counts its allocations by type. */
+@RunWith(JUnit4.class)
+public class ThreadAccountingTest {
+  static class Allocated {}
+
+  static class OtherAllocated {}
+
+  @After
+  public void tearDown() {
+    AllocationRecorder.setThreadAccounting(false);
+  }
+
+  @Test
+  public void testAccounting() throws Exception {
+    int typeId = TypeIdRegistry.getTypeId(Allocated.class);
+    int otherTypeId = TypeIdRegistry.getTypeId(OtherAllocated.class);
+    AllocationHistogram before = AllocationRecorder.getThreadAccountingSnapshot();
+
+    AllocationRecorder.setThreadAccounting(true);
+    for (int i = 0; i < 10; i++) {
+      new Allocated();
+    }
+    Thread other =
+        new Thread() {
+          @Override
+          public void run() {
+            for (int i = 0; i < 5; i++) {
+              new OtherAllocated();
+            }
+          }
+        };
+    other.start();
+    other.join();
+    AllocationRecorder.setThreadAccounting(false);
+    new Allocated();
+
+    AllocationHistogram after = AllocationRecorder.getThreadAccountingSnapshot();
+    assertEquals(10, after.getCount(typeId) - before.getCount(typeId));
+    assertTrue(after.getBytes(typeId) > before.getBytes(typeId));
+    // The exited thread's allocations are still counted.
+    assertEquals(5, after.getCount(otherTypeId) - before.getCount(otherTypeId));
+    assertTrue(after.getTotalCount() >= after.getCount(typeId) + after.getCount(otherTypeId));
+    assertTrue(after.getTotalBytes() >= after.getBytes(typeId) + after.getBytes(otherTypeId));
+
+    boolean found = false;
+    for (int id : after.getTypeIds()) {
+      found |= id == typeId;
+    }
+    assertTrue(found);
+
+    // Only live threads are broken out.
+    Map<Thread, AllocationHistogram> byThread =
+        AllocationRecorder.getThreadAccountingSnapshotByThread();
+    assertTrue(byThread.containsKey(Thread.currentThread()));
+    assertFalse(byThread.containsKey(other));
+    assertEquals(
+        after.getCount(typeId), byThread.get(Thread.currentThread()).getCount(typeId));
+  }
+
+  @Test
+  public void testUnknownTypes() {
+    AllocationHistogram histogram = AllocationRecorder.getThreadAccountingSnapshot();
+    assertEquals(0, histogram.getCount(-1));
+    assertEquals(0, histogram.getBytes(Integer.MAX_VALUE / 2));
+  }
+}
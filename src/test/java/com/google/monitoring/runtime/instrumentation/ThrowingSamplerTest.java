@@ -0,0 +1,62 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that a sampler that throws doesn't turn recording off for the thread it ran on. */
+@RunWith(JUnit4.class)
+public class ThrowingSamplerTest {
+  static class Allocated {}
+
+  static class ThrowingSampler implements Sampler {
+    final Thread thread = Thread.currentThread();
+    final List<Object> objects = new ArrayList<Object>();
+    boolean throwNext = true;
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+      if (Thread.currentThread() != thread) {
+        return;
+      }
+      if (throwNext) {
+        throwNext = false;
+        throw new IllegalStateException("Sampler failed");
+      }
+      objects.add(newObj);
+      // Still inside the recorder, so this isn't recorded.
+      new Allocated();
+    }
+  }
+
+  @Test
+  public void testRecordsAfterThrow() {
+    // Loads the class first.
+    new Allocated();
+    ThrowingSampler sampler = new ThrowingSampler();
+    AllocationRecorder.addSampler(
+        sampler, AllocationFilter.newBuilder().addClass(Allocated.class).build());
+    Object allocated;
+    try {
+      try {
+        new Allocated();
+        fail("The sampler should have thrown");
+      } catch (IllegalStateException expected) {
+      }
+      allocated = new Allocated();
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+
+    // The thread left the recorder when the sampler threw, so the next
+    // allocation is recorded, but not the one the sampler made.
+    assertEquals(1, sampler.objects.size());
+    assertSame(allocated, sampler.objects.get(0));
+  }
+}
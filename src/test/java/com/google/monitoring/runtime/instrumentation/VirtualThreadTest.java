@@ -0,0 +1,198 @@
+package com.google.monitoring.runtime.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that virtual threads share their carriers' recorder state unless asked not to. Passes
+ * trivially on JDKs without virtual threads.
+ */
+@RunWith(JUnit4.class)
+public class VirtualThreadTest {
+  static class Allocated {}
+
+  static class AllocatedBySampler {}
+
+  // Blocks, so that the virtual thread it runs in may move to another
+  // carrier, and then allocates, which mustn't be recorded.
+  static class BlockingSampler implements Sampler {
+    final ThreadLocal<Boolean> inSampler = new ThreadLocal<Boolean>();
+    final AtomicInteger samples = new AtomicInteger();
+    final AtomicInteger reentered = new AtomicInteger();
+    final AtomicInteger moved = new AtomicInteger();
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+      if (inSampler.get() != null) {
+        reentered.incrementAndGet();
+        return;
+      }
+      if (!(newObj instanceof Allocated)) {
+        return;
+      }
+      inSampler.set(Boolean.TRUE);
+      try {
+        samples.incrementAndGet();
+        // A mounted virtual thread's name includes its carrier's.
+        String before = Thread.currentThread().toString();
+        Thread.sleep(1);
+        if (!Thread.currentThread().toString().equals(before)) {
+          moved.incrementAndGet();
+        }
+        new AllocatedBySampler();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } finally {
+        inSampler.remove();
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    AllocationRecorder.setThreadAccounting(false);
+    AllocationRecorder.setVirtualThreadAttribution(false);
+  }
+
+  // Executors.newVirtualThreadPerTaskExecutor(), or null before JDK 21.
+  private static ExecutorService newVirtualThreadExecutor() throws Exception {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  // Runs a virtual thread that allocates, and returns the per-thread
+  // accounting taken while it is still alive, along with the thread.
+  private static Map<Thread, AllocationHistogram> allocateInVirtualThread(Thread[] thread)
+      throws Exception {
+    ExecutorService executor = newVirtualThreadExecutor();
+    CountDownLatch allocated = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            thread[0] = Thread.currentThread();
+            new Allocated();
+            allocated.countDown();
+            try {
+              done.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+          }
+        });
+    allocated.await();
+    try {
+      return AllocationRecorder.getThreadAccountingSnapshotByThread();
+    } finally {
+      done.countDown();
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  @Test
+  public void testSharedState() throws Exception {
+    if (newVirtualThreadExecutor() == null) {
+      return;
+    }
+    int typeId = TypeIdRegistry.getTypeId(Allocated.class);
+    long before = AllocationRecorder.getThreadAccountingSnapshot().getCount(typeId);
+    AllocationRecorder.setThreadAccounting(true);
+
+    ExecutorService executor = newVirtualThreadExecutor();
+    for (int i = 0; i < 10000; i++) {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              new Allocated();
+            }
+          });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+    // Every allocation is counted, but against the carrier threads.
+    assertEquals(
+        10000, AllocationRecorder.getThreadAccountingSnapshot().getCount(typeId) - before);
+    Thread[] thread = new Thread[1];
+    Map<Thread, AllocationHistogram> byThread = allocateInVirtualThread(thread);
+    assertFalse(byThread.containsKey(thread[0]));
+    assertTrue(byThread.size() < 1000);
+  }
+
+  @Test
+  public void testAttribution() throws Exception {
+    if (newVirtualThreadExecutor() == null) {
+      return;
+    }
+    int typeId = TypeIdRegistry.getTypeId(Allocated.class);
+    AllocationRecorder.setVirtualThreadAttribution(true);
+    assertTrue(AllocationRecorder.isVirtualThreadAttribution());
+    AllocationRecorder.setThreadAccounting(true);
+
+    Thread[] thread = new Thread[1];
+    Map<Thread, AllocationHistogram> byThread = allocateInVirtualThread(thread);
+    assertTrue(byThread.containsKey(thread[0]));
+    assertEquals(1, byThread.get(thread[0]).getCount(typeId));
+  }
+
+  @Test
+  public void testSamplerBlocks() throws Exception {
+    if (newVirtualThreadExecutor() == null) {
+      return;
+    }
+    int typeId = TypeIdRegistry.getTypeId(AllocatedBySampler.class);
+    long before = AllocationRecorder.getThreadAccountingSnapshot().getCount(typeId);
+    BlockingSampler sampler = new BlockingSampler();
+    AllocationRecorder.addSampler(
+        sampler,
+        AllocationFilter.newBuilder()
+            .addClass(Allocated.class)
+            .addClass(AllocatedBySampler.class)
+            .build());
+    AllocationRecorder.setThreadAccounting(true);
+    try {
+      ExecutorService executor = newVirtualThreadExecutor();
+      for (int i = 0; i < 1000; i++) {
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                new Allocated();
+              }
+            });
+      }
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    } finally {
+      AllocationRecorder.removeSampler(sampler);
+    }
+
+    // Whether or not the threads moved to other carriers while they were in
+    // the sampler (which they only can when there is more than one), they
+    // didn't enter the recorder again.
+    assertEquals(1000, sampler.samples.get());
+    assertEquals(0, sampler.reentered.get());
+    assertEquals(0, AllocationRecorder.getThreadAccountingSnapshot().getCount(typeId) - before);
+    assertTrue(
+        sampler.moved.get() > 0 || Runtime.getRuntime().availableProcessors() == 1);
+  }
+}